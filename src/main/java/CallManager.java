@@ -50,14 +50,14 @@ public class CallManager {
                 }
                 
                 // Đợi một chút để đảm bảo video call đã cleanup xong
-                new Thread(() -> {
+                TaskExecutor.getInstance().execute("incoming-voice-call", () -> {
                     try {
                         Thread.sleep(800); // Đợi 800ms
                         Platform.runLater(() -> showIncomingCallDialog(caller, false));
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
-                }).start();
+                });
             }
 
             @Override
@@ -104,7 +104,7 @@ public class CallManager {
                     showVideoCallWindow(incomingCaller, false);
 
                     // Đợi UI sẵn sàng rồi mới set video views và kết nối audio
-                    new Thread(() -> {
+                    TaskExecutor.getInstance().execute("video-receiver-setup", () -> {
                         try {
                             Thread.sleep(500);
                             if (areVideoViewsReady()) {
@@ -122,7 +122,7 @@ public class CallManager {
                         } catch (InterruptedException e) {
                             e.printStackTrace();
                         }
-                    }).start();
+                    });
                 });
             }
 
@@ -175,7 +175,7 @@ public class CallManager {
 
         showVoiceCallDialog(target);
 
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("voice-call-start", () -> {
             boolean success = voiceCallManager.startCall(peer.getIp(), peer.getVoicePort());
             Platform.runLater(() -> {
                 if (!success) {
@@ -185,7 +185,7 @@ public class CallManager {
                     }
                 }
             });
-        }).start();
+        });
     }
 
     public void startVideoCall(String target) {
@@ -209,7 +209,7 @@ public class CallManager {
         showVideoCallWindow(target, true);
 
         // Khởi động streaming sau khi UI được tạo
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("video-call-start", () -> {
             try {
                 Thread.sleep(800);
 
@@ -241,7 +241,7 @@ public class CallManager {
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
     }
 
     private void showVideoCallWindow(String peer, boolean isCaller) {
@@ -335,7 +335,7 @@ public class CallManager {
             videoCallStage.setScene(scene);
 
             if (isCaller) {
-                new Thread(() -> {
+                TaskExecutor.getInstance().execute("video-call-status", () -> {
                     try {
                         Thread.sleep(2000);
                         Platform.runLater(() -> {
@@ -344,7 +344,7 @@ public class CallManager {
                     } catch (InterruptedException ex) {
                         ex.printStackTrace();
                     }
-                }).start();
+                });
             }
 
             videoCallStage.show();
@@ -497,7 +497,7 @@ public class CallManager {
             Scene scene = new Scene(callBox, 300, 350);
             voiceCallStage.setScene(scene);
 
-            new Thread(() -> {
+            TaskExecutor.getInstance().execute("voice-call-status", () -> {
                 try {
                     Thread.sleep(2000);
                     Platform.runLater(() -> {
@@ -508,7 +508,7 @@ public class CallManager {
                 } catch (InterruptedException ex) {
                     ex.printStackTrace();
                 }
-            }).start();
+            });
 
             voiceCallStage.show();
         });
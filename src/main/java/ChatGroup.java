@@ -1,24 +1,99 @@
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class ChatGroup {
+    // Chế độ chuyển tiếp: người gửi chỉ gửi cho RELAY_FANOUT thành viên, họ gửi tiếp theo cây
+    public static final int RELAY_FANOUT = 3;
+    public static final int RELAY_MIN_MEMBERS = 8; // Nhóm nhỏ hơn gửi trực tiếp vẫn nhanh hơn
+    public static final int MAX_RELAY_FANOUT = 16; // Số nhánh lớn nhất chấp nhận từ frame nhận được
+
     public String name;
     public String creator;
-    public Set<String> members = new HashSet<>();
+    // Copy-on-write: mỗi lần đổi thành viên thay cả set mới (không sửa tại chỗ), nên thread khác
+    // (FX, dispatch) duyệt members luôn thấy 1 bản đầy đủ, không bị ConcurrentModificationException
+    public volatile Set<String> members = Collections.emptySet();
+    public boolean relayDelivery = false;
+
+    private List<String> relayOrder; // Thành viên đã sắp xếp theo members hiện tại - null khi cần tính lại
 
     public ChatGroup(String name, String creator) {
         this.name = name;
         this.creator = creator;
     }
 
-    public void addMember(String username) {
-        if (username != null && !username.trim().isEmpty()) {
-            members.add(username);
+    public synchronized void addMember(String username) {
+        if (username != null && !username.trim().isEmpty() && !members.contains(username)) {
+            Set<String> updated = new HashSet<>(members);
+            updated.add(username);
+            replaceMembers(updated);
+        }
+    }
+
+    public synchronized void removeMember(String username) {
+        if (members.contains(username)) {
+            Set<String> updated = new HashSet<>(members);
+            updated.remove(username);
+            replaceMembers(updated);
         }
     }
 
-    public void removeMember(String username) {
-        members.remove(username);
+    public synchronized void setMembers(Iterable<String> usernames) {
+        Set<String> updated = new HashSet<>();
+        for (String username : usernames) {
+            if (username != null && !username.trim().isEmpty()) {
+                updated.add(username);
+            }
+        }
+        replaceMembers(updated);
+    }
+
+    private void replaceMembers(Set<String> updated) {
+        members = Collections.unmodifiableSet(updated);
+        relayOrder = null;
+    }
+
+    public boolean usesRelay() {
+        return relayDelivery && members.size() >= RELAY_MIN_MEMBERS;
+    }
+
+    /**
+     * Các thành viên mà node phải chuyển tiếp tới trong cây gốc root.
+     * Cây: root ở vị trí 0, các thành viên còn lại theo thứ tự tên ở vị trí 1..n,
+     * node ở vị trí p chuyển cho vị trí p*fanout+1 .. p*fanout+fanout.
+     * Mọi thành viên có cùng danh sách thành viên sẽ tính ra cùng 1 cây.
+     */
+    public synchronized List<String> relayChildren(String root, String node, int fanout) {
+        if (relayOrder == null) {
+            List<String> sorted = new ArrayList<>(members);
+            Collections.sort(sorted);
+            relayOrder = sorted;
+        }
+        List<String> order = relayOrder;
+        int rootIndex = Collections.binarySearch(order, root);
+        int size = order.size() - (rootIndex >= 0 ? 1 : 0);
+
+        int position = 0;
+        if (!node.equals(root)) {
+            int index = Collections.binarySearch(order, node);
+            if (index < 0) {
+                return Collections.emptyList();
+            }
+            position = rootIndex >= 0 && rootIndex < index ? index : index + 1;
+        }
+
+        List<String> children = new ArrayList<>();
+        long first = (long) position * fanout + 1; // long: không tràn số khi fanout lớn
+        for (long p = first; p < first + fanout && p <= size; p++) {
+            int index = (int) p - 1;
+            if (rootIndex >= 0 && index >= rootIndex) {
+                index++; // Bỏ qua root trong danh sách đã sắp xếp
+            }
+            children.add(order.get(index));
+        }
+        return children;
     }
 
     public boolean isMember(String username) {
@@ -43,6 +118,7 @@ public class ChatGroup {
                 "name='" + name + '\'' +
                 ", creator='" + creator + '\'' +
                 ", members=" + members.size() +
+                ", relay=" + relayDelivery +
                 '}';
     }
 }
\ No newline at end of file
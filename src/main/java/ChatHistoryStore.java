@@ -0,0 +1,1265 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chat History Store - Lịch sử chat dạng log chỉ ghi nối (append-only), chia segment
+ *
+ * - Thư mục chat_history/<user>/, mỗi segment 1 file <vị trí bắt đầu>.log (tối đa SEGMENT_BYTES)
+ * - Mỗi record 1 dòng: conversation \t timestamp \t sender \t message (tab / xuống dòng được escape)
+ * - append() không chặn: record vào hàng đợi, 1 thread "history-writer" gom cả lô,
+ *   ghi 1 lần rồi fsync 1 lần cho cả lô (group commit)
+ * - Index trong RAM: conversation → vị trí (offset toàn cục) các record theo thứ tự ghi;
+ *   segment đã đầy có thêm file .idx để lần mở sau khỏi đọc lại cả segment
+ * - Chỉ mục tìm kiếm toàn văn (HistorySearchIndex) cập nhật cùng lúc với index; segment đã đầy
+ *   tìm thẳng trên file .fts (memory-mapped), chỉ segment đang ghi nằm trên heap
+ * - Đoạn đuôi của các conversation dùng gần đây nằm sẵn trong RecentMessageCache → chuyển qua lại
+ *   giữa các chat không đọc đĩa
+ * - Tóm tắt từng conversation (tin cuối, thời điểm, số tin, số chưa đọc) cập nhật cùng lúc,
+ *   lưu summaries.dat → danh sách liên hệ không phải đọc file lịch sử nào
+ * - Segment đã đầy quá DEFAULT_ARCHIVE_AFTER_DAYS ngày, hoặc khi tổng segment chưa nén vượt
+ *   DEFAULT_MAX_PLAIN_MB (đổi được qua setArchivePolicy),
+ *   được nén theo block thành .arc (HistoryArchive) ở thread nền - vị trí record không đổi
+ * - Lần đầu mở: nhập các file chat_history/<user>_<target>.txt kiểu cũ (file cũ giữ nguyên)
+ *
+ * Conversation: username (chat 1-1) hoặc <tên nhóm>_group.
+ */
+public class ChatHistoryStore {
+    private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_BATCH = 4096;
+    private static final int READ_CHUNK = 512;
+    static final long DEFAULT_ARCHIVE_AFTER_DAYS = 30;
+    static final long DEFAULT_MAX_PLAIN_MB = 4 * SEGMENT_BYTES / (1024 * 1024);
+    private static final int PREVIEW_CHARS = 100;
+    private static final long SUMMARY_SAVE_INTERVAL_MS = 2000;
+    private static final int SUMMARY_FILE_VERSION = 1;
+    private static final long RECENT_CACHE_BYTES = 16L * 1024 * 1024;
+    private static final DateTimeFormatter LEGACY_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    public static class Record {
+        public final long position;
+        public final String conversation;
+        public final long timestamp;
+        public final String sender;
+        public final String message;
+
+        Record(long position, String conversation, long timestamp, String sender, String message) {
+            this.position = position;
+            this.conversation = conversation;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Tóm tắt 1 conversation cho danh sách liên hệ (bản chụp bất biến, thay cả object khi đổi)
+     */
+    public static class Summary {
+        public final String conversation;
+        public final int messageCount;
+        public final long lastTimestamp;
+        public final String lastSender;
+        public final String lastMessage; // Cắt còn PREVIEW_CHARS ký tự
+        public final int unread;
+
+        Summary(String conversation, int messageCount, long lastTimestamp, String lastSender,
+                String lastMessage, int unread) {
+            this.conversation = conversation;
+            this.messageCount = messageCount;
+            this.lastTimestamp = lastTimestamp;
+            this.lastSender = lastSender;
+            this.lastMessage = lastMessage;
+            this.unread = unread;
+        }
+    }
+
+    private static class Segment {
+        final long base;
+        final File file;
+        final FileChannel channel;   // null nếu đã nén
+        final HistoryArchive archive; // null nếu còn là .log
+        volatile long size;
+
+        Segment(long base, File file, FileChannel channel, long size) {
+            this(base, file, channel, size, null);
+        }
+
+        Segment(long base, File file, FileChannel channel, long size, HistoryArchive archive) {
+            this.base = base;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+            this.archive = archive;
+        }
+
+        void close() throws IOException {
+            if (archive != null) {
+                archive.close();
+            } else {
+                channel.close();
+            }
+        }
+    }
+
+    private static class Pending {
+        final String conversation;
+        final long timestamp;
+        final String sender;
+        final String message;
+        final CompletableFuture<Record> written = new CompletableFuture<>();
+
+        Pending(String conversation, long timestamp, String sender, String message) {
+            this.conversation = conversation;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Danh sách vị trí record tăng dần (long[] tự nới) - dùng cho index và HistorySearchIndex
+     */
+    static class PositionList {
+        private long[] positions = new long[16];
+        private int size = 0;
+
+        synchronized void add(long position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Bỏ các vị trí trong [from, to) (đã chuyển sang file). Tạo mảng mới → View đã chụp không đổi.
+         * Trả về true nếu có bỏ.
+         */
+        synchronized boolean removeRange(long from, long to) {
+            int start = new View(positions, size).lowerBound(from);
+            int end = new View(positions, size).lowerBound(to);
+            if (start == end) {
+                return false;
+            }
+            long[] kept = new long[Math.max(16, size - (end - start))];
+            System.arraycopy(positions, 0, kept, 0, start);
+            System.arraycopy(positions, end, kept, start, size - end);
+            positions = kept;
+            size -= end - start;
+            return true;
+        }
+
+        synchronized long[] range(int from, int to) {
+            int start = Math.max(0, from);
+            int end = Math.min(to, size);
+            return start >= end ? new long[0] : Arrays.copyOfRange(positions, start, end);
+        }
+
+        synchronized long[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+
+        /**
+         * Bản chụp KHÔNG copy: add() chỉ ghi sau size hoặc sang mảng mới,
+         * nên phần [0, size) của mảng đã chụp không bao giờ đổi
+         */
+        synchronized View view() {
+            return new View(positions, size);
+        }
+
+        /**
+         * Thứ tự của vị trí trong danh sách, -1 nếu không có
+         */
+        synchronized int indexOf(long position) {
+            int i = Arrays.binarySearch(positions, 0, size, position);
+            return i < 0 ? -1 : i;
+        }
+    }
+
+    static final class View {
+        final long[] positions;
+        final int size;
+
+        View(long[] positions, int size) {
+            this.positions = positions;
+            this.size = size;
+        }
+
+        /**
+         * Chỉ số phần tử đầu tiên >= key (size nếu không có)
+         */
+        int lowerBound(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Kết quả tìm kiếm, mới nhất trước. more = còn tin khớp khác chưa trả về
+     * (vượt limit, hoặc từ cuối là tiền tố của quá nhiều từ) → gõ thêm để thu hẹp
+     */
+    public static class SearchResult {
+        public final List<Record> records;
+        public final boolean more;
+
+        SearchResult(List<Record> records, boolean more) {
+            this.records = records;
+            this.more = more;
+        }
+    }
+
+    private static final Pending STOP = new Pending("", 0, "", "");
+
+    private final String currentUser;
+    private final File dir;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // Khóa: this
+    private final ConcurrentHashMap<String, PositionList> index = new ConcurrentHashMap<>();
+    private final HistorySearchIndex searchIndex = new HistorySearchIndex();
+    private final RecentMessageCache recentCache = new RecentMessageCache(RECENT_CACHE_BYTES);
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    private volatile Segment active; // Chỉ thread writer ghi
+    // Vị trí record của segment đang ghi theo conversation → .idx khi roll không phải lọc cả index
+    private Map<String, PositionList> activeSegmentIndex = new LinkedHashMap<>(); // Chỉ thread writer
+    private volatile Thread writer; // null = chưa mở được / đã đóng
+
+    private volatile long archiveAfterMs = TimeUnit.DAYS.toMillis(DEFAULT_ARCHIVE_AFTER_DAYS);
+    private volatile long maxPlainBytes = DEFAULT_MAX_PLAIN_MB * 1024 * 1024;
+    private final AtomicBoolean archiving = new AtomicBoolean(false);
+    private volatile Future<?> archiveTask; // close() chờ lượt nén đang chạy xong
+
+    private final ConcurrentHashMap<String, Summary> summaries = new ConcurrentHashMap<>();
+    private volatile String viewing;            // Conversation đang mở → tin đến không tính chưa đọc
+    private volatile Runnable summaryListener;  // Gọi từ thread writer sau mỗi lô
+    private volatile boolean summariesDirty = false;
+    private long summariesSavedAt = 0;          // Chỉ thread writer
+
+    // Metrics
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong committedBatches = new AtomicLong();
+
+    public ChatHistoryStore(String currentUser) {
+        this.currentUser = currentUser;
+        this.dir = new File("chat_history/" + currentUser);
+    }
+
+    /**
+     * Mở store: nạp index các segment, khôi phục segment đang ghi (cắt dòng ghi dở
+     * nếu app bị tắt giữa chừng), nhập lịch sử kiểu cũ, rồi chạy thread ghi
+     */
+    public void open() throws IOException {
+        dir.mkdirs();
+        long start = System.currentTimeMillis();
+        // .arc thắng .log cùng base (app tắt giữa lúc nén xong và lúc xóa .log)
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] found = dir.listFiles((d, name) -> name.endsWith(".log") || name.endsWith(".arc"));
+        if (found != null) {
+            for (File file : found) {
+                File existing = files.get(baseOf(file));
+                if (existing == null || file.getName().endsWith(".arc")) {
+                    files.put(baseOf(file), file);
+                }
+                if (existing != null) {
+                    (file.getName().endsWith(".arc") ? existing : file).delete();
+                }
+            }
+        }
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            boolean last = entry.getKey().equals(files.lastKey()) && entry.getValue().getName().endsWith(".log");
+            openSegment(entry.getValue(), last);
+        }
+        if (active == null) {
+            Map.Entry<Long, Segment> lastSegment = segments.lastEntry();
+            active = createSegment(lastSegment == null ? 0 : lastSegment.getKey() + lastSegment.getValue().size);
+        }
+
+        loadSummaries();
+
+        File marker = new File(dir, ".legacy_imported");
+        if (!marker.exists()) {
+            importLegacyHistory();
+            saveSummaries();
+            marker.createNewFile();
+        }
+
+        writer = TaskExecutor.getInstance().startDedicated("history-writer", this::writerLoop);
+        scheduleArchiving();
+        System.out.println("💾 History store opened: " + segments.size() + " segment(s), " +
+                index.size() + " conversation(s), " +
+                searchIndex.termCount() + " search term(s) in memory + " + searchIndex.sealedSegmentCount() +
+                " on-disk search segment(s) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Ghi nối 1 tin nhắn - không chặn thread gọi (thread nhận mạng / FX thread).
+     * Future hoàn thành sau khi record đã được fsync.
+     */
+    public CompletableFuture<Record> append(String conversation, String sender, String message) {
+        if (writer == null) {
+            // Không có thread ghi → báo lỗi ngay thay vì dồn vào hàng đợi không ai xử lý
+            return CompletableFuture.failedFuture(new IOException("History store is not open"));
+        }
+        Pending pending = new Pending(conversation, System.currentTimeMillis(), sender, message);
+        queue.add(pending);
+        return pending.written;
+    }
+
+    public int count(String conversation) {
+        PositionList positions = index.get(conversation);
+        return positions == null ? 0 : positions.size();
+    }
+
+    /**
+     * Toàn bộ record của conversation theo thứ tự ghi
+     */
+    public List<Record> read(String conversation) {
+        return read(conversation, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Record thứ [from, to) của conversation (thứ tự ghi, 0 = cũ nhất)
+     */
+    public List<Record> read(String conversation, int from, int to) {
+        PositionList positions = index.get(conversation);
+        if (positions == null) {
+            return new ArrayList<>();
+        }
+        int count = positions.size();
+        from = Math.max(0, from);
+        to = Math.min(to, count);
+        if (from >= to) {
+            return new ArrayList<>();
+        }
+        List<Record> cached = recentCache.get(conversation, from, to);
+        if (cached != null) {
+            return cached;
+        }
+
+        List<Record> records = new ArrayList<>();
+        for (long position : positions.range(from, to)) {
+            try {
+                Record record = readRecord(position);
+                if (record != null) {
+                    records.add(record);
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Cannot read history record at " + position + ": " + e.getMessage());
+            }
+        }
+        if (records.size() == to - from) {
+            recentCache.fill(conversation, from, records, count);
+        }
+        return records;
+    }
+
+    /**
+     * Tìm tin nhắn chứa mọi từ của query (không phân biệt dấu), mới nhất trước
+     */
+    public SearchResult search(String query, int limit) {
+        List<Record> records = new ArrayList<>();
+        HistorySearchIndex.Hits hits = searchIndex.search(query, limit);
+        for (long position : hits.positions) {
+            try {
+                Record record = readRecord(position);
+                if (record != null) {
+                    records.add(record);
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Cannot read history record at " + position + ": " + e.getMessage());
+            }
+        }
+        return new SearchResult(records, hits.more);
+    }
+
+    /**
+     * Thứ tự (0 = cũ nhất) của record trong conversation, -1 nếu không thuộc conversation này
+     */
+    public int indexOf(String conversation, long position) {
+        PositionList positions = index.get(conversation);
+        return positions == null ? -1 : positions.indexOf(position);
+    }
+
+    /**
+     * Tối đa limit record của conversation có timestamp trong [fromMillis, toMillis], thứ tự ghi.
+     * Dùng chỉ mục thời gian của HistoryArchive: segment nén nằm ngoài khoảng bị bỏ cả segment
+     * (không đụng tới vị trí nào của nó), block nén nằm ngoài khoảng bị bỏ mà không giải nén.
+     */
+    public List<Record> readBetween(String conversation, long fromMillis, long toMillis, int limit) {
+        List<Record> records = new ArrayList<>();
+        PositionList positions = index.get(conversation);
+        if (positions == null || limit <= 0) {
+            return records;
+        }
+        View view = positions.view();
+        List<Segment> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(segments.values());
+        }
+        for (Segment segment : snapshot) {
+            HistoryArchive archive = segment.archive;
+            if (archive != null && (archive.maxTimestamp() < fromMillis || archive.minTimestamp() > toMillis)) {
+                continue;
+            }
+            int end = view.lowerBound(segment.base + segment.size);
+            for (int i = view.lowerBound(segment.base); i < end; i++) {
+                long position = view.positions[i];
+                if (archive != null && !archive.mayContain(position - segment.base, fromMillis, toMillis)) {
+                    continue;
+                }
+                try {
+                    Record record = readRecord(position);
+                    if (record != null && record.timestamp >= fromMillis && record.timestamp <= toMillis) {
+                        records.add(record);
+                        if (records.size() == limit) {
+                            return records;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("✗ Cannot read history record at " + position + ": " + e.getMessage());
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Tóm tắt mọi conversation, mới nhất trước - không đọc file lịch sử
+     */
+    public List<Summary> summaries() {
+        List<Summary> list = new ArrayList<>(summaries.values());
+        list.sort((a, b) -> Long.compare(b.lastTimestamp, a.lastTimestamp));
+        return list;
+    }
+
+    public Summary summary(String conversation) {
+        return summaries.get(conversation);
+    }
+
+    /**
+     * Conversation đang mở trên màn hình (null = không mở gì): xóa số chưa đọc của nó,
+     * tin đến sau đó cũng không tính chưa đọc
+     */
+    public void setViewing(String conversation) {
+        viewing = conversation;
+        if (conversation != null) {
+            Summary old = summaries.get(conversation);
+            if (old != null && old.unread > 0) {
+                summaries.computeIfPresent(conversation, (k, s) -> new Summary(k, s.messageCount,
+                        s.lastTimestamp, s.lastSender, s.lastMessage, 0));
+                summariesDirty = true;
+                notifySummaryListener();
+            }
+        }
+    }
+
+    public void setSummaryListener(Runnable listener) {
+        this.summaryListener = listener;
+    }
+
+    /**
+     * Đổi ngưỡng nén: segment đã đầy cũ hơn maxAgeMs, hoặc tổng segment chưa nén vượt maxPlainBytes.
+     * Gọi trước open() để lượt nén đầu tiên đã theo ngưỡng mới.
+     */
+    public void setArchivePolicy(long maxAgeMs, long maxPlainBytes) {
+        this.archiveAfterMs = maxAgeMs;
+        this.maxPlainBytes = maxPlainBytes;
+        if (writer != null) {
+            scheduleArchiving();
+        }
+    }
+
+    /**
+     * Ghi nốt hàng đợi rồi đóng các segment
+     */
+    public void close() {
+        Thread stopping = writer;
+        if (stopping == null) {
+            return;
+        }
+        writer = null;
+        queue.add(STOP);
+        try {
+            stopping.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Pending late;
+        while ((late = queue.poll()) != null) {
+            late.written.completeExceptionally(new IOException("History store is closed"));
+        }
+        Future<?> archivingTask = archiveTask;
+        if (archivingTask != null) {
+            try {
+                archivingTask.get(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                System.err.println("⚠️ History archiving still running at close: " + e);
+            }
+        }
+        saveSummaries();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    // Bỏ qua
+                }
+            }
+        }
+        System.out.println("💾 History store closed: " + this);
+    }
+
+    @Override
+    public String toString() {
+        long records = appendedRecords.get();
+        long batches = committedBatches.get();
+        return "HistoryStore{user=" + currentUser + ", segments=" + segments.size() +
+                ", conversations=" + index.size() + ", appended=" + records +
+                ", commits=" + batches +
+                ", avgBatch=" + (batches == 0 ? 0 : records / batches) + ", " + recentCache + "}";
+    }
+
+    // ==================== Ghi ====================
+
+    private void writerLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                stopping = true;
+                queue.drainTo(batch);
+            }
+            if (batch.remove(STOP)) {
+                stopping = true;
+                queue.drainTo(batch);
+                batch.remove(STOP);
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch, true);
+                batch.clear();
+                notifySummaryListener();
+            }
+            if (summariesDirty && System.currentTimeMillis() - summariesSavedAt >= SUMMARY_SAVE_INTERVAL_MS) {
+                saveSummaries();
+            }
+        }
+        System.out.println("History writer stopped");
+    }
+
+    /**
+     * Group commit: mã hóa cả lô vào 1 buffer, ghi 1 lần, fsync 1 lần
+     */
+    private void writeBatch(List<Pending> batch, boolean countUnread) {
+        try {
+            byte[][] lines = new byte[batch.size()][];
+            int total = 0;
+            for (int i = 0; i < lines.length; i++) {
+                Pending p = batch.get(i);
+                lines[i] = (escape(p.conversation) + "\t" + p.timestamp + "\t" + escape(p.sender) + "\t" +
+                        escape(p.message) + "\n").getBytes(StandardCharsets.UTF_8);
+                total += lines[i].length;
+            }
+            if (active.size > 0 && active.size + total > SEGMENT_BYTES) {
+                rollSegment();
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(total);
+            long[] positions = new long[lines.length];
+            long position = active.base + active.size;
+            for (int i = 0; i < lines.length; i++) {
+                positions[i] = position;
+                position += lines[i].length;
+                buffer.put(lines[i]);
+            }
+            buffer.flip();
+            long offset = active.size;
+            while (buffer.hasRemaining()) {
+                offset += active.channel.write(buffer, offset);
+            }
+            active.channel.force(false);
+            active.size = offset;
+
+            for (int i = 0; i < lines.length; i++) {
+                Pending p = batch.get(i);
+                PositionList conversationPositions = index.computeIfAbsent(p.conversation, k -> new PositionList());
+                conversationPositions.add(positions[i]);
+                activeSegmentIndex.computeIfAbsent(p.conversation, k -> new PositionList()).add(positions[i]);
+                Record record = new Record(positions[i], p.conversation, p.timestamp, p.sender, p.message);
+                recentCache.append(p.conversation, conversationPositions.size() - 1, record);
+                searchIndex.add(positions[i], searchText(p.sender, p.message));
+                updateSummary(p.conversation, p.timestamp, p.sender, p.message, countUnread);
+                p.written.complete(record);
+            }
+            appendedRecords.addAndGet(lines.length);
+            committedBatches.incrementAndGet();
+        } catch (IOException e) {
+            System.err.println("✗ Cannot write chat history: " + e.getMessage());
+            for (Pending p : batch) {
+                p.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Segment đang ghi đã đầy: lưu .idx + .fts của nó rồi mở segment mới nối tiếp
+     */
+    private void rollSegment() throws IOException {
+        Segment full = active;
+        writeSegmentIndex(full, activeSegmentIndex);
+        activeSegmentIndex = new LinkedHashMap<>();
+        active = createSegment(full.base + full.size);
+        // Vị trí của segment cũ không còn đổi → ghi .fts ở nền, writer không phải chờ
+        // (app tắt trước khi ghi xong thì lần mở sau tự quét lại segment)
+        File fts = ftsFile(full.base);
+        long from = full.base;
+        long to = full.base + full.size;
+        TaskExecutor.getInstance().execute("history-fts", () -> {
+            try {
+                sealSearchSegment(fts, from, to);
+            } catch (IOException e) {
+                System.err.println("✗ Cannot write search index " + fts.getName() + ": " + e.getMessage());
+            }
+        });
+        System.out.println("💾 History segment rolled: " + full.file.getName() + " → " + active.file.getName());
+        scheduleArchiving();
+    }
+
+    private Segment createSegment(long base) throws IOException {
+        File file = new File(dir, String.format("%020d.log", base));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(base, file, channel, channel.size());
+        synchronized (this) {
+            segments.put(base, segment);
+        }
+        return segment;
+    }
+
+    // ==================== Tóm tắt conversation ====================
+
+    private void updateSummary(String conversation, long timestamp, String sender, String message,
+                               boolean countUnread) {
+        boolean unread = countUnread && !sender.equals(currentUser) && !conversation.equals(viewing);
+        String preview = message.length() > PREVIEW_CHARS ? message.substring(0, PREVIEW_CHARS) : message;
+        int messageCount = count(conversation);
+        summaries.compute(conversation, (k, old) -> {
+            if (old != null && old.lastTimestamp > timestamp) {
+                // Record cũ hơn tin cuối đã biết (nhập lịch sử cũ) - chỉ cập nhật số đếm
+                return new Summary(k, messageCount, old.lastTimestamp, old.lastSender, old.lastMessage,
+                        old.unread + (unread ? 1 : 0));
+            }
+            return new Summary(k, messageCount, timestamp, sender, preview,
+                    (old == null ? 0 : old.unread) + (unread ? 1 : 0));
+        });
+        summariesDirty = true;
+    }
+
+    private void notifySummaryListener() {
+        Runnable listener = summaryListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                System.err.println("❌ History summary listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * summaries.dat: [phiên bản][ghi tới vị trí][số conversation][tên, số tin, thời điểm, người gửi, tin cuối, chưa đọc]...
+     * Chỉ gọi từ thread writer (hoặc khi writer chưa chạy / đã dừng) để khớp với vị trí đã ghi.
+     */
+    private void saveSummaries() {
+        Segment current = active;
+        if (current == null) {
+            return;
+        }
+        summariesDirty = false;
+        summariesSavedAt = System.currentTimeMillis();
+        File file = new File(dir, "summaries.dat");
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            List<Summary> snapshot = new ArrayList<>(summaries.values());
+            out.writeInt(SUMMARY_FILE_VERSION);
+            out.writeLong(current.base + current.size);
+            out.writeInt(snapshot.size());
+            for (Summary summary : snapshot) {
+                out.writeUTF(summary.conversation);
+                out.writeInt(summary.messageCount);
+                out.writeLong(summary.lastTimestamp);
+                out.writeUTF(summary.lastSender);
+                out.writeUTF(summary.lastMessage);
+                out.writeInt(summary.unread);
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Cannot save history summaries: " + e.getMessage());
+            summariesDirty = true;
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+    }
+
+    /**
+     * Nạp summaries.dat rồi bù các record ghi sau lần lưu cuối (app bị tắt đột ngột).
+     * Chưa có file (bản cũ nâng cấp lên) → dựng từ record cuối của mỗi conversation.
+     */
+    private void loadSummaries() {
+        File file = new File(dir, "summaries.dat");
+        long upTo = -1;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == SUMMARY_FILE_VERSION) {
+                    long savedUpTo = in.readLong();
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        String conversation = in.readUTF();
+                        summaries.put(conversation, new Summary(conversation, in.readInt(), in.readLong(),
+                                in.readUTF(), in.readUTF(), in.readInt()));
+                    }
+                    upTo = savedUpTo;
+                }
+            } catch (IOException e) {
+                System.err.println("⚠️ Corrupt history summaries, rebuilding");
+                summaries.clear();
+            }
+        }
+
+        for (Map.Entry<String, PositionList> entry : index.entrySet()) {
+            long[] positions = entry.getValue().toArray();
+            int from;
+            if (upTo < 0) {
+                from = Math.max(0, positions.length - 1); // Chỉ cần tin cuối
+            } else {
+                int i = Arrays.binarySearch(positions, upTo);
+                from = i >= 0 ? i : -i - 1;
+            }
+            for (int i = from; i < positions.length; i++) {
+                try {
+                    Record record = readRecord(positions[i]);
+                    if (record != null) {
+                        updateSummary(record.conversation, record.timestamp, record.sender, record.message, upTo >= 0);
+                    }
+                } catch (IOException e) {
+                    System.err.println("✗ Cannot read history record at " + positions[i] + ": " + e.getMessage());
+                }
+            }
+        }
+        if (summariesDirty) {
+            saveSummaries();
+        }
+    }
+
+    // ==================== Nén (archive) ====================
+
+    private void scheduleArchiving() {
+        if (archiving.compareAndSet(false, true)) {
+            archiveTask = TaskExecutor.getInstance().submit("history-archive", () -> {
+                try {
+                    archiveSealedSegments();
+                } finally {
+                    archiving.set(false);
+                }
+            });
+            if (archiveTask == null) {
+                archiving.set(false); // Bị từ chối - lần roll sau thử lại
+            }
+        }
+    }
+
+    /**
+     * Nén các segment đã đầy, cũ nhất trước: quá tuổi, hoặc để tổng phần chưa nén về dưới maxPlainBytes
+     */
+    private void archiveSealedSegments() {
+        List<Segment> plain = new ArrayList<>();
+        long plainBytes = 0;
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.archive == null) {
+                    plain.add(segment);
+                    plainBytes += segment.size;
+                }
+            }
+        }
+        long cutoff = System.currentTimeMillis() - archiveAfterMs;
+        for (Segment segment : plain) {
+            if (writer == null) {
+                return; // Store đã đóng
+            }
+            if (plainBytes <= maxPlainBytes && segment.file.lastModified() >= cutoff) {
+                continue;
+            }
+            try {
+                archiveSegment(segment);
+                plainBytes -= segment.size;
+            } catch (IOException e) {
+                System.err.println("✗ Cannot archive history segment " + segment.file.getName() + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * .log → .arc rồi thay segment trong bảng; .idx / .fts giữ nguyên vì vị trí không đổi
+     */
+    private void archiveSegment(Segment segment) throws IOException {
+        long start = System.currentTimeMillis();
+        File arc = new File(dir, String.format("%020d.arc", segment.base));
+        HistoryArchive.compress(segment.file, arc);
+        HistoryArchive archive = HistoryArchive.open(arc);
+        if (archive.rawSize() != segment.size) {
+            archive.close();
+            arc.delete();
+            throw new IOException("archive size mismatch (" + archive.rawSize() + " != " + segment.size + ")");
+        }
+        synchronized (this) {
+            if (writer == null) {
+                // Đóng giữa lúc nén: .log vẫn nguyên, bỏ .arc để lần mở sau nén lại
+                archive.close();
+                arc.delete();
+                return;
+            }
+            segments.put(segment.base, new Segment(segment.base, arc, null, segment.size, archive));
+        }
+        segment.close(); // Thread đang đọc dở segment cũ sẽ đọc lại từ archive (readRecord)
+        segment.file.delete();
+        System.out.println("🗜️ History segment archived: " + segment.file.getName() + " (" + segment.size / 1024 +
+                " KB → " + arc.length() / 1024 + " KB) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // ==================== Đọc ====================
+
+    private synchronized Segment segmentOf(long position) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        return entry == null ? null : entry.getValue();
+    }
+
+    private Record readRecord(long position) throws IOException {
+        try {
+            return readRecord(segmentOf(position), position);
+        } catch (ClosedChannelException e) {
+            // Segment vừa được nén và đóng giữa chừng → bảng đã trỏ sang archive
+            return readRecord(segmentOf(position), position);
+        }
+    }
+
+    private Record readRecord(Segment segment, long position) throws IOException {
+        if (segment == null) {
+            return null;
+        }
+
+        long offset = position - segment.base;
+        if (segment.archive != null) {
+            String line = segment.archive.readLine(offset);
+            return line == null ? null : parse(position, line);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK);
+        while (true) {
+            int read = segment.channel.read(buffer, offset + buffer.position());
+            if (read < 0 && buffer.position() == 0) {
+                return null;
+            }
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return parse(position, new String(buffer.array(), 0, i, StandardCharsets.UTF_8));
+                }
+            }
+            if (read < 0) {
+                return null; // Dòng chưa ghi xong
+            }
+            if (!buffer.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+
+    private static Record parse(long position, String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 4) {
+            return null;
+        }
+        try {
+            return new Record(position, unescape(fields[0]), Long.parseLong(fields[1]),
+                    unescape(fields[2]), unescape(fields[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ==================== Mở lại / khôi phục ====================
+
+    private void openSegment(File file, boolean last) throws IOException {
+        long base = baseOf(file);
+        if (file.getName().endsWith(".arc")) {
+            openArchivedSegment(file, base);
+            return;
+        }
+        File idx = new File(dir, String.format("%020d.idx", base));
+        File fts = ftsFile(base);
+        boolean haveIndex = !last && idx.exists() && loadSegmentIndex(idx);
+        boolean haveSearch = !last && fts.exists() && searchIndex.sealSegment(fts, base, base + file.length());
+        if (haveIndex && haveSearch) {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            synchronized (this) {
+                segments.put(base, new Segment(base, file, channel, channel.size()));
+            }
+            return;
+        }
+
+        Segment segment;
+        if (last) {
+            segment = createSegment(base); // Segment đang ghi: mở đọc + ghi
+        } else {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            segment = new Segment(base, file, channel, channel.size());
+            synchronized (this) {
+                segments.put(base, segment);
+            }
+        }
+        // Thiếu file nào thì quét lại để dựng phần đó (không nạp trùng phần đã có)
+        Map<String, PositionList> segmentIndex = last ? activeSegmentIndex : new LinkedHashMap<>();
+        long valid = scanSegment(segment, haveIndex ? null : segmentIndex, !haveSearch);
+        if (last) {
+            if (valid < segment.size) {
+                System.out.println("⚠️ Truncating torn history tail: " + (segment.size - valid) + " bytes");
+                segment.channel.truncate(valid);
+                segment.size = valid;
+            }
+            active = segment;
+        } else {
+            if (!haveIndex) {
+                writeSegmentIndex(segment, segmentIndex);
+            }
+            if (!haveSearch) {
+                sealSearchSegment(fts, base, base + segment.size);
+            }
+        }
+    }
+
+    private void openArchivedSegment(File file, long base) throws IOException {
+        HistoryArchive archive = HistoryArchive.open(file);
+        Segment segment = new Segment(base, file, null, archive.rawSize(), archive);
+        synchronized (this) {
+            segments.put(base, segment);
+        }
+        File idx = new File(dir, String.format("%020d.idx", base));
+        File fts = ftsFile(base);
+        boolean haveIndex = idx.exists() && loadSegmentIndex(idx);
+        boolean haveSearch = fts.exists() && searchIndex.sealSegment(fts, base, base + segment.size);
+        if (!haveIndex || !haveSearch) {
+            Map<String, PositionList> segmentIndex = new LinkedHashMap<>();
+            scanSegment(segment, haveIndex ? null : segmentIndex, !haveSearch);
+            if (!haveIndex) {
+                writeSegmentIndex(segment, segmentIndex);
+            }
+            if (!haveSearch) {
+                sealSearchSegment(fts, base, base + segment.size);
+            }
+        }
+    }
+
+    /**
+     * Ghi .fts cho segment đã đầy rồi chuyển chỉ mục tìm kiếm của nó từ heap sang file
+     */
+    private void sealSearchSegment(File fts, long from, long to) throws IOException {
+        searchIndex.writeSegment(fts, from, to);
+        if (!searchIndex.sealSegment(fts, from, to)) {
+            System.err.println("⚠️ Search index " + fts.getName() + " unreadable, keeping it in memory");
+        }
+    }
+
+    /**
+     * Đọc tuần tự segment để dựng index (segmentIndex != null: thêm vào cả index chung lẫn
+     * segmentIndex của riêng segment này) và/hoặc chỉ mục tìm kiếm.
+     * Trả về độ dài phần hợp lệ (tới dòng hoàn chỉnh cuối).
+     */
+    private long scanSegment(Segment segment, Map<String, PositionList> segmentIndex, boolean buildSearch)
+            throws IOException {
+        long valid = 0; // Offset ngay sau dòng hoàn chỉnh cuối cùng
+        byte[] chunk = new byte[64 * 1024];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream in = segment.archive != null ? segment.archive.rawStream() : new FileInputStream(segment.file)) {
+            long chunkStart = 0;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] != '\n') {
+                        continue;
+                    }
+                    line.write(chunk, lineStart, i - lineStart);
+                    long position = segment.base + valid;
+                    Record record = parse(position, line.toString(StandardCharsets.UTF_8));
+                    if (record != null && segmentIndex != null) {
+                        index.computeIfAbsent(record.conversation, k -> new PositionList()).add(position);
+                        segmentIndex.computeIfAbsent(record.conversation, k -> new PositionList()).add(position);
+                    }
+                    if (record != null && buildSearch) {
+                        searchIndex.add(position, searchText(record.sender, record.message));
+                    }
+                    line.reset();
+                    valid = chunkStart + i + 1;
+                    lineStart = i + 1;
+                }
+                line.write(chunk, lineStart, read - lineStart);
+                chunkStart += read;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * .idx: [số conversation][tên, số record, vị trí...]...
+     * inSegment: vị trí theo conversation chỉ của segment này (gom dần lúc ghi / lúc quét)
+     */
+    private void writeSegmentIndex(Segment segment, Map<String, PositionList> inSegment) throws IOException {
+        File idx = new File(dir, String.format("%020d.idx", segment.base));
+        File tmp = new File(idx.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(inSegment.size());
+            for (Map.Entry<String, PositionList> entry : inSegment.entrySet()) {
+                long[] positions = entry.getValue().toArray();
+                out.writeUTF(entry.getKey());
+                out.writeInt(positions.length);
+                for (long position : positions) {
+                    out.writeLong(position);
+                }
+            }
+        }
+        if (!tmp.renameTo(idx)) {
+            idx.delete();
+            tmp.renameTo(idx);
+        }
+    }
+
+    private boolean loadSegmentIndex(File idx) {
+        Map<String, long[]> loaded = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)))) {
+            int conversations = in.readInt();
+            for (int i = 0; i < conversations; i++) {
+                String conversation = in.readUTF();
+                long[] positions = new long[in.readInt()];
+                for (int j = 0; j < positions.length; j++) {
+                    positions[j] = in.readLong();
+                }
+                loaded.put(conversation, positions);
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Corrupt history index " + idx.getName() + ", rescanning segment");
+            return false;
+        }
+        for (Map.Entry<String, long[]> entry : loaded.entrySet()) {
+            PositionList positions = index.computeIfAbsent(entry.getKey(), k -> new PositionList());
+            for (long position : entry.getValue()) {
+                positions.add(position);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Nhập chat_history/<user>_<target>.txt (dòng "[yyyy-MM-dd HH:mm:ss] sender: message")
+     */
+    private void importLegacyHistory() {
+        String prefix = currentUser + "_";
+        File[] legacy = new File("chat_history/").listFiles((d, name) ->
+                name.startsWith(prefix) && name.endsWith(".txt"));
+        if (legacy == null || legacy.length == 0) {
+            return;
+        }
+        // Nhiều user trên cùng máy: "alice_x_bob.txt" là của user "alice_x", không phải của "alice"
+        List<String> longerUsers = new ArrayList<>();
+        for (String username : localUsernames()) {
+            if (username.length() > currentUser.length() && username.startsWith(prefix)) {
+                longerUsers.add(username);
+            }
+        }
+        List<Pending> batch = new ArrayList<>();
+        int imported = 0;
+        for (File file : legacy) {
+            String name = file.getName();
+            String owner = null;
+            for (String username : longerUsers) {
+                if (name.startsWith(username + "_")) {
+                    owner = username;
+                    break;
+                }
+            }
+            if (owner != null) {
+                System.out.println("⚠️ Skipping legacy history " + name + ": belongs to local user " + owner);
+                continue;
+            }
+            imported++;
+            String conversation = name.substring(prefix.length(), name.length() - ".txt".length());
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int close = line.indexOf("] ");
+                    int colon = close < 0 ? -1 : line.indexOf(": ", close + 2);
+                    if (!line.startsWith("[") || colon < 0) {
+                        continue;
+                    }
+                    long timestamp;
+                    try {
+                        timestamp = LocalDateTime.parse(line.substring(1, close), LEGACY_TIMESTAMP)
+                                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                    } catch (DateTimeParseException e) {
+                        timestamp = file.lastModified();
+                    }
+                    batch.add(new Pending(conversation, timestamp, line.substring(close + 2, colon),
+                            line.substring(colon + 2)));
+                    if (batch.size() == MAX_BATCH) {
+                        writeBatch(batch, false);
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Cannot import " + name + ": " + e.getMessage());
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch, false);
+        }
+        System.out.println("💾 Imported " + imported + " legacy history file(s): " + appendedRecords.get() + " messages");
+    }
+
+    /**
+     * Các user đã đăng ký trên máy này (users.txt, mỗi dòng "tên:mật khẩu")
+     */
+    private static List<String> localUsernames() {
+        List<String> usernames = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream("users.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    usernames.add(line.substring(0, colon));
+                }
+            }
+        } catch (IOException e) {
+            // Chưa có users.txt
+        }
+        return usernames;
+    }
+
+    // ==================== Tiện ích ====================
+
+    /**
+     * Nội dung đưa vào chỉ mục tìm kiếm: tin nhắn file chỉ lấy tên hiển thị,
+     * không lấy tên lưu trữ (<millis>_tên) để số không khớp mọi tin nhắn file
+     */
+    private static String searchText(String sender, String message) {
+        String[] file = SharedFileIndex.parseHistoryMessage(message);
+        return sender + " " + (file != null ? file[0] : message);
+    }
+
+    private File ftsFile(long base) {
+        return new File(dir, String.format("%020d.fts", base));
+    }
+
+    private static long baseOf(File segmentFile) {
+        String name = segmentFile.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('.')));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String escape(String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        StringBuilder out = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                switch (next) {
+                    case 't': out.append('\t'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    default: out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
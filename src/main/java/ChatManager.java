@@ -1,5 +1,6 @@
 import javafx.application.Platform;
-import javafx.animation.PauseTransition;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -8,7 +9,6 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.*;
 import javafx.stage.FileChooser;
-import javafx.util.Duration;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
@@ -22,8 +22,9 @@ public class ChatManager {
 
     // UI Components
     private VBox contactListContainer;
-    private VBox chatMessageContainer;
-    private ScrollPane chatScrollPane;
+    // Khung chat ảo hóa: chỉ các dòng đang hiện mới có node, cell được tái sử dụng
+    private ListView<ChatMessage> chatMessageList;
+    private final ObservableList<ChatMessage> chatMessages = FXCollections.observableArrayList();
     private TextField messageField;
     private Label chatTitleLabel;
     private String currentChatTarget;
@@ -32,11 +33,41 @@ public class ChatManager {
     private Button videoCallBtn;
     private Button addMemberBtn;
     private Button leaveGroupBtn;
+    private Button jumpToDateBtn;
     private Label typingIndicatorLabel;
     private javafx.animation.Timeline typingTimeout;
     private java.util.Set<String> typingUsers = new java.util.HashSet<>();
     private java.util.Map<String, javafx.animation.Timeline> typingTimeouts = new java.util.HashMap<>();
 
+    // Lịch sử phân trang: mở chat chỉ đọc trang cuối, cuộn lên đỉnh mới nạp trang cũ hơn.
+    // Mở từ kết quả tìm kiếm: đọc trang quanh tin nhắn khớp, cuộn xuống đáy nạp tiếp trang mới hơn.
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private String historyConversation;     // Conversation đang hiển thị lịch sử
+    private int historyLoadedFrom = 0;      // Vị trí record cũ nhất đã hiển thị
+    private int historyLoadedTo = 0;        // Ngay sau record mới nhất đã nạp (khi chưa ở cuối)
+    private boolean viewingTail = true;     // Đang hiển thị tới tin nhắn mới nhất → tin mới được thêm thẳng vào
+    private boolean loadingOlderHistory = false;
+    private boolean loadingNewerHistory = false;
+    private int historyGeneration = 0;      // Tăng mỗi lần mở chat → bỏ trang nạp cho lần mở trước
+
+    private enum PageMode { TAIL, OLDER, NEWER, AROUND }
+
+    // Tìm kiếm toàn văn lịch sử (HistorySearchIndex) từ ô tìm kiếm ở sidebar
+    private static final int SEARCH_LIMIT = 100;
+    private static final int SEARCH_DEBOUNCE_MS = 250;
+    private String searchQuery = "";        // Khác rỗng → sidebar đang hiện kết quả tìm kiếm
+    private int searchGeneration = 0;
+    private javafx.animation.PauseTransition searchDebounce;
+
+    // Danh sách liên hệ dựng lại sau mỗi lô tin nhắn được ghi → gom nhiều lần gọi thành 1 lần dựng
+    private final java.util.concurrent.atomic.AtomicBoolean contactRefreshPending =
+            new java.util.concurrent.atomic.AtomicBoolean(false);
+
+    // Ảnh preview đã giải mã (thu nhỏ sẵn) theo tên file lưu - LRU, chỉ FX thread đụng vào
+    private static final int PREVIEW_CACHE_SIZE = 32;  // ~500 KB mỗi ảnh 350x350
+    private static final int PREVIEW_SIZE = 350;
+    private final java.util.LinkedHashMap<String, Image> previewImages = new java.util.LinkedHashMap<>(16, 0.75f, true);
+
     public ChatManager(MainController mainController) {
         this.mainController = mainController;
     }
@@ -58,6 +89,8 @@ public class ChatManager {
         mainController.getPrimaryStage().setScene(scene);
         mainController.getPrimaryStage().setOnCloseRequest(e -> mainController.shutdown());
 
+        // Tin cuối / số chưa đọc đổi (thread ghi lịch sử) → sắp xếp lại danh sách liên hệ
+        mainController.getHistoryStore().setSummaryListener(this::refreshContactList);
         refreshContactList();
     }
 
@@ -138,26 +171,119 @@ public class ChatManager {
         searchField.setStyle("-fx-background-color: #F2F2F7; -fx-background-radius: 20; " +
                 "-fx-padding: 10 15; -fx-font-size: 14;");
         HBox.setHgrow(searchField, Priority.ALWAYS);
+
+        // Gõ liên tục chỉ tìm 1 lần sau khi ngừng gõ
+        searchDebounce = new javafx.animation.PauseTransition(javafx.util.Duration.millis(SEARCH_DEBOUNCE_MS));
+        searchDebounce.setOnFinished(e -> runSearch(searchField.getText().trim()));
+        searchField.textProperty().addListener((obs, oldText, newText) -> searchDebounce.playFromStart());
+
         searchBox.getChildren().add(searchField);
         return searchBox;
     }
 
+    /**
+     * Tìm trong toàn bộ lịch sử (ngoài FX thread), hiện kết quả thay cho danh sách liên hệ
+     */
+    private void runSearch(String query) {
+        searchQuery = query;
+        int generation = ++searchGeneration;
+        if (query.isEmpty()) {
+            refreshContactList();
+            return;
+        }
+        TaskExecutor.getInstance().execute("history-search", () -> {
+            long start = System.nanoTime();
+            ChatHistoryStore.SearchResult results = mainController.getHistoryStore().search(query, SEARCH_LIMIT);
+            System.out.println("🔍 History search \"" + query + "\": " + results.records.size() +
+                    (results.more ? "+" : "") + " result(s) in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            Platform.runLater(() -> {
+                if (generation == searchGeneration) {
+                    showSearchResults(results);
+                }
+            });
+        });
+    }
+
+    private void showSearchResults(ChatHistoryStore.SearchResult results) {
+        contactListContainer.getChildren().clear();
+        Label header = new Label(results.records.isEmpty() && !results.more ? "KHÔNG TÌM THẤY TIN NHẮN" :
+                "TIN NHẮN (" + results.records.size() + (results.more ? "+" : "") + ")");
+        header.setStyle("-fx-padding: 15 15 5 15; -fx-font-size: 12; " +
+                "-fx-font-weight: bold; -fx-text-fill: #8E8E93;");
+        contactListContainer.getChildren().add(header);
+        for (ChatHistoryStore.Record record : results.records) {
+            contactListContainer.getChildren().add(createSearchResultItem(record));
+        }
+        if (results.more) {
+            // Chỉ hiện các kết quả mới nhất / từ cuối khớp quá nhiều từ → nhắc gõ thêm
+            Label moreLabel = new Label("Còn kết quả khác - gõ thêm để thu hẹp tìm kiếm");
+            moreLabel.setWrapText(true);
+            moreLabel.setStyle("-fx-padding: 10 15 10 15; -fx-font-size: 12; -fx-text-fill: #8E8E93;");
+            contactListContainer.getChildren().add(moreLabel);
+        }
+    }
+
+    private VBox createSearchResultItem(ChatHistoryStore.Record record) {
+        boolean isGroup = record.conversation.endsWith("_group");
+        String name = isGroup ? record.conversation.substring(0, record.conversation.length() - "_group".length())
+                : record.conversation;
+        LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(record.timestamp),
+                java.time.ZoneId.systemDefault());
+
+        VBox item = new VBox(3);
+        item.setPadding(new Insets(10, 15, 10, 15));
+        item.setStyle("-fx-cursor: hand; -fx-background-color: white;");
+
+        HBox titleRow = new HBox(5);
+        Label nameLabel = new Label((isGroup ? "👥 " : "") + name);
+        nameLabel.setStyle("-fx-font-size: 14; -fx-font-weight: bold; -fx-text-fill: #000;");
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        Label timeLabel = new Label(time.format(DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm")));
+        timeLabel.setStyle("-fx-font-size: 11; -fx-text-fill: #8E8E93;");
+        titleRow.getChildren().addAll(nameLabel, spacer, timeLabel);
+
+        String[] file = SharedFileIndex.parseHistoryMessage(record.message);
+        String snippet = record.sender + ": " + (file != null ? "📎 " + file[0] : record.message.replace('\n', ' '));
+        Label snippetLabel = new Label(snippet.length() > 80 ? snippet.substring(0, 80) + "…" : snippet);
+        snippetLabel.setStyle("-fx-font-size: 13; -fx-text-fill: #8E8E93;");
+
+        item.getChildren().addAll(titleRow, snippetLabel);
+        item.setOnMouseEntered(e ->
+                item.setStyle("-fx-background-color: #F2F2F7; -fx-cursor: hand;"));
+        item.setOnMouseExited(e ->
+                item.setStyle("-fx-background-color: white; -fx-cursor: hand;"));
+        item.setOnMouseClicked(e -> openSearchResult(record, name, isGroup));
+        return item;
+    }
+
+    /**
+     * Mở cuộc trò chuyện chứa kết quả, nạp trang lịch sử quanh tin nhắn khớp và cuộn tới nó
+     */
+    private void openSearchResult(ChatHistoryStore.Record record, String name, boolean isGroup) {
+        if (isGroup) {
+            prepareGroupChat(name);
+        } else {
+            prepareDirectChat(name);
+        }
+        loadChatHistoryAround(record.conversation, record.position);
+        if (!isGroup) {
+            mainController.getNetworkManager().ensureConnection(name);
+        }
+    }
+
     private VBox createCenterPanel() {
         VBox centerPanel = new VBox();
         centerPanel.setStyle("-fx-background-color: #F0F0F0;");
 
         HBox chatHeader = createChatHeader();
 
-        chatMessageContainer = new VBox();
-        chatMessageContainer.setPadding(new Insets(10));
-        chatMessageContainer.setSpacing(8);
-        chatMessageContainer.setStyle("-fx-background-color: #F0F0F0;");
-
-        chatScrollPane = new ScrollPane(chatMessageContainer);
-        chatScrollPane.setFitToWidth(true);
-        chatScrollPane.setStyle("-fx-background-color: #F0F0F0; -fx-background: #F0F0F0;");
-        chatScrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
-        VBox.setVgrow(chatScrollPane, Priority.ALWAYS);
+        chatMessageList = new ListView<>(chatMessages);
+        chatMessageList.setCellFactory(list -> new MessageCell());
+        chatMessageList.setFocusTraversable(false);
+        chatMessageList.setStyle("-fx-background-color: #F0F0F0; -fx-control-inner-background: #F0F0F0; " +
+                "-fx-background-insets: 0; -fx-padding: 10 0 10 0;");
+        VBox.setVgrow(chatMessageList, Priority.ALWAYS);
 
         // Typing indicator
         typingIndicatorLabel = new Label();
@@ -167,7 +293,7 @@ public class ChatManager {
 
         HBox messageInputBox = createMessageInputBox();
 
-        centerPanel.getChildren().addAll(chatHeader, chatScrollPane, typingIndicatorLabel, messageInputBox);
+        centerPanel.getChildren().addAll(chatHeader, chatMessageList, typingIndicatorLabel, messageInputBox);
         return centerPanel;
     }
 
@@ -218,7 +344,17 @@ public class ChatManager {
         leaveGroupBtn.setOnAction(e -> leaveGroup());
         leaveGroupBtn.setVisible(false);
 
-        chatHeader.getChildren().addAll(chatTitleLabel, headerSpacer, addMemberBtn, leaveGroupBtn, voiceCallBtn, videoCallBtn);
+        // Nút nhảy tới tin nhắn theo ngày (hiện khi đang mở 1 cuộc trò chuyện)
+        jumpToDateBtn = new Button("📅");
+        jumpToDateBtn.setStyle("-fx-background-color: #8E8E93; -fx-text-fill: white; " +
+                "-fx-font-size: 16; -fx-font-weight: bold; " +
+                "-fx-min-width: 40; -fx-min-height: 40; " +
+                "-fx-background-radius: 50%; -fx-cursor: hand;");
+        jumpToDateBtn.setOnAction(e -> showJumpToDateDialog());
+        jumpToDateBtn.setVisible(false);
+
+        chatHeader.getChildren().addAll(chatTitleLabel, headerSpacer, jumpToDateBtn, addMemberBtn, leaveGroupBtn,
+                voiceCallBtn, videoCallBtn);
         return chatHeader;
     }
 
@@ -276,6 +412,7 @@ public class ChatManager {
                     String groupName = reader.readLine();
                     String creator = reader.readLine();
                     String membersLine = reader.readLine();
+                    String deliveryLine = reader.readLine(); // Có thể không có (file nhóm cũ)
 
                     if (groupName != null && creator != null && membersLine != null) {
                         ChatGroup group = new ChatGroup(groupName, creator);
@@ -283,6 +420,7 @@ public class ChatManager {
                         for (String member : members) {
                             group.addMember(member.trim());
                         }
+                        group.relayDelivery = "relay".equals(deliveryLine);
                         mainController.getNetworkManager().getChatGroups().put(groupName, group);
                         System.out.println("✓ Loaded group: " + groupName);
                     }
@@ -293,8 +431,19 @@ public class ChatManager {
         }
     }
 
+    /**
+     * Dựng lại danh sách liên hệ, cuộc trò chuyện có tin mới nhất lên đầu.
+     * Tin cuối / số chưa đọc lấy từ tóm tắt của ChatHistoryStore, không đọc file lịch sử.
+     */
     public void refreshContactList() {
+        if (!contactRefreshPending.compareAndSet(false, true)) {
+            return; // Đã có 1 lần dựng đang chờ FX thread
+        }
         Platform.runLater(() -> {
+            contactRefreshPending.set(false);
+            if (!searchQuery.isEmpty()) {
+                return; // Đang hiện kết quả tìm kiếm - xóa ô tìm kiếm sẽ dựng lại danh sách
+            }
             contactListContainer.getChildren().clear();
 
             if (!mainController.getNetworkManager().getDiscoveredPeers().isEmpty()) {
@@ -303,10 +452,11 @@ public class ChatManager {
                         "-fx-font-weight: bold; -fx-text-fill: #8E8E93;");
                 contactListContainer.getChildren().add(usersHeader);
 
-                for (String username : mainController.getNetworkManager().getDiscoveredPeers().keySet()) {
-                    if (!username.equals(mainController.getCurrentUser())) {
-                        contactListContainer.getChildren().add(createContactItem(username, false));
-                    }
+                List<String> usernames = new ArrayList<>(mainController.getNetworkManager().getDiscoveredPeers().keySet());
+                usernames.remove(mainController.getCurrentUser());
+                usernames.sort((a, b) -> Long.compare(lastActivity(b), lastActivity(a)));
+                for (String username : usernames) {
+                    contactListContainer.getChildren().add(createContactItem(username, false));
                 }
             }
 
@@ -316,14 +466,37 @@ public class ChatManager {
                         "-fx-font-weight: bold; -fx-text-fill: #8E8E93;");
                 contactListContainer.getChildren().add(groupsHeader);
 
-                for (String groupName : mainController.getNetworkManager().getChatGroups().keySet()) {
+                List<String> groupNames = new ArrayList<>(mainController.getNetworkManager().getChatGroups().keySet());
+                groupNames.sort((a, b) -> Long.compare(lastActivity(b + "_group"), lastActivity(a + "_group")));
+                for (String groupName : groupNames) {
                     contactListContainer.getChildren().add(createContactItem(groupName, true));
                 }
             }
         });
     }
 
+    private long lastActivity(String conversation) {
+        ChatHistoryStore.Summary summary = mainController.getHistoryStore().summary(conversation);
+        return summary == null ? 0 : summary.lastTimestamp;
+    }
+
+    /**
+     * Dòng xem trước tin cuối: "Bạn: ...", "bob: ..." (nhóm), file → 📎 tên file
+     */
+    private String previewOf(ChatHistoryStore.Summary summary, boolean isGroup) {
+        String message = summary.lastMessage.replace('\n', ' ');
+        String[] file = SharedFileIndex.parseHistoryMessage(message);
+        if (file != null) {
+            message = "📎 " + file[0];
+        }
+        if (summary.lastSender.equals(mainController.getCurrentUser())) {
+            return "Bạn: " + message;
+        }
+        return isGroup && !summary.lastSender.equals("System") ? summary.lastSender + ": " + message : message;
+    }
+
     private HBox createContactItem(String name, boolean isGroup) {
+        ChatHistoryStore.Summary summary = mainController.getHistoryStore().summary(isGroup ? name + "_group" : name);
         HBox item = new HBox(12);
         item.setPadding(new Insets(12, 15, 12, 15));
         item.setAlignment(Pos.CENTER_LEFT);
@@ -340,8 +513,23 @@ public class ChatManager {
         Label nameLabel = new Label(name);
         nameLabel.setStyle("-fx-font-size: 15; -fx-font-weight: bold; -fx-text-fill: #000;");
 
-        // Status với online indicator cho user hoặc số thành viên cho group
-        if (isGroup) {
+        // Tin cuối nếu đã có lịch sử; chưa có thì status với online indicator / số thành viên
+        if (summary != null) {
+            Label previewLabel = new Label(previewOf(summary, isGroup));
+            previewLabel.setStyle("-fx-font-size: 13; -fx-text-fill: " + (summary.unread > 0 ? "#000" : "#8E8E93") +
+                    ";" + (summary.unread > 0 ? " -fx-font-weight: bold;" : ""));
+            previewLabel.setMaxWidth(180);
+            if (isGroup) {
+                info.getChildren().addAll(nameLabel, previewLabel);
+            } else {
+                HBox statusBox = new HBox(5);
+                statusBox.setAlignment(Pos.CENTER_LEFT);
+                Label onlineIndicator = new Label("●");
+                onlineIndicator.setStyle("-fx-text-fill: #4CD964; -fx-font-size: 10;");
+                statusBox.getChildren().addAll(onlineIndicator, previewLabel);
+                info.getChildren().addAll(nameLabel, statusBox);
+            }
+        } else if (isGroup) {
             Label statusLabel = new Label(mainController.getNetworkManager().getChatGroups().get(name).members.size() + " thành viên");
             statusLabel.setStyle("-fx-font-size: 13; -fx-text-fill: #8E8E93;");
             info.getChildren().addAll(nameLabel, statusLabel);
@@ -359,6 +547,25 @@ public class ChatManager {
 
         item.getChildren().addAll(avatar, info);
 
+        // Thời điểm tin cuối + số tin chưa đọc
+        if (summary != null) {
+            VBox meta = new VBox(4);
+            meta.setAlignment(Pos.TOP_RIGHT);
+            LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(summary.lastTimestamp),
+                    java.time.ZoneId.systemDefault());
+            Label timeLabel = new Label(time.format(DateTimeFormatter.ofPattern(
+                    time.toLocalDate().equals(java.time.LocalDate.now()) ? "HH:mm" : "dd/MM")));
+            timeLabel.setStyle("-fx-font-size: 11; -fx-text-fill: #8E8E93;");
+            meta.getChildren().add(timeLabel);
+            if (summary.unread > 0) {
+                Label badge = new Label(summary.unread > 99 ? "99+" : String.valueOf(summary.unread));
+                badge.setStyle("-fx-background-color: #FF3B30; -fx-text-fill: white; -fx-font-size: 11; " +
+                        "-fx-font-weight: bold; -fx-padding: 1 6 1 6; -fx-background-radius: 10;");
+                meta.getChildren().add(badge);
+            }
+            item.getChildren().add(meta);
+        }
+
         item.setOnMouseEntered(e ->
                 item.setStyle("-fx-background-color: #F2F2F7; -fx-cursor: hand;"));
         item.setOnMouseExited(e ->
@@ -376,32 +583,42 @@ public class ChatManager {
     }
 
     public void startChatWithUser(String username) {
+        prepareDirectChat(username);
+        loadChatHistory(username);
+        mainController.getNetworkManager().ensureConnection(username);
+    }
+
+    public void startChatWithGroup(String groupName) {
+        prepareGroupChat(groupName);
+        loadChatHistory(groupName + "_group");
+    }
+
+    private void prepareDirectChat(String username) {
         currentChatTarget = username;
         isGroupChat = false;
-        chatMessageContainer.getChildren().clear();
+        chatMessages.clear();
         chatTitleLabel.setText(username);
 
         voiceCallBtn.setVisible(true);
         videoCallBtn.setVisible(true);
         addMemberBtn.setVisible(false);
         leaveGroupBtn.setVisible(false);
+        jumpToDateBtn.setVisible(true);
 
         // Clear typing indicators khi chuyển chat
         clearTypingIndicators();
-
-        loadChatHistory(username);
-        mainController.getNetworkManager().ensureConnection(username);
     }
 
-    public void startChatWithGroup(String groupName) {
+    private void prepareGroupChat(String groupName) {
         currentChatTarget = groupName;
         isGroupChat = true;
-        chatMessageContainer.getChildren().clear();
+        chatMessages.clear();
 
         voiceCallBtn.setVisible(false);
         videoCallBtn.setVisible(false);
         addMemberBtn.setVisible(true);
         leaveGroupBtn.setVisible(true);
+        jumpToDateBtn.setVisible(true);
 
         // Clear typing indicators khi chuyển chat
         clearTypingIndicators();
@@ -410,8 +627,6 @@ public class ChatManager {
         if (group != null) {
             chatTitleLabel.setText(groupName + " (" + group.members.size() + " thành viên)");
         }
-
-        loadChatHistory(groupName + "_group");
     }
 
     private void sendMessage() {
@@ -429,167 +644,280 @@ public class ChatManager {
             mainController.getNetworkManager().sendDirectMessage(currentChatTarget, message);
         }
 
-        displayMessage(mainController.getCurrentUser(), message, true);
-        saveChatHistory(currentChatTarget + (isGroupChat ? "_group" : ""), message, true);
+        String conversation = currentChatTarget + (isGroupChat ? "_group" : "");
+        if (viewingTail) {
+            displayMessage(mainController.getCurrentUser(), message, true);
+            saveChatHistory(conversation, message, true);
+        } else {
+            // Đang xem đoạn cũ (mở từ kết quả tìm kiếm): ghi xong thì nhảy về cuối
+            saveChatHistory(conversation, message, true).thenRun(() -> Platform.runLater(() -> {
+                if (conversation.equals(historyConversation)) {
+                    chatMessages.clear();
+                    loadChatHistory(conversation);
+                }
+            }));
+        }
     }
 
     public void displayMessage(String sender, String message, boolean isSent) {
         Platform.runLater(() -> {
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+            if (!viewingTail) {
+                return; // Tin mới đã vào lịch sử, hiện khi cuộn tới cuối
+            }
+            chatMessages.add(ChatMessage.text(sender, message, isSent, LocalDateTime.now()));
+            scrollToBottom();
+        });
+    }
+
+    /**
+     * Cuộn xuống tin nhắn mới nhất
+     */
+    private void scrollToBottom() {
+        if (!chatMessages.isEmpty()) {
+            chatMessageList.scrollTo(chatMessages.size() - 1);
+        }
+    }
 
-            HBox messageContainer = new HBox();
-            messageContainer.setPadding(new Insets(5, 10, 5, 10));
-            messageContainer.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+    /**
+     * Cell của khung chat. ListView chỉ tạo đủ cell cho phần đang hiện và dùng lại khi cuộn:
+     * bong bóng chữ (loại phổ biến nhất) giữ nguyên cây node, chỉ đổi nội dung / style;
+     * bong bóng file cũng vậy (FileBubble, tạo lần đầu cell hiện 1 file).
+     * Cell của dòng đầu tiên được hiện ra = đã cuộn tới đỉnh → nạp trang lịch sử cũ hơn;
+     * dòng cuối được hiện ra khi chưa ở cuối lịch sử → nạp trang mới hơn.
+     */
+    private class MessageCell extends ListCell<ChatMessage> {
+        private final HBox textContainer = new HBox();
+        private final VBox textBubble = new VBox(3);
+        private final Label senderLabel = new Label();
+        private final Label messageLabel = new Label();
+        private final Label timeLabel = new Label();
+        private FileBubble fileBubble;
+
+        MessageCell() {
+            setStyle("-fx-background-color: transparent; -fx-padding: 4 0 4 0;");
+            setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+            setPrefWidth(0); // Không tạo thanh cuộn ngang, bong bóng tự xuống dòng
+
+            textContainer.setPadding(new Insets(5, 10, 5, 10));
+            textBubble.setMaxWidth(300);
+            textBubble.setPadding(new Insets(10, 15, 10, 15));
+            senderLabel.setStyle("-fx-font-size: 12; -fx-text-fill: #666; -fx-font-weight: bold;");
+            messageLabel.setWrapText(true);
+            timeLabel.setAlignment(Pos.BOTTOM_RIGHT);
+            textContainer.getChildren().add(textBubble);
+        }
 
-            VBox messageBubble = new VBox(3);
-            messageBubble.setMaxWidth(300);
-            messageBubble.setPadding(new Insets(10, 15, 10, 15));
-            messageBubble.setStyle("-fx-background-color: " +
+        @Override
+        public void updateSelected(boolean selected) {
+            super.updateSelected(false); // Khung chat không có trạng thái chọn
+        }
+
+        @Override
+        protected void updateItem(ChatMessage item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            // Cell đo kích thước của VirtualFlow nằm trong parent ẩn - chỉ tính cell thật sự hiện
+            if (getParent() != null && getParent().isVisible()) {
+                if (getIndex() == 0) {
+                    Platform.runLater(ChatManager.this::loadOlderHistory);
+                }
+                if (getIndex() == chatMessages.size() - 1 && !viewingTail) {
+                    Platform.runLater(ChatManager.this::loadNewerHistory);
+                }
+            }
+            if (item.isFile()) {
+                if (fileBubble == null) {
+                    fileBubble = new FileBubble();
+                }
+                setGraphic(fileBubble.bind(item));
+                return;
+            }
+
+            boolean isSent = item.sent;
+            textContainer.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+            textBubble.setStyle("-fx-background-color: " +
                     (isSent ? "#007AFF" : "#E5E5EA") + ";" +
                     "-fx-background-radius: 18;" +
                     "-fx-border-radius: 18;");
 
-            if (isGroupChat && !isSent && !sender.equals(mainController.getCurrentUser())) {
-                Label senderLabel = new Label(sender);
-                senderLabel.setStyle("-fx-font-size: 12; -fx-text-fill: #666; -fx-font-weight: bold;");
-                messageBubble.getChildren().add(senderLabel);
+            textBubble.getChildren().clear();
+            if (isGroupChat && !isSent && !item.sender.equals(mainController.getCurrentUser())) {
+                senderLabel.setText(item.sender);
+                textBubble.getChildren().add(senderLabel);
             }
 
-            Label messageLabel = new Label(message);
-            messageLabel.setWrapText(true);
+            messageLabel.setText(item.text);
             messageLabel.setStyle("-fx-font-size: 14; -fx-text-fill: " +
                     (isSent ? "white" : "black") + ";");
-
-            Label timeLabel = new Label(timestamp);
+            timeLabel.setText(item.time.format(DateTimeFormatter.ofPattern("HH:mm")));
             timeLabel.setStyle("-fx-font-size: 10; -fx-text-fill: " +
                     (isSent ? "rgba(255,255,255,0.7)" : "rgba(0,0,0,0.5)") + ";");
-            timeLabel.setAlignment(Pos.BOTTOM_RIGHT);
-
-            messageBubble.getChildren().addAll(messageLabel, timeLabel);
-            messageContainer.getChildren().add(messageBubble);
-
-            chatMessageContainer.getChildren().add(messageContainer);
-
-            // Auto-scroll xuống tin nhắn mới nhất với delay nhỏ để UI render xong
-            Platform.runLater(() -> {
-                PauseTransition pause = new PauseTransition(Duration.millis(50));
-                pause.setOnFinished(e -> {
-                    chatScrollPane.setVvalue(1.0);
-                    // Đảm bảo scroll đến cuối cùng
-                    chatScrollPane.layout();
-                });
-                pause.play();
-            });
-        });
+            textBubble.getChildren().addAll(messageLabel, timeLabel);
+            setGraphic(textContainer);
+        }
     }
 
     public void displayFileMessage(String sender, String fileName, long fileSize, String uniqueFileName, boolean isSent) {
         Platform.runLater(() -> {
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+            if (!viewingTail) {
+                return;
+            }
+            chatMessages.add(ChatMessage.file(sender, fileName, fileSize, uniqueFileName, isSent, LocalDateTime.now()));
+            scrollToBottom();
+        });
+    }
+
+    /**
+     * Bong bóng file của 1 MessageCell: cây node tạo 1 lần rồi dùng lại khi cuộn, bind() chỉ đổi
+     * chữ / style / ảnh. Phần preview ảnh và phần file thường bật tắt bằng visible + managed.
+     */
+    private class FileBubble {
+        private final HBox container = new HBox();
+        private final VBox bubble = new VBox(5);
+        private final Label senderLabel = new Label();
+        // Ảnh: preview + tên, size và nút download nhỏ
+        private final ImageView imageView = new ImageView();
+        private final HBox imageInfo = new HBox(8);
+        private final Label imageNameLabel = new Label();
+        private final Label imageSizeLabel = new Label();
+        private final Button imageDownloadButton = new Button("⬇");
+        // File thường (hoặc ảnh không còn / lỗi): icon, tên, size và nút tải về
+        private final HBox fileInfo = new HBox(10);
+        private final Label fileIcon = new Label();
+        private final Label fileNameLabel = new Label();
+        private final Label fileSizeLabel = new Label();
+        private final Button downloadButton = new Button("⬇ Tải về");
+        private final Label timeLabel = new Label();
+
+        private File file;
+        private String fileName;
+
+        FileBubble() {
+            container.setPadding(new Insets(5, 10, 5, 10));
+            bubble.setPadding(new Insets(12, 15, 12, 15));
+
+            senderLabel.setStyle("-fx-font-size: 12; -fx-text-fill: #666; -fx-font-weight: bold;");
+
+            // Giới hạn kích thước ảnh, double click để xem full size
+            imageView.setPreserveRatio(true);
+            imageView.setFitWidth(PREVIEW_SIZE);
+            imageView.setFitHeight(PREVIEW_SIZE);
+            imageView.setStyle("-fx-cursor: hand;");
+            imageView.setOnMouseClicked(e -> {
+                if (e.getClickCount() == 2) {
+                    openImageInViewer(file);
+                }
+            });
+            imageNameLabel.setWrapText(true);
+            Region spacer = new Region();
+            HBox.setHgrow(spacer, Priority.ALWAYS);
+            imageDownloadButton.setOnAction(e -> downloadFile(file, fileName));
+            imageInfo.setAlignment(Pos.CENTER_LEFT);
+            imageInfo.getChildren().addAll(new VBox(2, imageNameLabel, imageSizeLabel), spacer, imageDownloadButton);
+
+            fileIcon.setStyle("-fx-font-size: 32;");
+            fileNameLabel.setWrapText(true);
+            fileInfo.setAlignment(Pos.CENTER_LEFT);
+            fileInfo.getChildren().addAll(fileIcon, new VBox(3, fileNameLabel, fileSizeLabel));
+            downloadButton.setOnAction(e -> downloadFile(file, fileName));
+
+            bubble.getChildren().addAll(senderLabel, imageView, imageInfo, fileInfo, downloadButton, timeLabel);
+            container.getChildren().add(bubble);
+        }
 
-            HBox messageContainer = new HBox();
-            messageContainer.setPadding(new Insets(5, 10, 5, 10));
-            messageContainer.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+        HBox bind(ChatMessage item) {
+            boolean isSent = item.sent;
+            file = new File("shared_files/" + item.uniqueFileName);
+            fileName = item.fileName;
+            boolean isImage = isImageFile(fileName);
 
-            VBox messageBubble = new VBox(5);
-            messageBubble.setMaxWidth(isImageFile(fileName) ? 400 : 350); // Rộng hơn cho ảnh
-            messageBubble.setPadding(new Insets(12, 15, 12, 15));
-            messageBubble.setStyle("-fx-background-color: " +
+            container.setAlignment(isSent ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
+            bubble.setMaxWidth(isImage ? 400 : 350); // Rộng hơn cho ảnh
+            bubble.setStyle("-fx-background-color: " +
                     (isSent ? "#007AFF" : "#E5E5EA") + ";" +
                     "-fx-background-radius: 18;" +
                     "-fx-border-radius: 18;");
 
-            if (isGroupChat && !isSent && !sender.equals(mainController.getCurrentUser())) {
-                Label senderLabel = new Label(sender);
-                senderLabel.setStyle("-fx-font-size: 12; -fx-text-fill: " +
-                        (isSent ? "rgba(255,255,255,0.8)" : "#666") + "; -fx-font-weight: bold;");
-                messageBubble.getChildren().add(senderLabel);
-            }
-
-            // KIỂM TRA: Nếu là ảnh, hiển thị preview
-            File file = new File("shared_files/" + uniqueFileName);
-            if (isImageFile(fileName) && file.exists()) {
-                try {
-                    // Hiển thị ảnh preview
-                    Image image = new Image(file.toURI().toString());
-                    ImageView imageView = new ImageView(image);
-                    
-                    // Giới hạn kích thước ảnh
-                    imageView.setPreserveRatio(true);
-                    imageView.setFitWidth(350);
-                    imageView.setFitHeight(350);
-                    
-                    // Bo góc cho ảnh
-                    imageView.setStyle("-fx-effect: dropshadow(gaussian, rgba(0,0,0,0.2), 5, 0, 0, 1);");
-                    
-                    // Click để xem full size
-                    imageView.setOnMouseClicked(e -> {
-                        if (e.getClickCount() == 2) { // Double click
-                            openImageInViewer(file);
-                        }
-                    });
-                    imageView.setStyle("-fx-cursor: hand;");
-                    
-                    messageBubble.getChildren().add(imageView);
-                    
-                    // Thêm tên file, size và nút download
-                    HBox fileInfoSmall = new HBox(8);
-                    fileInfoSmall.setAlignment(Pos.CENTER_LEFT);
-                    
-                    VBox fileTextInfo = new VBox(2);
-                    Label fileNameLabel = new Label(fileName);
-                    fileNameLabel.setWrapText(true);
-                    fileNameLabel.setStyle("-fx-font-size: 12; -fx-text-fill: " +
-                            (isSent ? "rgba(255,255,255,0.8)" : "#666") + ";");
-                    
-                    Label fileSizeLabel = new Label(formatFileSize(fileSize));
-                    fileSizeLabel.setStyle("-fx-font-size: 10; -fx-text-fill: " +
-                            (isSent ? "rgba(255,255,255,0.6)" : "rgba(0,0,0,0.5)") + ";");
-                    
-                    fileTextInfo.getChildren().addAll(fileNameLabel, fileSizeLabel);
-                    
-                    Region spacer = new Region();
-                    HBox.setHgrow(spacer, Priority.ALWAYS);
-                    
-                    // Nút download nhỏ cho ảnh
-                    Button downloadImgBtn = new Button("⬇");
-                    downloadImgBtn.setStyle("-fx-background-color: " + (isSent ? "rgba(255,255,255,0.2)" : "#0068FF") + ";" +
-                            "-fx-text-fill: white;" +
-                            "-fx-font-size: 14; -fx-font-weight: bold; -fx-padding: 4 8;" +
-                            "-fx-background-radius: 50%; -fx-cursor: hand; -fx-min-width: 28; -fx-min-height: 28;");
-                    downloadImgBtn.setOnAction(e -> downloadFile(file, fileName));
-                    
-                    fileInfoSmall.getChildren().addAll(fileTextInfo, spacer, downloadImgBtn);
-                    messageBubble.getChildren().add(fileInfoSmall);
-                    
-                } catch (Exception e) {
-                    System.err.println("❌ Error loading image: " + e.getMessage());
-                    // Fallback: hiển thị như file thông thường
-                    addFileInfoUI(messageBubble, fileName, fileSize, uniqueFileName, isSent, file);
-                }
+            boolean showSender = isGroupChat && !isSent && !item.sender.equals(mainController.getCurrentUser());
+            setShown(senderLabel, showSender);
+            senderLabel.setText(showSender ? item.sender : "");
+
+            Image preview = isImage ? previewImage(item.uniqueFileName, file) : null;
+            boolean showImage = preview != null && !preview.isError();
+            setShown(imageView, showImage);
+            setShown(imageInfo, showImage);
+            setShown(fileInfo, !showImage);
+            setShown(downloadButton, !showImage);
+            imageView.setImage(showImage ? preview : null);
+
+            if (showImage) {
+                imageNameLabel.setText(fileName);
+                imageNameLabel.setStyle("-fx-font-size: 12; -fx-text-fill: " +
+                        (isSent ? "rgba(255,255,255,0.8)" : "#666") + ";");
+                imageSizeLabel.setText(formatFileSize(item.fileSize));
+                imageSizeLabel.setStyle("-fx-font-size: 10; -fx-text-fill: " +
+                        (isSent ? "rgba(255,255,255,0.6)" : "rgba(0,0,0,0.5)") + ";");
+                imageDownloadButton.setStyle("-fx-background-color: " + (isSent ? "rgba(255,255,255,0.2)" : "#0068FF") + ";" +
+                        "-fx-text-fill: white;" +
+                        "-fx-font-size: 14; -fx-font-weight: bold; -fx-padding: 4 8;" +
+                        "-fx-background-radius: 50%; -fx-cursor: hand; -fx-min-width: 28; -fx-min-height: 28;");
             } else {
-                // File thông thường (không phải ảnh hoặc ảnh không tồn tại)
-                addFileInfoUI(messageBubble, fileName, fileSize, uniqueFileName, isSent, file);
+                fileIcon.setText(getFileIcon(fileName));
+                fileNameLabel.setText(fileName);
+                fileNameLabel.setStyle("-fx-font-size: 14; -fx-font-weight: bold; -fx-text-fill: " +
+                        (isSent ? "white" : "black") + ";");
+                fileSizeLabel.setText(formatFileSize(item.fileSize));
+                fileSizeLabel.setStyle("-fx-font-size: 12; -fx-text-fill: " +
+                        (isSent ? "rgba(255,255,255,0.7)" : "rgba(0,0,0,0.5)") + ";");
+                downloadButton.setStyle("-fx-background-color: " + (isSent ? "rgba(255,255,255,0.2)" : "#0068FF") + ";" +
+                        "-fx-text-fill: white;" +
+                        "-fx-font-size: 12; -fx-font-weight: bold; -fx-padding: 6 12;" +
+                        "-fx-background-radius: 8; -fx-cursor: hand;");
             }
 
-            Label timeLabel = new Label(timestamp);
+            timeLabel.setText(item.time.format(DateTimeFormatter.ofPattern("HH:mm")));
             timeLabel.setStyle("-fx-font-size: 10; -fx-text-fill: " +
                     (isSent ? "rgba(255,255,255,0.7)" : "rgba(0,0,0,0.5)") + ";");
-            messageBubble.getChildren().add(timeLabel);
+            return container;
+        }
+    }
 
-            messageContainer.getChildren().add(messageBubble);
-            chatMessageContainer.getChildren().add(messageContainer);
-            
-            // Auto-scroll xuống tin nhắn mới nhất
-            Platform.runLater(() -> {
-                PauseTransition pause = new PauseTransition(Duration.millis(50));
-                pause.setOnFinished(e -> {
-                    chatScrollPane.setVvalue(1.0);
-                    chatScrollPane.layout();
-                });
-                pause.play();
-            });
+    private static void setShown(javafx.scene.Node node, boolean shown) {
+        node.setVisible(shown);
+        node.setManaged(shown);
+    }
+
+    /**
+     * Preview của ảnh (ảnh thu nhỏ của SharedFileIndex nếu có), null nếu file không còn.
+     * Giải mã ở thread nền và thu nhỏ ngay lúc giải mã → FX thread không chặn, không giữ ảnh gốc;
+     * ảnh đã giải mã được giữ lại cho các lần cell cuộn qua sau.
+     */
+    private Image previewImage(String uniqueFileName, File file) {
+        Image image = previewImages.get(uniqueFileName);
+        if (image != null) {
+            return image;
+        }
+        if (!file.exists()) {
+            return null;
+        }
+        image = new Image(SharedFileIndex.getInstance().previewOf(uniqueFileName).toURI().toString(),
+                PREVIEW_SIZE, PREVIEW_SIZE, true, true, true);
+        image.errorProperty().addListener((obs, wasError, isError) -> {
+            if (isError) {
+                System.err.println("❌ Error loading image: " + uniqueFileName);
+                chatMessageList.refresh(); // Cell đang hiện ảnh này chuyển sang dạng file thường
+            }
         });
+        previewImages.put(uniqueFileName, image);
+        if (previewImages.size() > PREVIEW_CACHE_SIZE) {
+            java.util.Iterator<String> eldest = previewImages.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return image;
     }
 
     private void selectAndSendFile() {
@@ -638,7 +966,10 @@ public class ChatManager {
         scrollPane.setFitToWidth(true);
         scrollPane.setPrefHeight(150);
 
-        content.getChildren().addAll(groupNameField, membersLabel, scrollPane);
+        CheckBox relayCheckBox = new CheckBox("Chuyển tiếp qua thành viên (nhóm đông, mạng yếu)");
+        relayCheckBox.setStyle("-fx-font-size: 13;");
+
+        content.getChildren().addAll(groupNameField, membersLabel, scrollPane, relayCheckBox);
         dialog.getDialogPane().setContent(content);
 
         ButtonType createButtonType = new ButtonType("Tạo nhóm", ButtonBar.ButtonData.OK_DONE);
@@ -650,6 +981,7 @@ public class ChatManager {
                 if (!groupName.isEmpty()) {
                     ChatGroup group = new ChatGroup(groupName, mainController.getCurrentUser());
                     group.addMember(mainController.getCurrentUser());
+                    group.relayDelivery = relayCheckBox.isSelected();
 
                     for (CheckBox cb : checkBoxes) {
                         if (cb.isSelected()) {
@@ -668,6 +1000,54 @@ public class ChatManager {
         });
     }
 
+    /**
+     * Chọn 1 ngày rồi mở lịch sử quanh tin nhắn đầu tiên từ ngày đó trở đi.
+     * Tra qua readBetween (ngoài FX thread): segment/block đã nén nằm ngoài khoảng thời gian bị bỏ qua.
+     */
+    private void showJumpToDateDialog() {
+        if (currentChatTarget == null) {
+            return;
+        }
+        String conversation = isGroupChat ? currentChatTarget + "_group" : currentChatTarget;
+
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setTitle("Đi tới ngày");
+        dialog.setHeaderText("Xem tin nhắn từ ngày:");
+
+        DatePicker datePicker = new DatePicker(java.time.LocalDate.now());
+        VBox content = new VBox(15, datePicker);
+        content.setPadding(new Insets(20));
+        dialog.getDialogPane().setContent(content);
+
+        ButtonType goButtonType = new ButtonType("Đi tới", ButtonBar.ButtonData.OK_DONE);
+        dialog.getDialogPane().getButtonTypes().addAll(goButtonType, ButtonType.CANCEL);
+
+        dialog.showAndWait().ifPresent(response -> {
+            java.time.LocalDate date = datePicker.getValue();
+            if (response != goButtonType || date == null) {
+                return;
+            }
+            long from = date.atStartOfDay(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+            TaskExecutor.getInstance().execute("history-jump", () -> {
+                List<ChatHistoryStore.Record> first =
+                        mainController.getHistoryStore().readBetween(conversation, from, Long.MAX_VALUE, 1);
+                Platform.runLater(() -> {
+                    String current = isGroupChat ? currentChatTarget + "_group" : currentChatTarget;
+                    if (!conversation.equals(current)) {
+                        return; // Đã chuyển sang cuộc trò chuyện khác
+                    }
+                    if (first.isEmpty()) {
+                        showAlert("Thông báo", "Không có tin nhắn nào từ ngày " +
+                                date.format(DateTimeFormatter.ofPattern("dd/MM/yyyy")) + ".");
+                        return;
+                    }
+                    chatMessages.clear();
+                    loadChatHistoryAround(conversation, first.get(0).position);
+                });
+            });
+        });
+    }
+
     private void showAddMemberDialog() {
         if (currentChatTarget == null || !isGroupChat) {
             showAlert("Lỗi", "Vui lòng chọn một nhóm!");
@@ -763,10 +1143,15 @@ public class ChatManager {
                 // Chuyển về màn hình chọn chat
                 currentChatTarget = null;
                 isGroupChat = false;
-                chatMessageContainer.getChildren().clear();
+                chatMessages.clear();
+                historyConversation = null;
+                mainController.getHistoryStore().setViewing(null);
+                historyGeneration++;
+                viewingTail = true;
                 chatTitleLabel.setText("Chọn một cuộc trò chuyện");
                 addMemberBtn.setVisible(false);
                 leaveGroupBtn.setVisible(false);
+                jumpToDateBtn.setVisible(false);
                 
                 refreshContactList();
                 showAlert("Thông báo", "Đã rời nhóm!");
@@ -774,56 +1159,156 @@ public class ChatManager {
         });
     }
 
+    /**
+     * Mở lịch sử: chỉ đọc HISTORY_PAGE_SIZE record cuối (qua index của ChatHistoryStore,
+     * ngoài FX thread) rồi dựng cả trang trong 1 lần Platform.runLater
+     */
     private void loadChatHistory(String target) {
-        String filename = "chat_history/" + mainController.getCurrentUser() + "_" + target + ".txt";
-        File file = new File(filename);
+        int count = mainController.getHistoryStore().count(target);
+        historyConversation = target;
+        mainController.getHistoryStore().setViewing(target);
+        historyGeneration++;
+        historyLoadedFrom = Math.max(0, count - HISTORY_PAGE_SIZE);
+        historyLoadedTo = count;
+        viewingTail = true;
+        loadingOlderHistory = true;
+        loadingNewerHistory = false;
+        loadHistoryPage(target, historyLoadedFrom, count, PageMode.TAIL, 0);
+    }
 
-        if (file.exists()) {
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-					if (line.matches("\\[.*\\] .*: .*")) {
-                        String rest = line.substring(line.indexOf("]") + 2);
-                        String sender = rest.substring(0, rest.indexOf(":"));
-                        String message = rest.substring(rest.indexOf(":") + 2);
-
-                        boolean isSent = sender.equals(mainController.getCurrentUser());
-
-                        if (message.startsWith("[FILE:") && message.endsWith("]")) {
-                            String fileName = message.substring(6, message.length() - 1);
-                            File sharedDir = new File("shared_files/");
-                            File[] matchingFiles = sharedDir.listFiles((dir, name) ->
-                                    name.endsWith("_" + fileName) || name.equals(fileName));
-
-                            if (matchingFiles != null && matchingFiles.length > 0) {
-                                File foundFile = matchingFiles[0];
-                                displayFileMessage(sender, fileName, foundFile.length(),
-                                        foundFile.getName(), isSent);
-                            } else {
-                                displayMessage(sender, message, isSent);
-                            }
-                        } else {
-                            displayMessage(sender, message, isSent);
+    /**
+     * Mở lịch sử quanh 1 record (kết quả tìm kiếm): trang HISTORY_PAGE_SIZE record
+     * có record đó ở giữa, cuộn tới đúng record
+     */
+    private void loadChatHistoryAround(String target, long position) {
+        int match = mainController.getHistoryStore().indexOf(target, position);
+        if (match < 0) {
+            loadChatHistory(target);
+            return;
+        }
+        int count = mainController.getHistoryStore().count(target);
+        historyConversation = target;
+        mainController.getHistoryStore().setViewing(target);
+        historyGeneration++;
+        historyLoadedFrom = Math.max(0, match - HISTORY_PAGE_SIZE / 2);
+        historyLoadedTo = Math.min(count, historyLoadedFrom + HISTORY_PAGE_SIZE);
+        viewingTail = historyLoadedTo >= count;
+        loadingOlderHistory = true;
+        loadingNewerHistory = false;
+        loadHistoryPage(target, historyLoadedFrom, historyLoadedTo, PageMode.AROUND, match - historyLoadedFrom);
+    }
+
+    /**
+     * Nạp trang cũ hơn trang đang hiển thị, chèn lên đầu và giữ nguyên chỗ đang đọc
+     */
+    private void loadOlderHistory() {
+        if (loadingOlderHistory || historyConversation == null || historyLoadedFrom == 0) {
+            return;
+        }
+        int to = historyLoadedFrom;
+        historyLoadedFrom = Math.max(0, to - HISTORY_PAGE_SIZE);
+        loadingOlderHistory = true;
+        loadHistoryPage(historyConversation, historyLoadedFrom, to, PageMode.OLDER, 0);
+    }
+
+    /**
+     * Nạp trang mới hơn trang đang hiển thị (chỉ khi đang xem đoạn giữa lịch sử), nối xuống cuối
+     */
+    private void loadNewerHistory() {
+        if (loadingNewerHistory || viewingTail || historyConversation == null) {
+            return;
+        }
+        int from = historyLoadedTo;
+        int count = mainController.getHistoryStore().count(historyConversation);
+        if (from >= count) {
+            viewingTail = true;
+            return;
+        }
+        historyLoadedTo = Math.min(count, from + HISTORY_PAGE_SIZE);
+        loadingNewerHistory = true;
+        loadHistoryPage(historyConversation, from, historyLoadedTo, PageMode.NEWER, 0);
+    }
+
+    private void loadHistoryPage(String target, int from, int to, PageMode mode, int anchor) {
+        int generation = historyGeneration;
+        TaskExecutor.getInstance().execute("history-page", () -> {
+            List<ChatHistoryStore.Record> records = mainController.getHistoryStore().read(target, from, to);
+            // Tra file đính kèm qua SharedFileIndex (nạp index lần đầu ở thread nền)
+            List<SharedFileIndex.Entry> files = new ArrayList<>(records.size());
+            for (ChatHistoryStore.Record record : records) {
+                files.add(findSharedFile(record));
+            }
+
+            Platform.runLater(() -> {
+                if (generation != historyGeneration) {
+                    return; // Đã chuyển sang / mở lại cuộc trò chuyện khác
+                }
+                List<ChatMessage> page = new ArrayList<>(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    page.add(toChatMessage(records.get(i), files.get(i)));
+                }
+
+                switch (mode) {
+                    case NEWER:
+                        chatMessages.addAll(page);
+                        loadingNewerHistory = false;
+                        if (historyLoadedTo >= mainController.getHistoryStore().count(target)) {
+                            viewingTail = true; // Đã tới tin nhắn mới nhất
                         }
-                    }
+                        return;
+                    case OLDER:
+                        chatMessages.addAll(0, page);
+                        chatMessageList.scrollTo(page.size()); // Giữ dòng đang xem ở đỉnh
+                        break;
+                    case AROUND:
+                        chatMessages.addAll(0, page);
+                        chatMessageList.scrollTo(Math.min(anchor, chatMessages.size() - 1));
+                        break;
+                    default:
+                        // Chèn lên đầu: tin nhắn mới đến trong lúc đọc đã nằm cuối danh sách
+                        chatMessages.addAll(0, page);
+                        scrollToBottom();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                loadingOlderHistory = false;
+            });
+        });
+    }
+
+    private ChatMessage toChatMessage(ChatHistoryStore.Record record, SharedFileIndex.Entry sharedFile) {
+        String sender = record.sender;
+        String message = record.message;
+        boolean isSent = sender.equals(mainController.getCurrentUser());
+        LocalDateTime time = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(record.timestamp),
+                java.time.ZoneId.systemDefault());
+
+        if (sharedFile != null) {
+            return ChatMessage.file(sender, sharedFile.displayName, sharedFile.size, sharedFile.storedName, isSent, time);
         }
+        return ChatMessage.text(sender, message, isSent, time);
     }
 
-    private void saveChatHistory(String target, String message, boolean isSent) {
-        String filename = "chat_history/" + mainController.getCurrentUser() + "_" + target + ".txt";
-        try (FileWriter writer = new FileWriter(filename, true)) {
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            String sender = isSent ? mainController.getCurrentUser() : (isGroupChat ? message.split(":")[0] : currentChatTarget);
-            String actualMessage = isSent ? message : (isGroupChat && message.contains(":") ?
-                    message.substring(message.indexOf(":") + 1).trim() : message);
-            writer.write(String.format("[%s] %s: %s\n", timestamp, sender, actualMessage));
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * "[FILE:tên|tên lưu trữ]" → file tương ứng trong shared_files/ (null nếu không phải file / không còn).
+     * Lịch sử cũ chỉ có "[FILE:tên]" → đoán theo tên + thời điểm tin nhắn.
+     */
+    private SharedFileIndex.Entry findSharedFile(ChatHistoryStore.Record record) {
+        String[] file = SharedFileIndex.parseHistoryMessage(record.message);
+        if (file == null) {
+            return null;
+        }
+        if (file[1] == null) {
+            return SharedFileIndex.getInstance().findByDisplayName(file[0], record.timestamp);
         }
+        SharedFileIndex.Entry entry = SharedFileIndex.getInstance().find(file[1]);
+        return entry != null && entry.file().exists() ? entry : null;
+    }
+
+    private java.util.concurrent.CompletableFuture<ChatHistoryStore.Record> saveChatHistory(
+            String target, String message, boolean isSent) {
+        String sender = isSent ? mainController.getCurrentUser() : (isGroupChat ? message.split(":")[0] : currentChatTarget);
+        String actualMessage = isSent ? message : (isGroupChat && message.contains(":") ?
+                message.substring(message.indexOf(":") + 1).trim() : message);
+        return mainController.getHistoryStore().append(target, sender, actualMessage);
     }
 
     private String getFileIcon(String fileName) {
@@ -1027,37 +1512,6 @@ public class ChatManager {
         }
     }
     
-    private void addFileInfoUI(VBox messageBubble, String fileName, long fileSize, String uniqueFileName, boolean isSent, File file) {
-        HBox fileInfo = new HBox(10);
-        fileInfo.setAlignment(Pos.CENTER_LEFT);
-
-        Label fileIcon = new Label(getFileIcon(fileName));
-        fileIcon.setStyle("-fx-font-size: 32;");
-
-        VBox fileDetails = new VBox(3);
-        Label fileNameLabel = new Label(fileName);
-        fileNameLabel.setWrapText(true);
-        fileNameLabel.setStyle("-fx-font-size: 14; -fx-font-weight: bold; -fx-text-fill: " +
-                (isSent ? "white" : "black") + ";");
-
-        Label fileSizeLabel = new Label(formatFileSize(fileSize));
-        fileSizeLabel.setStyle("-fx-font-size: 12; -fx-text-fill: " +
-                (isSent ? "rgba(255,255,255,0.7)" : "rgba(0,0,0,0.5)") + ";");
-
-        fileDetails.getChildren().addAll(fileNameLabel, fileSizeLabel);
-        fileInfo.getChildren().addAll(fileIcon, fileDetails);
-
-        Button downloadBtn = new Button("⬇ Tải về");
-        downloadBtn.setStyle("-fx-background-color: " + (isSent ? "rgba(255,255,255,0.2)" : "#0068FF") + ";" +
-                "-fx-text-fill: white;" +
-                "-fx-font-size: 12; -fx-font-weight: bold; -fx-padding: 6 12;" +
-                "-fx-background-radius: 8; -fx-cursor: hand;");
-
-        downloadBtn.setOnAction(e -> downloadFile(file, fileName));
-
-        messageBubble.getChildren().addAll(fileInfo, downloadBtn);
-    }
-
     // Getters
     public VBox getContactListContainer() { return contactListContainer; }
     public String getCurrentChatTarget() { return currentChatTarget; }
@@ -0,0 +1,40 @@
+import java.time.LocalDateTime;
+
+/**
+ * Chat Message - 1 dòng trong khung chat (model nhẹ cho ListView, không giữ node UI)
+ */
+public class ChatMessage {
+    public final String sender;
+    public final String text;
+    public final boolean sent;
+    public final LocalDateTime time;
+
+    // Tin nhắn file (fileName == null → tin nhắn chữ)
+    public final String fileName;
+    public final long fileSize;
+    public final String uniqueFileName;
+
+    private ChatMessage(String sender, String text, boolean sent, LocalDateTime time,
+                        String fileName, long fileSize, String uniqueFileName) {
+        this.sender = sender;
+        this.text = text;
+        this.sent = sent;
+        this.time = time;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.uniqueFileName = uniqueFileName;
+    }
+
+    public static ChatMessage text(String sender, String text, boolean sent, LocalDateTime time) {
+        return new ChatMessage(sender, text, sent, time, null, 0, null);
+    }
+
+    public static ChatMessage file(String sender, String fileName, long fileSize, String uniqueFileName,
+                                   boolean sent, LocalDateTime time) {
+        return new ChatMessage(sender, "[FILE:" + fileName + "]", sent, time, fileName, fileSize, uniqueFileName);
+    }
+
+    public boolean isFile() {
+        return fileName != null;
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chat Transport - Event loop NIO cho TẤT CẢ kết nối chat
+ *
+ * - 1 thread I/O (Selector) lo accept/read/write cho mọi peer
+ * - Tách frame nhị phân (FrameCodec) rồi chuyển cho Listener
+ * - Listener chạy trên 1 thread dispatch riêng để giữ đúng thứ tự message
+ *   và không chặn vòng lặp I/O khi xử lý (ghi file, cập nhật UI...)
+ * → Số thread KHÔNG tăng theo số peer
+ */
+public class ChatTransport {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_FRAMES = 64;          // Số frame tối đa gộp trong 1 lần ghi
+    private static final int MAX_BATCH_BYTES = 256 * 1024;   // Ngưỡng byte để ngừng gộp thêm
+    private static final long CLOSE_LINGER_MS = 5000;        // Đóng êm quá lâu (peer không đóng lại) → đóng hẳn
+
+    public interface Listener {
+        void onFrame(PeerConnection connection, Frame frame);
+        void onClosed(PeerConnection connection);
+    }
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Listener listener;
+    private volatile boolean running = false;
+
+    // Các thao tác phải chạy trên thread I/O (register, bật OP_WRITE, close)
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    // Kết nối đang đóng êm, chờ tới closeDeadline - chỉ thread I/O truy cập
+    private final List<PeerConnection> lingering = new ArrayList<>();
+    // Buffer đọc dùng chung - chỉ thread I/O truy cập (heap để decode String không cần copy)
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+            r -> TaskExecutor.getInstance().newDedicatedThread("chat-dispatch", r));
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        TaskExecutor.getInstance().startDedicated("chat-io", this::runLoop);
+    }
+
+    /**
+     * Mở kết nối ra ngoài KHÔNG chặn: connect chạy trên event loop (OP_CONNECT),
+     * future hoàn thành khi TCP đã kết nối hoặc lỗi / quá timeoutMs
+     */
+    public CompletableFuture<PeerConnection> connectAsync(String ip, int port, int timeoutMs) {
+        CompletableFuture<PeerConnection> future = new CompletableFuture<>();
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+            PeerConnection connection = new PeerConnection(this, channel, null);
+            connection.outbound = true;
+            connection.connectFuture = future;
+            InetSocketAddress address = new InetSocketAddress(ip, port);
+            submit(() -> startConnect(connection, address));
+
+            future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((c, error) -> {
+                if (error != null) {
+                    close(connection);
+                }
+            });
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Báo cho thread I/O biết connection có frame cần gửi (chỉ wakeup 1 lần cho cả loạt)
+     */
+    void scheduleWrite(PeerConnection connection) {
+        if (connection.writeScheduled.compareAndSet(false, true)) {
+            submit(() -> enableWrite(connection));
+        }
+    }
+
+    void close(PeerConnection connection) {
+        submit(() -> closeConnection(connection));
+    }
+
+    void closeGracefully(PeerConnection connection) {
+        submit(() -> {
+            lingerThenClose(connection);
+            if (connection.inFlight == null && !connection.hasQueuedFrames()) {
+                shutdownOutput(connection);
+            } else {
+                enableWrite(connection); // write() gửi FIN sau khi ghi xong
+            }
+        });
+    }
+
+    /**
+     * Hẹn đóng hẳn sau CLOSE_LINGER_MS - vòng lặp I/O tự kiểm tra hạn (select có timeout),
+     * không cần thread hẹn giờ riêng. Chỉ gọi trên thread I/O.
+     */
+    private void lingerThenClose(PeerConnection connection) {
+        if (connection.closed || connection.closeDeadline != 0) {
+            return;
+        }
+        connection.closeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_LINGER_MS);
+        lingering.add(connection);
+    }
+
+    /**
+     * Đóng các kết nối đóng êm đã quá hạn, trả về thời gian (ms) tới hạn gần nhất còn lại (0 = không có)
+     */
+    private long closeExpiredLingering() {
+        long now = System.nanoTime();
+        long nextTimeout = 0;
+        Iterator<PeerConnection> it = lingering.iterator();
+        while (it.hasNext()) {
+            PeerConnection connection = it.next();
+            long remaining = connection.closeDeadline - now;
+            if (connection.closed || remaining <= 0) {
+                it.remove();
+                closeConnection(connection);
+                continue;
+            }
+            long remainingMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+            nextTimeout = nextTimeout == 0 ? remainingMs : Math.min(nextTimeout, remainingMs);
+        }
+        return nextTimeout;
+    }
+
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        dispatcher.shutdown();
+    }
+
+    private void submit(Runnable task) {
+        pendingTasks.add(task);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void runLoop() {
+        System.out.println("✓ Chat I/O loop started");
+        try {
+            while (running) {
+                // Có kết nối đang đóng êm → thức dậy đúng hạn của nó (0 = chờ tới khi có sự kiện)
+                selector.select(closeExpiredLingering());
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            PeerConnection connection = (PeerConnection) key.attachment();
+                            if (key.isConnectable()) {
+                                finishConnect(connection);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(connection);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // Lỗi của 1 kết nối (kể cả frame dị dạng) chỉ đóng kết nối đó, không dừng cả vòng lặp
+                        if (key.attachment() instanceof PeerConnection) {
+                            PeerConnection connection = (PeerConnection) key.attachment();
+                            if (e instanceof RuntimeException) {
+                                System.err.println("⚠️ Closing connection " + connection.peerName + ": " + e);
+                            }
+                            if (connection.connectFuture != null) {
+                                connection.connectFuture.completeExceptionally(e); // Giữ lỗi gốc (refused...)
+                            }
+                            closeConnection(connection);
+                        } else if (e instanceof RuntimeException) {
+                            System.err.println("⚠️ Chat accept failed: " + e);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("Chat I/O loop stopped: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        register(new PeerConnection(this, channel, null));
+    }
+
+    private void startConnect(PeerConnection connection, InetSocketAddress address) {
+        try {
+            if (connection.channel.connect(address)) {
+                register(connection);
+                connection.connectFuture.complete(connection);
+            } else {
+                connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            }
+        } catch (IOException e) {
+            connection.connectFuture.completeExceptionally(e);
+            closeConnection(connection);
+        }
+    }
+
+    private void finishConnect(PeerConnection connection) throws IOException {
+        if (!connection.channel.finishConnect()) {
+            return;
+        }
+        int ops = SelectionKey.OP_READ;
+        if (connection.hasQueuedFrames()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+        connection.connectFuture.complete(connection);
+    }
+
+    private void register(PeerConnection connection) {
+        try {
+            connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            if (connection.hasQueuedFrames()) {
+                enableWrite(connection);
+            }
+        } catch (IOException e) {
+            closeConnection(connection);
+        }
+    }
+
+    private void enableWrite(PeerConnection connection) {
+        SelectionKey key = connection.key;
+        if (key == null || !key.isValid() || (key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+            // Chưa register / chưa connect xong - sẽ bật OP_WRITE sau
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    private void read(PeerConnection connection) throws IOException {
+        readBuffer.clear();
+        int n = connection.channel.read(readBuffer);
+        if (n == -1) {
+            if (connection.inFlight == null || connection.outputShutdown) {
+                closeConnection(connection);
+                return;
+            }
+            // Phía kia đã gửi FIN nhưng mình còn batch ghi dở → ghi nốt rồi mới đóng hẳn
+            connection.inputShutdown = true;
+            if (!connection.closing) {
+                connection.closing = true;
+                lingerThenClose(connection);
+            }
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        readBuffer.flip();
+
+        // Còn nửa frame từ lần đọc trước → nối vào rồi decode tiếp
+        ByteBuffer in = readBuffer;
+        if (connection.pending != null) {
+            connection.pending = ensureCapacity(connection.pending, readBuffer.remaining());
+            connection.pending.put(readBuffer);
+            connection.pending.flip();
+            in = connection.pending;
+        }
+
+        Frame frame;
+        while ((frame = FrameCodec.decode(in)) != null) {
+            dispatch(connection, frame);
+        }
+
+        if (!in.hasRemaining()) {
+            connection.pending = null;
+        } else if (in == readBuffer) {
+            connection.pending = ByteBuffer.allocate(Math.max(in.remaining() * 2, 4096));
+            connection.pending.put(in);
+        } else {
+            in.compact();
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buf, int extra) {
+        if (buf.remaining() >= extra) {
+            return buf;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + extra));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * Gộp các frame đang chờ (theo thứ tự ưu tiên) thành 1 lần gathering write
+     */
+    private void write(PeerConnection connection) throws IOException {
+        if (connection.outputShutdown) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+        while (true) {
+            if (connection.inFlight == null) {
+                connection.inFlight = encodeBatch(connection);
+                if (connection.inFlight == null) {
+                    break;
+                }
+            }
+            ByteBuffer[] batch = connection.inFlight;
+            connection.channel.write(batch);
+            if (batch[batch.length - 1].hasRemaining()) {
+                return; // Socket buffer đầy, chờ OP_WRITE lần sau
+            }
+            connection.inFlight = null;
+        }
+
+        if (connection.closing) {
+            shutdownOutput(connection);
+            return;
+        }
+        connection.writeScheduled.set(false);
+        SelectionKey key = connection.key;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        // Có message mới vào giữa lúc tắt OP_WRITE
+        if (connection.hasQueuedFrames() && connection.writeScheduled.compareAndSet(false, true)) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Gửi FIN sau khi đã ghi hết; nếu phía kia cũng đã đóng thì đóng hẳn
+     */
+    private void shutdownOutput(PeerConnection connection) {
+        if (connection.closed || connection.outputShutdown) {
+            return;
+        }
+        connection.outputShutdown = true;
+        try {
+            connection.channel.shutdownOutput();
+        } catch (IOException e) {
+            closeConnection(connection);
+            return;
+        }
+        SelectionKey key = connection.key;
+        if (connection.inputShutdown || key == null || !key.isValid()) {
+            closeConnection(connection);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private ByteBuffer[] encodeBatch(PeerConnection connection) {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        int bytes = 0;
+        Frame frame;
+        while (buffers.size() < MAX_BATCH_FRAMES && bytes < MAX_BATCH_BYTES
+                && (frame = connection.pollNext()) != null) {
+            try {
+                ByteBuffer buf = FrameCodec.encode(frame);
+                buffers.add(buf);
+                bytes += buf.remaining();
+            } catch (IllegalArgumentException e) {
+                System.err.println("✗ Cannot encode frame for " + connection.peerName + ": " + e.getMessage());
+            }
+        }
+        return buffers.isEmpty() ? null : buffers.toArray(new ByteBuffer[0]);
+    }
+
+    private void dispatch(PeerConnection connection, Frame frame) {
+        if (listener != null) {
+            dispatcher.execute(() -> listener.onFrame(connection, frame));
+        }
+    }
+
+    private void closeConnection(PeerConnection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        if (connection.connectFuture != null && !connection.connectFuture.isDone()) {
+            connection.connectFuture.completeExceptionally(new IOException("Connection closed"));
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        if (listener != null && !dispatcher.isShutdown()) {
+            dispatcher.execute(() -> listener.onClosed(connection));
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof PeerConnection) {
+                    closeConnection((PeerConnection) key.attachment());
+                }
+            }
+            selector.close();
+            serverChannel.close();
+        } catch (IOException | ClosedSelectorException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Discovery Hub - 1 port discovery cố định cho cả máy
+ *
+ * - Client đầu tiên trên máy bind HUB_PORT và làm hub
+ * - Client mở sau không bind được → đăng ký với hub qua loopback (REGISTER:...),
+ *   giữ kết nối mở; hub gửi ngay danh sách peer (PEER_LIST:...) và đẩy tiếp mỗi
+ *   khi có peer mới, đóng kết nối = hủy đăng ký
+ * - Máy khác quét chỉ cần 1 probe tới HUB_PORT: hub trả lời ANNOUNCE bằng PEER
+ *   của mình + PEER_LIST gồm cả các client cùng máy
+ * - Hub thoát → các client đã đăng ký thấy EOF, tranh nhau bind lại, ai thua lại đăng ký
+ * Port discovery riêng của từng user vẫn mở (SessionLockManager, tương thích cũ).
+ */
+public class DiscoveryHub {
+    public static final int HUB_PORT = 11050;
+    private static final int REGISTER_TIMEOUT_MS = 1000;
+    private static final int FIRST_LINE_TIMEOUT_MS = 3000; // Kết nối mở mà không gửi gì → trả thread lại cho pool
+    private static final int REJOIN_DELAY_MS = 300; // + ngẫu nhiên, tránh mọi client bind cùng lúc
+
+    private final NetworkManager networkManager;
+    // Client cùng máy đã đăng ký: username → kênh đẩy PEER_LIST
+    private final Map<String, PrintWriter> registrants = new ConcurrentHashMap<>();
+
+    private volatile String localIp;
+    private volatile boolean running = false;
+    private volatile boolean hub = false;
+    private volatile ServerSocket server;
+    private volatile Socket registration;
+
+    public DiscoveryHub(NetworkManager networkManager) {
+        this.networkManager = networkManager;
+    }
+
+    public void start(String localIp) {
+        this.localIp = localIp;
+        running = true;
+        TaskExecutor.getInstance().startDedicated("discovery-hub", this::runLoop);
+    }
+
+    /**
+     * IP máy đổi: entry của client cùng máy gửi đi từ giờ dùng IP mới
+     */
+    public void setLocalIp(String localIp) {
+        this.localIp = localIp;
+    }
+
+    public boolean isHub() {
+        return hub;
+    }
+
+    public void shutdown() {
+        running = false;
+        closeQuietly(server);
+        closeQuietly(registration);
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                serve();
+            } catch (BindException e) {
+                // Đã có hub trên máy này
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("✗ Discovery hub stopped: " + e.getMessage());
+                }
+            }
+            hub = false;
+            if (!running) {
+                break;
+            }
+            try {
+                register();
+            } catch (IOException e) {
+                // Hub vừa thoát / chưa kịp bind - thử lại
+            }
+            if (!running) {
+                break;
+            }
+            try {
+                Thread.sleep(REJOIN_DELAY_MS + ThreadLocalRandom.current().nextInt(REJOIN_DELAY_MS));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Làm hub: nhận ANNOUNCE từ máy khác và REGISTER từ client cùng máy
+     */
+    private void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(HUB_PORT)) {
+            server = serverSocket;
+            hub = true;
+            System.out.println("✓ Discovery hub started on port: " + HUB_PORT);
+            while (running) {
+                Socket socket = serverSocket.accept();
+                TaskExecutor.getInstance().execute("discovery-hub-conn", () -> handleConnection(socket));
+            }
+        }
+    }
+
+    /**
+     * Đăng ký với hub đang chạy trên máy, nhận PEER_LIST cho tới khi hub đóng kết nối
+     */
+    private void register() throws IOException {
+        try (Socket socket = new Socket()) {
+            registration = socket;
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), HUB_PORT), REGISTER_TIMEOUT_MS);
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("REGISTER:" + networkManager.myPeerFields());
+            System.out.println("✓ Registered with local discovery hub on port: " + HUB_PORT);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                networkManager.mergePeerListLine(line);
+            }
+            if (running) {
+                System.out.println("⚠️ Local discovery hub went away, re-electing");
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        boolean registered = false;
+        try {
+            socket.setSoTimeout(FIRST_LINE_TIMEOUT_MS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            String message = reader.readLine();
+            if (message == null) {
+                return;
+            }
+
+            if (message.startsWith("REGISTER:") && socket.getInetAddress().isLoopbackAddress()) {
+                // Phiên đăng ký sống suốt thời gian client chạy → thread riêng, không giữ thread của pool
+                socket.setSoTimeout(0);
+                String fields = message.substring("REGISTER:".length());
+                TaskExecutor.getInstance().startDedicated("discovery-hub-client",
+                        () -> handleRegister(socket, fields, reader, writer));
+                registered = true;
+            } else if (message.startsWith("ANNOUNCE:")) {
+                String peerIp = socket.getInetAddress().getHostAddress();
+                String entry = networkManager.answerAnnounce(message, peerIp, writer);
+                if (entry != null) {
+                    pushToRegistrants("PEER_LIST:" + entry, null);
+                }
+            }
+        } catch (IOException e) {
+            // Kết nối đóng giữa chừng / không gửi gì trong FIRST_LINE_TIMEOUT_MS
+        } finally {
+            if (!registered) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void handleRegister(Socket socket, String fields, BufferedReader reader, PrintWriter writer) {
+        String username = fields.split(":", 2)[0];
+        String entry = entryOf(fields, localIp);
+
+        // Client mới nhận ngay: hub + mọi peer hub biết (gồm các client cùng máy khác)
+        List<String> entries = new ArrayList<>();
+        entries.add(entryOf(networkManager.myPeerFields(), localIp));
+        entries.addAll(networkManager.peerListEntries(0));
+        writer.println("PEER_LIST:" + String.join(";", entries));
+
+        pushToRegistrants("PEER_LIST:" + entry, username);
+        registrants.put(username, writer);
+        networkManager.mergePeerListLine("PEER_LIST:" + entry);
+        System.out.println("🏠 Local client registered with hub: " + username);
+
+        try {
+            while (reader.readLine() != null) {
+                // Client không gửi gì thêm - chỉ chờ nó đóng kết nối
+            }
+        } catch (IOException e) {
+            // Client thoát / hub đóng
+        } finally {
+            registrants.remove(username, writer);
+            closeQuietly(socket);
+            System.out.println("🏠 Local client left hub: " + username);
+        }
+    }
+
+    private void pushToRegistrants(String line, String except) {
+        for (Map.Entry<String, PrintWriter> registrant : registrants.entrySet()) {
+            if (!registrant.getKey().equals(except)) {
+                registrant.getValue().println(line);
+            }
+        }
+    }
+
+    /**
+     * Chuyển chuỗi ANNOUNCE/PEER (user:tcp:file:voice:video:videoAudio:discovery)
+     * thành entry PEER_LIST (user,ip,tcp,...,discovery,msSinceLastSeen)
+     */
+    private static String entryOf(String fields, String ip) {
+        String[] parts = fields.split(":");
+        StringBuilder entry = new StringBuilder(parts[0]).append(',').append(ip);
+        for (int i = 1; i < parts.length; i++) {
+            entry.append(',').append(parts[i]);
+        }
+        return entry.append(",0").toString();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Bỏ qua
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Discovery Scheduler - Tìm peer liên tục sau khi khởi động, từng chút một
+ *
+ * Mỗi vòng (nhẹ, không bao giờ quét lại toàn bộ subnet):
+ * 1. Kiểm tra lại peer đã biết nhưng đang vắng mặt (đã offline / từ cache mà
+ *    warm start không gọi được) - dial thẳng chat port, HELLO đúng tên → thêm lại
+ * 2. Quét 1 lát SLICE_HOSTS host của subnet trên port discovery hub, lát sau
+ *    nối tiếp lát trước (hết subnet thì quay vòng)
+ * Khoảng cách giữa 2 vòng thích nghi theo biến động: có peer vào/ra → rút ngắn
+ * một nửa (tối thiểu MIN_INTERVAL_MS), yên tĩnh → giãn gấp đôi (tối đa MAX_INTERVAL_MS).
+ */
+public class DiscoveryScheduler {
+    private static final long MIN_INTERVAL_MS = 10000;
+    private static final long MAX_INTERVAL_MS = 300000;
+    private static final long INITIAL_INTERVAL_MS = 20000;
+    private static final int SLICE_HOSTS = 64; // 1 probe / host (DiscoveryHub)
+    private static final int PROBE_TIMEOUT_MS = 500;
+    private static final long DEPARTED_MAX_AGE_MS = 60L * 60 * 1000; // Vắng quá 1 giờ → thôi kiểm tra
+
+    private final NetworkManager networkManager;
+    private final ScheduledExecutorService timer;
+
+    // Peer đã biết nhưng hiện không có trong discoveredPeers
+    private final ConcurrentHashMap<String, PeerInfo> departedPeers = new ConcurrentHashMap<>();
+    private final AtomicInteger churn = new AtomicInteger();
+
+    private volatile boolean running = false;
+    private volatile long intervalMs = INITIAL_INTERVAL_MS;
+    private volatile String localIp;
+    private volatile int nextSliceStart = 1;
+    private long rounds = 0;
+
+    public DiscoveryScheduler(NetworkManager networkManager, ScheduledExecutorService timer) {
+        this.networkManager = networkManager;
+        this.timer = timer;
+    }
+
+    public void start(String localIp) {
+        this.localIp = localIp;
+        running = true;
+        scheduleNextRound();
+        System.out.println("🔄 Discovery scheduler started (first round in " + intervalMs / 1000 + "s)");
+    }
+
+    /**
+     * IP máy đổi (có thể sang subnet khác): quét lát lại từ đầu subnet mới
+     */
+    public void setLocalIp(String localIp) {
+        this.localIp = localIp;
+        nextSliceStart = 1;
+        churn.incrementAndGet(); // Vòng sau đến sớm hơn
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Peer mới vào danh sách (bất kể nguồn: UDP, quét, gossip, vòng này)
+     */
+    public void onPeerAdded(String username) {
+        departedPeers.remove(username);
+        churn.incrementAndGet();
+    }
+
+    /**
+     * Peer bị xóa khỏi danh sách (heartbeat / BYE) hoặc peer cache không gọi được:
+     * giữ lại bản sao địa chỉ để các vòng sau kiểm tra lại
+     */
+    public void onPeerDeparted(String username, PeerInfo peer, boolean wasListed) {
+        PeerInfo copy = new PeerInfo(peer.ip, peer.port, peer.filePort, peer.voicePort,
+                peer.videoPort, peer.videoAudioPort, peer.discoveryPort);
+        copy.restoreHeartbeat(peer.getLastSeen(), peer.getRttMs());
+        departedPeers.put(username, copy);
+        if (wasListed) {
+            churn.incrementAndGet();
+        }
+    }
+
+    private void scheduleNextRound() {
+        if (running) {
+            timer.schedule(this::runRound, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runRound() {
+        if (!running) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        rounds++;
+        try {
+            CompletableFuture<Integer> revalidated = revalidateDepartedPeers(start);
+            revalidated.thenCompose(found -> scanNextSlice().thenApply(slice -> {
+                finishRound(start, found, slice);
+                return null;
+            })).whenComplete((v, error) -> {
+                if (error != null) {
+                    System.err.println("❌ Discovery round failed: " + error.getMessage());
+                }
+                scheduleNextRound();
+            });
+        } catch (RuntimeException e) {
+            System.err.println("❌ Discovery round failed: " + e.getMessage());
+            scheduleNextRound();
+        }
+    }
+
+    /**
+     * Bước 1: dial song song các peer đang vắng. Trả về số peer đã quay lại.
+     */
+    private CompletableFuture<Integer> revalidateDepartedPeers(long now) {
+        departedPeers.values().removeIf(peer -> now - peer.getLastSeen() > DEPARTED_MAX_AGE_MS);
+        Map<String, PeerInfo> known = networkManager.getDiscoveredPeers();
+
+        AtomicInteger found = new AtomicInteger();
+        List<CompletableFuture<?>> dials = new ArrayList<>();
+        for (Map.Entry<String, PeerInfo> entry : departedPeers.entrySet()) {
+            String username = entry.getKey();
+            if (known.containsKey(username)) {
+                departedPeers.remove(username);
+                continue;
+            }
+            dials.add(networkManager.revalidatePeer(username, entry.getValue()).handle((connection, error) -> {
+                if (error == null) {
+                    found.incrementAndGet();
+                    System.out.println("🔄 Known peer back online: " + username);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(dials.toArray(CompletableFuture<?>[]::new))
+                .thenApply(v -> found.get());
+    }
+
+    /**
+     * Bước 2: quét port discovery trên lát subnet kế tiếp. Trả về mô tả lát đã quét.
+     */
+    private CompletableFuture<String> scanNextSlice() {
+        String subnet = localIp.substring(0, localIp.lastIndexOf('.'));
+        int first = nextSliceStart;
+        int last = Math.min(first + SLICE_HOSTS - 1, 254);
+        nextSliceStart = last >= 254 ? 1 : last + 1;
+
+        List<String> hosts = new ArrayList<>(SLICE_HOSTS);
+        for (int i = first; i <= last; i++) {
+            hosts.add(subnet + "." + i);
+        }
+        List<InetSocketAddress> targets = networkManager.discoveryTargets(hosts, localIp);
+        return PortProber.getInstance()
+                .probe(targets, PROBE_TIMEOUT_MS, networkManager::onDiscoveryProbe)
+                .completion()
+                .thenApply(job -> subnet + "." + first + "-" + last + " (" + job.getOpen() + " open)");
+    }
+
+    private void finishRound(long start, int revalidated, String slice) {
+        int changes = churn.getAndSet(0);
+        if (changes > 0) {
+            intervalMs = Math.max(MIN_INTERVAL_MS, intervalMs / 2);
+        } else {
+            intervalMs = Math.min(MAX_INTERVAL_MS, intervalMs * 2);
+        }
+        System.out.println("🔄 Discovery round #" + rounds + ": revalidated " + revalidated +
+                ", departed " + departedPeers.size() + ", slice " + slice +
+                ", churn " + changes + ", " + (System.currentTimeMillis() - start) + "ms" +
+                ", next in " + intervalMs / 1000 + "s");
+    }
+}
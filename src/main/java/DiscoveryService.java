@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Discovery Service - Tìm peer bằng UDP multicast (+ broadcast dự phòng)
+ *
+ * - 1 socket UDP trên DISCOVERY_UDP_PORT (SO_REUSEADDR → nhiều client cùng máy dùng chung)
+ * - QUERY:user    → mọi peer trả lời bằng ANNOUNCE (gửi multicast, ai cũng nghe được)
+ * - ANNOUNCE:...  → gửi định kỳ mỗi ANNOUNCE_INTERVAL_MS và khi trả lời QUERY
+ * - BYE:user      → khi thoát, peer khác xóa ngay không cần chờ heartbeat
+ * Mỗi gói gửi tới cả nhóm multicast lẫn địa chỉ broadcast của subnet
+ * (mạng chặn multicast vẫn chạy), bên nhận tự bỏ qua gói trùng.
+ */
+public class DiscoveryService {
+    public static final int DISCOVERY_UDP_PORT = 11100;
+    private static final String MULTICAST_GROUP = "239.255.77.88";
+    private static final int ANNOUNCE_INTERVAL_MS = 30000;
+    private static final int RECEIVE_TIMEOUT_MS = 1000;
+    private static final int MAX_PACKET_BYTES = 1024;
+
+    public interface Listener {
+        void onMessage(String senderIp, String message);
+    }
+
+    private final String currentUser;
+    private final Supplier<String> announcement;
+    private final Listener listener;
+
+    private MulticastSocket socket;
+    private volatile InetAddress multicastGroup;
+    private volatile InetAddress broadcastAddress;
+    private NetworkInterface joinedInterface;
+    private volatile boolean running = false;
+    private volatile long nextAnnounceAt = 0;
+
+    /**
+     * @param announcement tạo gói ANNOUNCE hiện tại (port voice/video có thể đổi sau khi khởi động)
+     */
+    public DiscoveryService(String currentUser, Supplier<String> announcement, Listener listener) {
+        this.currentUser = currentUser;
+        this.announcement = announcement;
+        this.listener = listener;
+    }
+
+    public void start(String localIp) throws IOException {
+        socket = new MulticastSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(DISCOVERY_UDP_PORT));
+        socket.setBroadcast(true);
+        socket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+
+        joinNetwork(localIp);
+
+        running = true;
+        TaskExecutor.getInstance().startDedicated("udp-discovery", this::runLoop);
+        System.out.println("✓ UDP discovery started on port " + DISCOVERY_UDP_PORT +
+                (multicastGroup != null ? " (multicast " + MULTICAST_GROUP + ")" : " (broadcast)"));
+    }
+
+    /**
+     * IP máy đổi (LocalAddressService): rời nhóm multicast trên interface cũ,
+     * join lại trên interface mới và đổi địa chỉ broadcast theo subnet mới
+     */
+    public synchronized void updateLocalIp(String localIp) {
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+        if (multicastGroup != null) {
+            try {
+                socket.leaveGroup(new InetSocketAddress(multicastGroup, DISCOVERY_UDP_PORT), joinedInterface);
+            } catch (IOException e) {
+                // Interface cũ đã mất
+            }
+        }
+        try {
+            joinNetwork(localIp);
+            System.out.println("✓ UDP discovery moved to " + localIp);
+        } catch (IOException e) {
+            System.err.println("✗ UDP discovery cannot use " + localIp + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void joinNetwork(String localIp) throws IOException {
+        multicastGroup = InetAddress.getByName(MULTICAST_GROUP);
+        InetAddress localAddress = InetAddress.getByName(localIp);
+        NetworkInterface iface = NetworkInterface.getByInetAddress(localAddress);
+        broadcastAddress = broadcastFor(iface, localAddress);
+        joinedInterface = iface;
+        try {
+            if (iface != null) {
+                socket.setNetworkInterface(iface);
+            }
+            socket.joinGroup(new InetSocketAddress(multicastGroup, DISCOVERY_UDP_PORT), iface);
+        } catch (IOException e) {
+            // Interface không hỗ trợ multicast → chỉ dùng broadcast
+            System.err.println("⚠️ Multicast unavailable, using broadcast only: " + e.getMessage());
+            multicastGroup = null;
+        }
+    }
+
+    /**
+     * Địa chỉ broadcast thật của subnet (theo prefix của interface, không giả định /24).
+     * Interface không có broadcast (point-to-point...) → dùng 255.255.255.255
+     */
+    private static InetAddress broadcastFor(NetworkInterface iface, InetAddress localAddress) throws IOException {
+        if (iface != null) {
+            for (InterfaceAddress address : iface.getInterfaceAddresses()) {
+                if (localAddress.equals(address.getAddress()) && address.getBroadcast() != null) {
+                    return address.getBroadcast();
+                }
+            }
+        }
+        return InetAddress.getByName("255.255.255.255");
+    }
+
+    /**
+     * Hỏi tất cả peer trong mạng - các peer sẽ trả lời bằng ANNOUNCE
+     */
+    public void query() {
+        send("QUERY:" + currentUser);
+    }
+
+    public void announce() {
+        nextAnnounceAt = System.currentTimeMillis() + ANNOUNCE_INTERVAL_MS;
+        send(announcement.get());
+    }
+
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        send("BYE:" + currentUser);
+        running = false;
+        socket.close();
+    }
+
+    private void send(String message) {
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (multicastGroup != null) {
+                socket.send(new DatagramPacket(data, data.length, multicastGroup, DISCOVERY_UDP_PORT));
+            }
+            socket.send(new DatagramPacket(data, data.length, broadcastAddress, DISCOVERY_UDP_PORT));
+        } catch (IOException e) {
+            System.err.println("✗ UDP discovery send failed: " + e.getMessage());
+        }
+    }
+
+    private void runLoop() {
+        byte[] buffer = new byte[MAX_PACKET_BYTES];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+                handlePacket(packet.getAddress().getHostAddress(), message);
+            } catch (SocketTimeoutException e) {
+                // Không có gói nào - kiểm tra lịch announce bên dưới
+            } catch (SocketException e) {
+                break; // Socket đã đóng
+            } catch (IOException e) {
+                System.err.println("✗ UDP discovery receive failed: " + e.getMessage());
+            }
+
+            if (running && System.currentTimeMillis() >= nextAnnounceAt) {
+                announce();
+            }
+        }
+        System.out.println("UDP discovery stopped");
+    }
+
+    private void handlePacket(String senderIp, String message) {
+        int colon = message.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+        String sender = message.substring(colon + 1).split(":", 2)[0];
+        if (sender.equals(currentUser)) {
+            return; // Gói của chính mình (multicast loopback)
+        }
+
+        if (message.startsWith("QUERY:")) {
+            announce();
+        } else {
+            listener.onMessage(senderIp, message);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame - 1 message trên kênh chat giữa 2 peer
+ *
+ * Gồm: loại message (1 byte), message id (8 byte) và danh sách field có kiểu
+ * (String hoặc long). Không còn ghép chuỗi "TYPE:a:b:c" rồi split(":") nữa,
+ * nên nội dung chứa dấu ':' hoặc xuống dòng vẫn được giữ nguyên.
+ */
+public class Frame {
+    // Loại message
+    public static final byte HELLO = 1;
+    public static final byte MESSAGE = 2;
+    public static final byte FILE = 3;
+    public static final byte GROUP_MESSAGE = 4;
+    public static final byte GROUP_SYNC = 5;
+    public static final byte GROUP_FILE = 6;
+    public static final byte CALL_ACCEPTED = 7;
+    public static final byte CALL_REJECTED = 8;
+    public static final byte VIDEO_CALL_ACCEPTED = 9;
+    public static final byte VIDEO_CALL_REJECTED = 10;
+    public static final byte TYPING = 11;
+    public static final byte STOP_TYPING = 12;
+    public static final byte GROUP_TYPING = 13;
+    public static final byte GROUP_STOP_TYPING = 14;
+    public static final byte PING = 15;
+    public static final byte PONG = 16;
+    public static final byte PEER_LIST_REQUEST = 17;
+    public static final byte PEER_LIST = 18;
+
+    private static final String[] TYPE_NAMES = {
+            "?", "HELLO", "MESSAGE", "FILE", "GROUP_MESSAGE", "GROUP_SYNC", "GROUP_FILE",
+            "CALL_ACCEPTED", "CALL_REJECTED", "VIDEO_CALL_ACCEPTED", "VIDEO_CALL_REJECTED",
+            "TYPING", "STOP_TYPING", "GROUP_TYPING", "GROUP_STOP_TYPING", "PING", "PONG",
+            "PEER_LIST_REQUEST", "PEER_LIST"
+    };
+
+    // Message id = [32 bit ngẫu nhiên cho mỗi lần chạy][32 bit bộ đếm] → không trùng giữa các peer
+    private static final long ID_PREFIX = ((long) ThreadLocalRandom.current().nextInt()) << 32;
+    private static final AtomicLong ID_COUNTER = new AtomicLong();
+
+    public final byte type;
+    public final long messageId;
+    private final Object[] fields;
+    volatile ByteBuffer encoded; // Cache của FrameCodec.encode()
+
+    public Frame(byte type, long messageId, Object... fields) {
+        this.type = type;
+        this.messageId = messageId;
+        this.fields = fields;
+    }
+
+    /**
+     * Tạo frame mới với message id mới
+     */
+    public static Frame of(byte type, Object... fields) {
+        return new Frame(type, nextMessageId(), fields);
+    }
+
+    public static long nextMessageId() {
+        return ID_PREFIX | (ID_COUNTER.incrementAndGet() & 0xFFFFFFFFL);
+    }
+
+    public int fieldCount() {
+        return fields.length;
+    }
+
+    Object field(int index) {
+        return fields[index];
+    }
+
+    public String getString(int index) {
+        if (index >= fields.length || fields[index] == null) {
+            return null;
+        }
+        return fields[index].toString();
+    }
+
+    public long getLong(int index) {
+        Object value = index < fields.length ? fields[index] : null;
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        if (value instanceof Integer) {
+            return (Integer) value;
+        }
+        return value != null ? Long.parseLong(value.toString()) : 0L;
+    }
+
+    public static String typeName(byte type) {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "UNKNOWN(" + type + ")";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(typeName(type)).append('#').append(Long.toHexString(messageId));
+        for (Object field : fields) {
+            sb.append(" | ").append(field);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame Codec - Mã hóa / giải mã Frame dạng nhị phân có độ dài đứng trước
+ *
+ * Định dạng (big-endian):
+ *   [int  length]       số byte phía sau (không tính 4 byte này)
+ *   [byte version]      PROTOCOL_VERSION
+ *   [byte type]         Frame.HELLO, Frame.MESSAGE...
+ *   [long messageId]
+ *   [short fieldCount]
+ *   fieldCount lần:
+ *     [byte tag] 'S' → [int len][UTF-8 bytes]
+ *                'L' → [long]
+ *                'N' → null
+ */
+public class FrameCodec {
+    public static final byte PROTOCOL_VERSION = 1;
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024; // 16MB
+
+    private static final byte TAG_STRING = 'S';
+    private static final byte TAG_LONG = 'L';
+    private static final byte TAG_NULL = 'N';
+
+    private static final int HEADER_BYTES = 1 + 1 + 8 + 2;
+
+    /**
+     * Mã hóa frame. Kết quả được cache trong Frame nên gửi cùng 1 frame
+     * cho nhiều peer (tin nhắn nhóm) chỉ mã hóa 1 lần.
+     */
+    public static ByteBuffer encode(Frame frame) {
+        ByteBuffer encoded = frame.encoded;
+        if (encoded == null) {
+            encoded = encodeFrame(frame);
+            frame.encoded = encoded;
+        }
+        return encoded.duplicate();
+    }
+
+    private static ByteBuffer encodeFrame(Frame frame) {
+        int count = frame.fieldCount();
+        byte[][] encoded = new byte[count][];
+        int size = HEADER_BYTES;
+        for (int i = 0; i < count; i++) {
+            Object value = frame.field(i);
+            if (value == null) {
+                size += 1;
+            } else if (value instanceof Long || value instanceof Integer) {
+                size += 1 + 8;
+            } else {
+                encoded[i] = value.toString().getBytes(StandardCharsets.UTF_8);
+                size += 1 + 4 + encoded[i].length;
+            }
+        }
+        if (size > MAX_FRAME_BYTES) {
+            throw new IllegalArgumentException("Frame too large: " + size + " bytes");
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + size);
+        buf.putInt(size);
+        buf.put(PROTOCOL_VERSION);
+        buf.put(frame.type);
+        buf.putLong(frame.messageId);
+        buf.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            Object value = frame.field(i);
+            if (value == null) {
+                buf.put(TAG_NULL);
+            } else if (encoded[i] == null) {
+                buf.put(TAG_LONG);
+                buf.putLong(((Number) value).longValue());
+            } else {
+                buf.put(TAG_STRING);
+                buf.putInt(encoded[i].length);
+                buf.put(encoded[i]);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Giải mã 1 frame từ buffer (đang ở chế độ đọc).
+     * Trả về null nếu chưa đủ byte - khi đó position KHÔNG bị thay đổi.
+     */
+    public static Frame decode(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 4) {
+            return null;
+        }
+        int start = buf.position();
+        int length = buf.getInt(start);
+        if (length < HEADER_BYTES || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buf.remaining() < 4 + length) {
+            return null;
+        }
+
+        int end = start + 4 + length;
+        buf.position(start + 4);
+        require(buf, HEADER_BYTES, end);
+        byte version = buf.get();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported protocol version: " + version);
+        }
+        byte type = buf.get();
+        long messageId = buf.getLong();
+        int count = buf.getShort() & 0xFFFF;
+
+        Object[] fields = new Object[count];
+        for (int i = 0; i < count; i++) {
+            require(buf, 1, end);
+            byte tag = buf.get();
+            if (tag == TAG_STRING) {
+                require(buf, 4, end);
+                int len = buf.getInt();
+                if (len < 0 || buf.position() + len > end) {
+                    throw new IOException("Invalid string length: " + len);
+                }
+                fields[i] = decodeString(buf, len);
+            } else if (tag == TAG_LONG) {
+                require(buf, 8, end);
+                fields[i] = buf.getLong();
+            } else if (tag != TAG_NULL) {
+                throw new IOException("Unknown field tag: " + tag);
+            }
+        }
+        buf.position(end);
+        return new Frame(type, messageId, fields);
+    }
+
+    /**
+     * Đọc tiếp n byte cố định không được vượt quá cuối frame (không đọc lấn sang frame sau)
+     */
+    private static void require(ByteBuffer buf, int n, int end) throws IOException {
+        if (buf.position() + n > end) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    private static String decodeString(ByteBuffer buf, int len) {
+        String value;
+        if (buf.hasArray()) {
+            value = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
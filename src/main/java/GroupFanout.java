@@ -0,0 +1,178 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Group Fanout - Gửi 1 frame tới tất cả thành viên nhóm
+ *
+ * - Frame chỉ mã hóa 1 lần (FrameCodec cache), mọi kết nối dùng chung bytes
+ * - Thành viên đang có kết nối: đưa vào hàng đợi gửi ngay (không chặn)
+ * - Thành viên chưa kết nối: frame xếp hàng chờ, dial chạy nền với số lượng
+ *   dial đồng thời có giới hạn (MAX_PARALLEL_DIALS)
+ * - Kết quả: trạng thái từng thành viên + tổng thời gian fan-out
+ */
+public class GroupFanout {
+    private static final int MAX_PARALLEL_DIALS = 8;
+
+    public enum Status {
+        SENT,               // Đã vào hàng đợi của kết nối đang sống
+        SENT_AFTER_CONNECT, // Gửi sau khi dial nền thành công
+        SKIPPED,            // Chưa kết nối và không yêu cầu dial (typing...)
+        DROPPED,            // Hàng đợi gửi của peer đã đầy
+        FAILED              // Dial thất bại / đang backoff
+    }
+
+    public static class Result {
+        public final String groupName;
+        public final String frameType;
+        public final Map<String, Status> statuses;
+        public final long latencyMs;
+
+        Result(String groupName, String frameType, Map<String, Status> statuses, long latencyMs) {
+            this.groupName = groupName;
+            this.frameType = frameType;
+            this.statuses = Collections.unmodifiableMap(statuses);
+            this.latencyMs = latencyMs;
+        }
+
+        public int count(Status status) {
+            int n = 0;
+            for (Status s : statuses.values()) {
+                if (s == status) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            return "Fanout{" + frameType + " → " + groupName +
+                    ", members=" + statuses.size() +
+                    ", sent=" + (count(Status.SENT) + count(Status.SENT_AFTER_CONNECT)) +
+                    ", skipped=" + count(Status.SKIPPED) +
+                    ", dropped=" + count(Status.DROPPED) +
+                    ", failed=" + count(Status.FAILED) +
+                    ", latency=" + latencyMs + "ms}";
+        }
+    }
+
+    private final NetworkManager networkManager;
+
+    // Dial nền đang chạy / đang chờ lượt
+    private final ArrayDeque<Runnable> waitingDials = new ArrayDeque<>();
+    private int runningDials = 0;
+
+    public GroupFanout(NetworkManager networkManager) {
+        this.networkManager = networkManager;
+    }
+
+    /**
+     * Gửi frame tới các thành viên (trừ chính mình). Không chặn thread gọi;
+     * future hoàn thành khi mọi thành viên đã có trạng thái cuối.
+     *
+     * @param connectMissing true → dial nền cho thành viên chưa kết nối,
+     *                       false → bỏ qua họ (tín hiệu tạm thời như typing)
+     */
+    public CompletableFuture<Result> send(String groupName, Collection<String> members, Frame frame,
+                                          boolean connectMissing) {
+        long start = System.nanoTime();
+        String self = networkManager.getCurrentUser();
+        Map<String, Status> statuses = new LinkedHashMap<>();
+        Map<String, CompletableFuture<Status>> dials = new LinkedHashMap<>();
+
+        // Mã hóa trước 1 lần - các kết nối chỉ lấy bản duplicate
+        FrameCodec.encode(frame);
+
+        for (String member : members) {
+            if (member.equals(self)) {
+                continue;
+            }
+            PeerConnection connection = networkManager.getLiveConnection(member);
+            if (connection != null) {
+                statuses.put(member, connection.send(frame) ? Status.SENT : Status.DROPPED);
+            } else if (!connectMissing) {
+                statuses.put(member, Status.SKIPPED);
+            } else if (!networkManager.queueUntilConnected(member, frame)) {
+                statuses.put(member, Status.SENT); // Kết nối vừa lên trong lúc xếp hàng
+            } else {
+                statuses.put(member, null);
+                dials.put(member, dialInBackground(member));
+            }
+        }
+
+        if (dials.isEmpty()) {
+            return CompletableFuture.completedFuture(finish(groupName, frame, statuses, start));
+        }
+
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(dials.size());
+        for (Map.Entry<String, CompletableFuture<Status>> dial : dials.entrySet()) {
+            dial.getValue().whenComplete((status, error) -> {
+                synchronized (statuses) {
+                    statuses.put(dial.getKey(), error != null ? Status.FAILED : status);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    synchronized (statuses) {
+                        result.complete(finish(groupName, frame, statuses, start));
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private Result finish(String groupName, Frame frame, Map<String, Status> statuses, long start) {
+        long latencyMs = (System.nanoTime() - start) / 1_000_000;
+        Result result = new Result(groupName, Frame.typeName(frame.type), new LinkedHashMap<>(statuses), latencyMs);
+        if (result.count(Status.FAILED) > 0 || result.count(Status.DROPPED) > 0
+                || result.count(Status.SENT_AFTER_CONNECT) > 0) {
+            System.out.println("📤 " + result + " " + result.statuses);
+        }
+        return result;
+    }
+
+    /**
+     * Dial thành viên chưa kết nối, tối đa MAX_PARALLEL_DIALS dial cùng lúc.
+     * Frame đã nằm trong hàng chờ của NetworkManager và được gửi ngay khi
+     * kết nối đăng ký xong (kể cả khi peer tự kết nối tới mình trước).
+     */
+    private CompletableFuture<Status> dialInBackground(String member) {
+        CompletableFuture<Status> status = new CompletableFuture<>();
+        Runnable dial = () -> networkManager.connectToPeerAsync(member).whenComplete((connection, error) -> {
+            if (error != null) {
+                networkManager.failPendingFrames(member);
+                status.complete(Status.FAILED);
+            } else {
+                status.complete(Status.SENT_AFTER_CONNECT);
+            }
+            startNextDial();
+        });
+
+        synchronized (waitingDials) {
+            if (runningDials >= MAX_PARALLEL_DIALS) {
+                waitingDials.addLast(dial);
+                return status;
+            }
+            runningDials++;
+        }
+        dial.run();
+        return status;
+    }
+
+    private void startNextDial() {
+        Runnable next;
+        synchronized (waitingDials) {
+            next = waitingDials.pollFirst();
+            if (next == null) {
+                runningDials--;
+                return;
+            }
+        }
+        next.run();
+    }
+}
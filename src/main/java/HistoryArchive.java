@@ -0,0 +1,358 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * History Archive - Segment lịch sử đã niêm phong, nén theo block (.arc)
+ *
+ * - Nội dung segment .log cắt thành block ~BLOCK_BYTES (chỉ cắt ở cuối dòng), mỗi block nén Deflate riêng
+ *   → đọc 1 record chỉ phải giải nén đúng 1 block, không phải cả file
+ * - Cuối file là thư mục block: offset gốc, độ dài gốc, offset/độ dài nén, timestamp nhỏ nhất/lớn nhất
+ *   → tra theo offset (vị trí record) hoặc theo khoảng thời gian
+ * - Offset gốc giữ nguyên nên vị trí record, .idx, .fts của segment vẫn dùng được
+ *
+ * Định dạng: "CHA1" | block nén... | [số block][block...] | offset thư mục (8 byte)
+ */
+public class HistoryArchive {
+    private static final int BLOCK_BYTES = 64 * 1024;
+    private static final int CACHED_BLOCKS = 8;
+    private static final byte[] MAGIC = {'C', 'H', 'A', '1'};
+
+    private final File file;
+    private final FileChannel channel;
+    private final long[] rawOffsets;
+    private final int[] rawLengths;
+    private final long[] compressedOffsets;
+    private final int[] compressedLengths;
+    private final long[] minTimestamps;
+    private final long[] maxTimestamps;
+    private final long rawSize;
+    private final long minTimestamp; // Của cả archive - bỏ qua nguyên segment khi tra theo thời gian
+    private final long maxTimestamp;
+
+    // Block vừa giải nén gần nhất (LRU) - đọc trang lịch sử thường rơi vào cùng 1 block
+    private final Map<Integer, byte[]> blockCache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    private HistoryArchive(File file, FileChannel channel, long[] rawOffsets, int[] rawLengths,
+                           long[] compressedOffsets, int[] compressedLengths,
+                           long[] minTimestamps, long[] maxTimestamps) {
+        this.file = file;
+        this.channel = channel;
+        this.rawOffsets = rawOffsets;
+        this.rawLengths = rawLengths;
+        this.compressedOffsets = compressedOffsets;
+        this.compressedLengths = compressedLengths;
+        this.minTimestamps = minTimestamps;
+        this.maxTimestamps = maxTimestamps;
+        int last = rawOffsets.length - 1;
+        this.rawSize = last < 0 ? 0 : rawOffsets[last] + rawLengths[last];
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < minTimestamps.length; i++) {
+            min = Math.min(min, minTimestamps[i]);
+            max = Math.max(max, maxTimestamps[i]);
+        }
+        this.minTimestamp = min;
+        this.maxTimestamp = max;
+    }
+
+    /**
+     * Nén segment .log thành .arc (ghi ra .tmp rồi đổi tên - file .log không bị đụng tới)
+     */
+    public static void compress(File log, File arc) throws IOException {
+        File tmp = new File(arc.getPath() + ".tmp");
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        DataOutputStream dir = new DataOutputStream(directory);
+        int blocks = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(log));
+             FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(MAGIC);
+            long compressedOffset = MAGIC.length;
+            long rawOffset = 0;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long minTs = Long.MAX_VALUE;
+            long maxTs = Long.MIN_VALUE;
+            byte[] compressed = new byte[BLOCK_BYTES + 4096];
+            int b;
+            while ((b = in.read()) != -1) {
+                line.write(b);
+                if (b != '\n') {
+                    continue;
+                }
+                long ts = timestampOf(line.toByteArray());
+                minTs = Math.min(minTs, ts);
+                maxTs = Math.max(maxTs, ts);
+                line.writeTo(block);
+                line.reset();
+                if (block.size() < BLOCK_BYTES) {
+                    continue;
+                }
+                compressedOffset += writeBlock(deflater, block.toByteArray(), compressed, out, dir,
+                        rawOffset, compressedOffset, minTs, maxTs);
+                rawOffset += block.size();
+                blocks++;
+                block.reset();
+                minTs = Long.MAX_VALUE;
+                maxTs = Long.MIN_VALUE;
+            }
+            // Segment niêm phong chỉ gồm dòng hoàn chỉnh - phần dư (nếu có) vẫn giữ nguyên
+            line.writeTo(block);
+            if (block.size() > 0) {
+                compressedOffset += writeBlock(deflater, block.toByteArray(), compressed, out, dir,
+                        rawOffset, compressedOffset, minTs, maxTs);
+                blocks++;
+            }
+
+            DataOutputStream footer = new DataOutputStream(out);
+            footer.writeInt(blocks);
+            directory.writeTo(footer);
+            footer.writeLong(compressedOffset);
+            footer.flush();
+            out.getFD().sync();
+        } finally {
+            deflater.end();
+        }
+        if (!tmp.renameTo(arc)) {
+            arc.delete();
+            if (!tmp.renameTo(arc)) {
+                throw new IOException("Cannot rename " + tmp.getName());
+            }
+        }
+    }
+
+    private static int writeBlock(Deflater deflater, byte[] raw, byte[] buffer, FileOutputStream out,
+                                  DataOutputStream dir, long rawOffset, long compressedOffset,
+                                  long minTs, long maxTs) throws IOException {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+            written += n;
+        }
+        dir.writeLong(rawOffset);
+        dir.writeInt(raw.length);
+        dir.writeLong(compressedOffset);
+        dir.writeInt(written);
+        dir.writeLong(minTs);
+        dir.writeLong(maxTs);
+        return written;
+    }
+
+    public static HistoryArchive open(File arc) throws IOException {
+        FileChannel channel = FileChannel.open(arc.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+            channel.read(head, 0);
+            if (!Arrays.equals(head.array(), MAGIC)) {
+                throw new IOException("Not a history archive: " + arc.getName());
+            }
+            ByteBuffer tail = ByteBuffer.allocate(8);
+            channel.read(tail, channel.size() - 8);
+            long directoryOffset = tail.getLong(0);
+
+            ByteBuffer dir = ByteBuffer.allocate((int) (channel.size() - 8 - directoryOffset));
+            while (dir.hasRemaining()) {
+                if (channel.read(dir, directoryOffset + dir.position()) < 0) {
+                    throw new IOException("Truncated archive directory: " + arc.getName());
+                }
+            }
+            dir.flip();
+            int blocks = dir.getInt();
+            long[] rawOffsets = new long[blocks];
+            int[] rawLengths = new int[blocks];
+            long[] compressedOffsets = new long[blocks];
+            int[] compressedLengths = new int[blocks];
+            long[] minTimestamps = new long[blocks];
+            long[] maxTimestamps = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                rawOffsets[i] = dir.getLong();
+                rawLengths[i] = dir.getInt();
+                compressedOffsets[i] = dir.getLong();
+                compressedLengths[i] = dir.getInt();
+                minTimestamps[i] = dir.getLong();
+                maxTimestamps[i] = dir.getLong();
+            }
+            return new HistoryArchive(arc, channel, rawOffsets, rawLengths, compressedOffsets,
+                    compressedLengths, minTimestamps, maxTimestamps);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Kích thước nội dung gốc (= kích thước segment .log trước khi nén)
+     */
+    public long rawSize() {
+        return rawSize;
+    }
+
+    public long minTimestamp() {
+        return minTimestamp;
+    }
+
+    public long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * Block chứa offset có record nào trong khoảng [from, to] không (không cần giải nén)
+     */
+    public boolean mayContain(long offset, long from, long to) {
+        int block = blockOf(offset);
+        return block >= 0 && maxTimestamps[block] >= from && minTimestamps[block] <= to;
+    }
+
+    /**
+     * Dòng bắt đầu tại offset (không gồm '\n'), null nếu ngoài archive
+     */
+    public String readLine(long offset) throws IOException {
+        int block = blockOf(offset);
+        if (block < 0) {
+            return null;
+        }
+        byte[] raw = block(block);
+        int start = (int) (offset - rawOffsets[block]);
+        for (int i = start; i < raw.length; i++) {
+            if (raw[i] == '\n') {
+                return new String(raw, start, i - start, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Toàn bộ nội dung gốc, giải nén lần lượt từng block (dựng lại .idx / .fts)
+     */
+    public InputStream rawStream() {
+        return new InputStream() {
+            private int next = 0;
+            private byte[] current = new byte[0];
+            private int pos = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (pos == current.length) {
+                    if (next == rawOffsets.length) {
+                        return -1;
+                    }
+                    current = inflate(next++);
+                    pos = 0;
+                }
+                int n = Math.min(len, current.length - pos);
+                System.arraycopy(current, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int blockOf(long offset) {
+        int i = Arrays.binarySearch(rawOffsets, offset);
+        int block = i >= 0 ? i : -i - 2;
+        if (block < 0 || offset >= rawOffsets[block] + rawLengths[block]) {
+            return -1;
+        }
+        return block;
+    }
+
+    private byte[] block(int block) throws IOException {
+        synchronized (blockCache) {
+            byte[] cached = blockCache.get(block);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] raw = inflate(block);
+        synchronized (blockCache) {
+            blockCache.put(block, raw);
+        }
+        return raw;
+    }
+
+    private byte[] inflate(int block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLengths[block]);
+        while (compressed.hasRemaining()) {
+            if (channel.read(compressed, compressedOffsets[block] + compressed.position()) < 0) {
+                throw new IOException("Truncated archive block " + block + " in " + file.getName());
+            }
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            byte[] raw = new byte[rawLengths[block]];
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != raw.length) {
+                throw new IOException("Corrupt archive block " + block + " in " + file.getName());
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt archive block " + block + " in " + file.getName(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Trường thứ 2 của dòng (conversation \t timestamp \t ...), 0 nếu không đọc được
+     */
+    private static long timestampOf(byte[] line) {
+        int i = 0;
+        while (i < line.length && line[i] != '\t') {
+            i++;
+        }
+        long ts = 0;
+        boolean digits = false;
+        for (i++; i < line.length && line[i] >= '0' && line[i] <= '9'; i++) {
+            ts = ts * 10 + (line[i] - '0');
+            digits = true;
+        }
+        return digits ? ts : 0;
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * History Search Index - Chỉ mục ngược cho tìm kiếm toàn văn trong lịch sử chat
+ *
+ * - Token (chữ thường, bỏ dấu tiếng Việt, đ → d) → vị trí các record chứa nó (tăng dần)
+ * - ChatHistoryStore cập nhật ngay khi ghi record (thread writer), không phải quét lại file
+ * - Truy vấn: mọi từ đều phải có (AND), từ cuối khớp theo tiền tố (gõ tới đâu tìm tới đó)
+ * - Chỉ segment đang ghi (và segment vừa đầy chưa ghi xong .fts) giữ posting trên heap.
+ *   Segment đã đầy đọc thẳng từ .fts (memory-mapped, token đã sắp xếp + thư mục thưa
+ *   mỗi FTS_BLOCK_TOKENS token) → heap không tăng theo độ dài lịch sử, mở app không phải nạp lại
+ * - Tìm từ segment mới nhất ngược về cũ, đủ limit thì dừng → không đụng tới segment cũ
+ */
+public class HistorySearchIndex {
+    private static final int MAX_TOKEN_LENGTH = 32;
+    private static final int MAX_PREFIX_TERMS = 256;
+    private static final int FTS_MAGIC = 0x46545332; // "FTS2" - .fts bản cũ (không có) thì dựng lại
+    private static final int FTS_BLOCK_TOKENS = 64;
+    private static final int FTS_TRAILER_BYTES = 4 + 4 + 8 + 4;
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Posting trên heap: segment đang ghi + segment đã đầy chưa có .fts
+    private final ConcurrentSkipListMap<String, ChatHistoryStore.PositionList> postings = new ConcurrentSkipListMap<>();
+    // Segment đã có .fts theo base
+    private final ConcurrentSkipListMap<Long, SegmentPostings> sealed = new ConcurrentSkipListMap<>();
+
+    /**
+     * "Xin chào Đà Nẵng!" → [xin, chao, da, nang]
+     */
+    public static String normalize(String text) {
+        String lower = text.toLowerCase().replace('đ', 'd');
+        return COMBINING_MARKS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD)).replaceAll("");
+    }
+
+    public static List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : SEPARATORS.split(normalize(text))) {
+            if (!token.isEmpty()) {
+                tokens.add(token.length() > MAX_TOKEN_LENGTH ? token.substring(0, MAX_TOKEN_LENGTH) : token);
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Thêm record mới nhất (vị trí phải tăng dần theo thứ tự gọi).
+     * synchronized cùng sealSegment(): không thêm vào list đang bị bỏ khỏi map
+     */
+    synchronized void add(long position, String text) {
+        for (String token : tokenize(text)) {
+            postings.computeIfAbsent(token, k -> new ChatHistoryStore.PositionList()).add(position);
+        }
+    }
+
+    public int termCount() {
+        return postings.size();
+    }
+
+    public int sealedSegmentCount() {
+        return sealed.size();
+    }
+
+    /**
+     * Vị trí các record khớp truy vấn, mới nhất trước, tối đa limit.
+     * more = còn record khớp khác, hoặc tiền tố khớp hơn MAX_PREFIX_TERMS từ (chỉ xét các từ đầu)
+     */
+    public static class Hits {
+        public final long[] positions;
+        public final boolean more;
+
+        Hits(long[] positions, boolean more) {
+            this.positions = positions;
+            this.more = more;
+        }
+    }
+
+    private static final Hits NO_HITS = new Hits(new long[0], false);
+
+    /**
+     * 1 posting list để duyệt: mảng trên heap (bản chụp View) hoặc đoạn .fts đã map
+     */
+    private static final class Postings {
+        private final long[] array;
+        private final LongBuffer buffer;
+        final int size;
+
+        Postings(ChatHistoryStore.View view) {
+            this.array = view.positions;
+            this.buffer = null;
+            this.size = view.size;
+        }
+
+        Postings(LongBuffer buffer) {
+            this.array = null;
+            this.buffer = buffer;
+            this.size = buffer.limit();
+        }
+
+        long get(int index) {
+            return array != null ? array[index] : buffer.get(index);
+        }
+
+        /**
+         * Chỉ số phần tử đầu tiên >= key (size nếu không có)
+         */
+        int lowerBound(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (get(mid) < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Trạng thái 1 lần tìm: kết quả gom dần qua các nguồn (heap, từng segment)
+     */
+    private static final class Collector {
+        final int limit;
+        long[] found;
+        int n = 0;
+        boolean capped = false;
+
+        Collector(int limit) {
+            this.limit = limit;
+            this.found = new long[Math.min(limit, 64)];
+        }
+    }
+
+    /**
+     * Duyệt heap trước rồi các segment đã đầy từ mới tới cũ; dừng ngay khi đủ limit
+     * và đã thấy thêm 1 kết quả (more) → truy vấn thường chỉ đụng 1-2 segment mới nhất.
+     */
+    public Hits search(String query, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return NO_HITS;
+        }
+        String prefix = terms.remove(terms.size() - 1);
+        Collector collector = new Collector(limit);
+
+        // Chụp posting trên heap TRƯỚC danh sách segment: segment vừa có .fts mà posting
+        // heap chưa bỏ thì bị loại nhờ khoảng [from, to) bên dưới, không trả trùng
+        List<Postings> memoryRequired = new ArrayList<>();
+        boolean memoryMissing = false;
+        for (String term : terms) {
+            ChatHistoryStore.PositionList list = postings.get(term);
+            if (list == null) {
+                memoryMissing = true;
+                break;
+            }
+            memoryRequired.add(new Postings(list.view()));
+        }
+        List<Postings> memoryAlternatives = new ArrayList<>();
+        if (!memoryMissing) {
+            for (ChatHistoryStore.PositionList list :
+                    postings.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+                if (memoryAlternatives.size() == MAX_PREFIX_TERMS) {
+                    collector.capped = true;
+                    break;
+                }
+                memoryAlternatives.add(new Postings(list.view()));
+            }
+        }
+        List<SegmentPostings> segments = new ArrayList<>(sealed.descendingMap().values());
+
+        // Các khoảng vị trí theo thứ tự giảm dần: phần heap phía trên mỗi segment, rồi segment đó
+        long upper = Long.MAX_VALUE;
+        for (SegmentPostings segment : segments) {
+            if (!memoryMissing && searchRange(memoryRequired, memoryAlternatives, segment.to, upper, collector)) {
+                return hits(collector, true);
+            }
+            if (searchSegment(segment, terms, prefix, collector)) {
+                return hits(collector, true);
+            }
+            upper = segment.from;
+        }
+        boolean more = !memoryMissing && searchRange(memoryRequired, memoryAlternatives, 0, upper, collector);
+        return hits(collector, more);
+    }
+
+    private static Hits hits(Collector collector, boolean more) {
+        return new Hits(Arrays.copyOf(collector.found, collector.n), more || collector.capped);
+    }
+
+    private static boolean searchSegment(SegmentPostings segment, List<String> terms, String prefix,
+                                         Collector collector) {
+        List<Postings> required = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings list = segment.find(term);
+            if (list == null) {
+                return false; // Segment này không có record nào khớp
+            }
+            required.add(list);
+        }
+        List<Postings> alternatives = new ArrayList<>();
+        if (segment.findPrefix(prefix, alternatives, MAX_PREFIX_TERMS)) {
+            collector.capped = true;
+        }
+        return searchRange(required, alternatives, segment.from, segment.to, collector);
+    }
+
+    /**
+     * Đi ngược từ cuối các posting list (không copy list nào), chỉ xét vị trí trong [from, to):
+     * ứng viên = vị trí lớn nhất của nhóm từ khớp tiền tố; mọi từ còn lại phải có đúng vị trí đó,
+     * không thì nhảy xuống vị trí lớn nhất của từ đó. Chi phí theo số kết quả, không theo độ dài
+     * posting list. Trả về true nếu đã đủ limit mà còn kết quả khác (more).
+     */
+    private static boolean searchRange(List<Postings> required, List<Postings> alternatives, long from, long to,
+                                       Collector collector) {
+        if (alternatives.isEmpty() || from >= to) {
+            return false;
+        }
+        // Giới hạn trên (loại trừ) còn xét của từng list - chỉ giảm dần
+        int[] requiredEnd = new int[required.size()];
+        for (int i = 0; i < requiredEnd.length; i++) {
+            requiredEnd[i] = required.get(i).size;
+        }
+        int[] alternativeEnd = new int[alternatives.size()];
+        for (int i = 0; i < alternativeEnd.length; i++) {
+            alternativeEnd[i] = alternatives.get(i).size;
+        }
+
+        long bound = to - 1;
+        search:
+        while (true) {
+            long candidate = -1;
+            for (int i = 0; i < alternativeEnd.length; i++) {
+                candidate = Math.max(candidate, floor(alternatives.get(i), alternativeEnd, i, bound));
+            }
+            if (candidate < from) {
+                return false;
+            }
+            for (int i = 0; i < requiredEnd.length; i++) {
+                long position = floor(required.get(i), requiredEnd, i, candidate);
+                if (position < from) {
+                    return false;
+                }
+                if (position != candidate) {
+                    bound = position;
+                    continue search;
+                }
+            }
+            if (collector.n == collector.limit) {
+                return true;
+            }
+            if (collector.n == collector.found.length) {
+                collector.found = Arrays.copyOf(collector.found, Math.min(collector.limit, collector.n * 2));
+            }
+            collector.found[collector.n++] = candidate;
+            bound = candidate - 1;
+        }
+    }
+
+    /**
+     * Vị trí lớn nhất <= key trong list[0, ends[i]) (-1 nếu không có), thu ends[i] lại ngay sau nó
+     */
+    private static long floor(Postings list, int[] ends, int i, long key) {
+        int index = key == Long.MAX_VALUE ? ends[i] : Math.min(ends[i], list.lowerBound(key + 1));
+        ends[i] = index;
+        return index == 0 ? -1 : list.get(index - 1);
+    }
+
+    // ==================== .fts ====================
+
+    /**
+     * .fts của 1 segment (chỉ vị trí trong [from, to)), token tăng dần:
+     * [độ dài token (short), token UTF-8, số vị trí (int), vị trí (long)...]...
+     * rồi thư mục thưa [offset entry (int), token đầu]... cho mỗi FTS_BLOCK_TOKENS token,
+     * cuối file [số block][số token][offset thư mục][FTS_MAGIC].
+     * Đọc thẳng đoạn [from, to) của từng posting list trên heap, không copy cả list.
+     */
+    void writeSegment(File file, long from, long to) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            DataOutputStream dir = new DataOutputStream(directory);
+            int tokens = 0;
+            for (Map.Entry<String, ChatHistoryStore.PositionList> entry : postings.entrySet()) {
+                ChatHistoryStore.View view = entry.getValue().view();
+                int start = view.lowerBound(from);
+                int end = view.lowerBound(to);
+                if (start >= end) {
+                    continue;
+                }
+                byte[] token = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (tokens % FTS_BLOCK_TOKENS == 0) {
+                    dir.writeInt(out.size());
+                    dir.writeShort(token.length);
+                    dir.write(token);
+                }
+                out.writeShort(token.length);
+                out.write(token);
+                out.writeInt(end - start);
+                for (int j = start; j < end; j++) {
+                    out.writeLong(view.positions[j]);
+                }
+                tokens++;
+            }
+            long directoryOffset = out.size();
+            directory.writeTo(out);
+            out.writeInt((tokens + FTS_BLOCK_TOKENS - 1) / FTS_BLOCK_TOKENS);
+            out.writeInt(tokens);
+            out.writeLong(directoryOffset);
+            out.writeInt(FTS_MAGIC);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+        }
+    }
+
+    /**
+     * Dùng .fts cho segment [from, to) thay cho posting trên heap: map file, nạp thư mục thưa,
+     * rồi bỏ các vị trí của segment khỏi heap. false nếu file hỏng / bản cũ (dựng lại).
+     */
+    synchronized boolean sealSegment(File file, long from, long to) {
+        SegmentPostings segment = SegmentPostings.open(file, from, to);
+        if (segment == null) {
+            return false;
+        }
+        sealed.put(from, segment);
+        Iterator<ChatHistoryStore.PositionList> it = postings.values().iterator();
+        while (it.hasNext()) {
+            ChatHistoryStore.PositionList list = it.next();
+            if (list.removeRange(from, to) && list.size() == 0) {
+                it.remove(); // An toàn: add() cũng synchronized trên index này
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 1 file .fts đã map (chỉ đọc). Trên heap chỉ có thư mục thưa: token đầu mỗi block.
+     */
+    private static final class SegmentPostings {
+        final long from;
+        final long to;
+        private final ByteBuffer map;
+        private final String[] blockFirst;
+        private final int[] blockOffset;
+        private final int directoryOffset;
+
+        private SegmentPostings(long from, long to, ByteBuffer map, String[] blockFirst, int[] blockOffset,
+                                int directoryOffset) {
+            this.from = from;
+            this.to = to;
+            this.map = map;
+            this.blockFirst = blockFirst;
+            this.blockOffset = blockOffset;
+            this.directoryOffset = directoryOffset;
+        }
+
+        static SegmentPostings open(File file, long from, long to) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length < FTS_TRAILER_BYTES || length > Integer.MAX_VALUE) {
+                    return null;
+                }
+                // Kiểm tra đuôi file trước khi map (file bản cũ thì không map, để ghi đè được)
+                ByteBuffer trailer = ByteBuffer.allocate(FTS_TRAILER_BYTES);
+                while (trailer.hasRemaining()) {
+                    if (channel.read(trailer, length - FTS_TRAILER_BYTES + trailer.position()) < 0) {
+                        return null;
+                    }
+                }
+                trailer.flip();
+                int blocks = trailer.getInt();
+                trailer.getInt(); // Số token
+                long directoryOffset = trailer.getLong();
+                if (trailer.getInt() != FTS_MAGIC || directoryOffset < 0 ||
+                        directoryOffset > length - FTS_TRAILER_BYTES || blocks < 0) {
+                    return null;
+                }
+                ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                String[] blockFirst = new String[blocks];
+                int[] blockOffset = new int[blocks];
+                ByteBuffer dir = map.duplicate();
+                dir.position((int) directoryOffset);
+                for (int i = 0; i < blocks; i++) {
+                    blockOffset[i] = dir.getInt();
+                    blockFirst[i] = readToken(dir);
+                }
+                return new SegmentPostings(from, to, map, blockFirst, blockOffset, (int) directoryOffset);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("⚠️ Cannot open search index " + file.getName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        private static String readToken(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Vị trí bắt đầu duyệt cho key: đầu block cuối cùng có token đầu <= key
+         */
+        private ByteBuffer cursorFor(String key) {
+            int low = 0;
+            int high = blockFirst.length - 1;
+            int block = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (blockFirst[mid].compareTo(key) <= 0) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            ByteBuffer cursor = map.duplicate();
+            cursor.position(blockFirst.length == 0 ? directoryOffset : blockOffset[block]);
+            return cursor;
+        }
+
+        /**
+         * Posting của token đang ở cursor (cursor nhảy qua entry đó)
+         */
+        private static Postings readPostings(ByteBuffer cursor) {
+            int count = cursor.getInt();
+            ByteBuffer slice = cursor.slice();
+            slice.limit(count * 8);
+            cursor.position(cursor.position() + count * 8);
+            return new Postings(slice.asLongBuffer());
+        }
+
+        Postings find(String token) {
+            ByteBuffer cursor = cursorFor(token);
+            while (cursor.position() < directoryOffset) {
+                int comparison = readToken(cursor).compareTo(token);
+                Postings postings = readPostings(cursor);
+                if (comparison == 0) {
+                    return postings;
+                }
+                if (comparison > 0) {
+                    return null;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Thêm posting của các token bắt đầu bằng prefix vào out (tối đa max), true nếu còn token khớp bị bỏ
+         */
+        boolean findPrefix(String prefix, List<Postings> out, int max) {
+            ByteBuffer cursor = cursorFor(prefix);
+            while (cursor.position() < directoryOffset) {
+                String token = readToken(cursor);
+                Postings postings = readPostings(cursor);
+                if (token.startsWith(prefix)) {
+                    if (out.size() == max) {
+                        return true;
+                    }
+                    out.add(postings);
+                } else if (token.compareTo(prefix) > 0) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local Address Service - IP LAN thực của máy (WiFi/Ethernet, bỏ qua WSL/Virtual/Docker)
+ *
+ * - Duyệt interface 1 lần, cache IPv4 đã chọn của từng interface
+ * - getLocalIp() chỉ đọc cache, gọi bao nhiêu lần cũng được (mỗi lần gửi file...)
+ * - Theo dõi thay đổi bằng polling rẻ: mỗi POLL_INTERVAL_MS chỉ kiểm tra lại interface
+ *   đang dùng (còn bật, còn giữ IP); cứ FULL_RESOLVE_EVERY lượt mới duyệt lại toàn bộ
+ *   (bắt trường hợp cắm dây / bật WiFi sau khi app đã chạy)
+ * - IP đổi (roam WiFi, DHCP cấp lại...) → báo các Listener
+ */
+public class LocalAddressService {
+    private static final int POLL_INTERVAL_MS = 5000;
+    private static final int FULL_RESOLVE_EVERY = 6; // ~30 giây
+    private static final String FALLBACK_IP = "127.0.0.1";
+
+    private static LocalAddressService instance;
+
+    public interface Listener {
+        void onLocalAddressChanged(String oldIp, String newIp);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Interface → IPv4 LAN đã chọn trên interface đó (theo thứ tự duyệt)
+    private volatile Map<String, String> interfaceAddresses = Collections.emptyMap();
+    private volatile String localIp;
+    private volatile String localInterface; // null = đang dùng IP fallback
+    private ScheduledExecutorService poller;
+    private int polls = 0;
+
+    private LocalAddressService() {
+    }
+
+    public static synchronized LocalAddressService getInstance() {
+        if (instance == null) {
+            instance = new LocalAddressService();
+        }
+        return instance;
+    }
+
+    /**
+     * IP LAN hiện tại (đã cache - lần đầu mới duyệt interface)
+     */
+    public String getLocalIp() {
+        String ip = localIp;
+        if (ip == null) {
+            synchronized (this) {
+                if (localIp == null) {
+                    resolve();
+                }
+                ip = localIp;
+            }
+        }
+        return ip;
+    }
+
+    public String getLocalInterface() {
+        getLocalIp();
+        return localInterface;
+    }
+
+    public Map<String, String> getInterfaceAddresses() {
+        getLocalIp();
+        return interfaceAddresses;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void startMonitoring() {
+        if (poller != null) {
+            return;
+        }
+        getLocalIp();
+        poller = Executors.newSingleThreadScheduledExecutor(
+                r -> TaskExecutor.getInstance().newDedicatedThread("local-address", r));
+        poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopMonitoring() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    private void poll() {
+        try {
+            String before = localIp;
+            synchronized (this) {
+                polls++;
+                if (polls % FULL_RESOLVE_EVERY == 0 || !currentInterfaceStillValid()) {
+                    resolve();
+                }
+            }
+            String after = localIp;
+            if (!after.equals(before)) {
+                System.out.println("🌐 Local IP changed: " + before + " → " + after +
+                        (localInterface != null ? " on " + localInterface : ""));
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onLocalAddressChanged(before, after);
+                    } catch (RuntimeException e) {
+                        System.err.println("❌ Local address listener failed: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("⚠️ Local address poll failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Kiểm tra rẻ: chỉ tra đúng 1 interface đang dùng
+     */
+    private boolean currentInterfaceStillValid() {
+        if (localInterface == null) {
+            return false;
+        }
+        try {
+            NetworkInterface iface = NetworkInterface.getByName(localInterface);
+            if (iface == null || !iface.isUp()) {
+                return false;
+            }
+            Enumeration<InetAddress> addresses = iface.getInetAddresses();
+            while (addresses.hasMoreElements()) {
+                if (addresses.nextElement().getHostAddress().equals(localIp)) {
+                    return true;
+                }
+            }
+        } catch (SocketException e) {
+            // Interface biến mất
+        }
+        return false;
+    }
+
+    /**
+     * Duyệt toàn bộ interface: bỏ loopback / tắt / ảo, lấy IPv4 thuộc dải LAN riêng
+     */
+    private void resolve() {
+        Map<String, String> found = new LinkedHashMap<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface iface = interfaces.nextElement();
+                if (iface.isLoopback() || !iface.isUp() || isVirtual(iface)) {
+                    continue;
+                }
+                Enumeration<InetAddress> addresses = iface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress addr = addresses.nextElement();
+                    if (addr instanceof Inet4Address && !addr.isLoopbackAddress() && isPrivateLan(addr.getHostAddress())) {
+                        found.put(iface.getName(), addr.getHostAddress());
+                        break;
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            System.err.println("❌ Error detecting IP: " + e.getMessage());
+        }
+        interfaceAddresses = Collections.unmodifiableMap(found);
+
+        // Đang dùng interface nào mà vẫn còn thì giữ nguyên, tránh nhảy qua lại
+        if (localInterface != null && found.containsKey(localInterface)) {
+            localIp = found.get(localInterface);
+            return;
+        }
+        if (!found.isEmpty()) {
+            Map.Entry<String, String> first = found.entrySet().iterator().next();
+            localInterface = first.getKey();
+            localIp = first.getValue();
+            System.out.println("✅ Selected IP: " + localIp + " on " + localInterface);
+            return;
+        }
+
+        localInterface = null;
+        try {
+            localIp = InetAddress.getLocalHost().getHostAddress();
+        } catch (Exception e) {
+            localIp = FALLBACK_IP;
+        }
+        System.out.println("⚠️ No suitable LAN interface, fallback IP: " + localIp);
+    }
+
+    private static boolean isVirtual(NetworkInterface iface) {
+        String name = (iface.getName() + " " + iface.getDisplayName()).toLowerCase();
+        return iface.isVirtual() || name.contains("wsl") || name.contains("virtual") ||
+                name.contains("vmware") || name.contains("vbox") || name.contains("docker") ||
+                name.contains("veth") || name.startsWith("br-");
+    }
+
+    /**
+     * 10.0.0.0/8, 172.16.0.0/12, 192.168.0.0/16
+     */
+    private static boolean isPrivateLan(String ip) {
+        if (ip.startsWith("10.") || ip.startsWith("192.168.")) {
+            return true;
+        }
+        if (ip.startsWith("172.")) {
+            String[] octets = ip.split("\\.");
+            int second = Integer.parseInt(octets[1]);
+            return second >= 16 && second <= 31;
+        }
+        return false;
+    }
+}
@@ -1,12 +1,16 @@
 import javafx.application.Platform;
 import javafx.stage.Stage;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 public class MainController {
     private Stage primaryStage;
     private AuthManager authManager;
     private ChatManager chatManager;
     private NetworkManager networkManager;
     private CallManager callManager;
+    private ChatHistoryStore historyStore;
 
     private String currentUser;
     private int myTcpPort;
@@ -29,11 +33,33 @@ public class MainController {
         this.myTcpPort = 8888 + Math.abs(username.hashCode() % 1000);
         this.myFilePort = 8890 + Math.abs(username.hashCode() % 1000);
 
+        historyStore = new ChatHistoryStore(currentUser);
+        // Ngưỡng nén lịch sử cũ, vd. -Dchat.history.archiveAfterDays=7 -Dchat.history.maxPlainMB=64
+        historyStore.setArchivePolicy(
+                TimeUnit.DAYS.toMillis(Long.getLong("chat.history.archiveAfterDays",
+                        ChatHistoryStore.DEFAULT_ARCHIVE_AFTER_DAYS)),
+                Long.getLong("chat.history.maxPlainMB", ChatHistoryStore.DEFAULT_MAX_PLAIN_MB) * 1024 * 1024);
+        String historyError = null;
+        try {
+            historyStore.open();
+        } catch (IOException e) {
+            // Vẫn chat được nhưng không lưu lịch sử: append() trả lỗi ngay, báo cho user biết
+            System.err.println("✗ Cannot open chat history: " + e.getMessage());
+            historyError = e.getMessage();
+        }
+
+        // Nạp chỉ mục shared_files/ ở thread nền ngay từ đầu → FX thread (preview ảnh) không phải dựng lần đầu
+        TaskExecutor.getInstance().execute("shared-file-index", SharedFileIndex::getInstance);
+
         networkManager.initialize(currentUser, myTcpPort, myFilePort);
         callManager.initialize(currentUser);
         chatManager.loadUserGroups();
         networkManager.startServer();
         chatManager.showChatScreen();
+        if (historyError != null) {
+            chatManager.showAlert("Lỗi", "Không mở được lịch sử chat (" + historyError +
+                    "). Tin nhắn trong phiên này sẽ không được lưu.");
+        }
     }
 
     // Getter methods
@@ -45,6 +71,7 @@ public class MainController {
     public ChatManager getChatManager() { return chatManager; }
     public NetworkManager getNetworkManager() { return networkManager; }
     public CallManager getCallManager() { return callManager; }
+    public ChatHistoryStore getHistoryStore() { return historyStore; }
 
     public void shutdown() {
         // Xóa session khi đăng xuất
@@ -54,6 +81,10 @@ public class MainController {
         }
         networkManager.shutdown();
         callManager.shutdown();
+        if (historyStore != null) {
+            historyStore.close(); // Ghi nốt các tin nhắn còn trong hàng đợi
+        }
+        TaskExecutor.getInstance().shutdown();
         Platform.exit();
         System.exit(0);
     }
@@ -0,0 +1,57 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Neighbor Table - Đọc bảng ARP của kernel (Linux: /proc/net/arp)
+ *
+ * Các host trong bảng vừa trao đổi gói với máy mình nên gần như chắc chắn đang bật,
+ * dùng làm ứng viên quét discovery trước, khỏi phải dò liveness cả subnet.
+ * Máy không có /proc/net/arp (Windows, macOS) → trả về rỗng, quét như cũ.
+ *
+ * Định dạng:
+ *   IP address       HW type     Flags       HW address            Mask     Device
+ *   192.168.1.1      0x1         0x2         aa:bb:cc:dd:ee:ff     *        wlan0
+ */
+public class NeighborTable {
+    private static final File ARP_TABLE = new File("/proc/net/arp");
+    private static final int ATF_COMPLETE = 0x2;
+    private static final String EMPTY_MAC = "00:00:00:00:00:00";
+
+    /**
+     * Các IPv4 trong bảng ARP thuộc subnet (dạng "192.168.1") đã có địa chỉ MAC
+     */
+    public static Set<String> hostsInSubnet(String subnet) {
+        Set<String> hosts = new LinkedHashSet<>();
+        if (!ARP_TABLE.canRead()) {
+            return hosts;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(ARP_TABLE), StandardCharsets.US_ASCII))) {
+            reader.readLine(); // Dòng tiêu đề
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length < 4 || !parts[0].startsWith(subnet + ".")) {
+                    continue;
+                }
+                try {
+                    int flags = Integer.decode(parts[2]);
+                    if ((flags & ATF_COMPLETE) != 0 && !parts[3].equals(EMPTY_MAC)) {
+                        hosts.add(parts[0]);
+                    }
+                } catch (NumberFormatException e) {
+                    // Dòng lạ - bỏ qua
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Cannot read ARP table: " + e.getMessage());
+        }
+        return hosts;
+    }
+}
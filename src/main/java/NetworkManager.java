@@ -4,20 +4,48 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NetworkManager {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 3000;
+    private static final int SEEN_GROUP_FRAMES = 4096;
+    private static final int HEARTBEAT_INTERVAL_MS = 5000;
+    private static final int MAX_MISSED_PONGS = 3;
+    private static final int UDP_DISCOVERY_WAIT_MS = 1500; // Không ai trả lời UDP → quét subnet
+    private static final int DISCOVERY_BASE_PORT = 11000;
+    private static final int DISCOVERY_PORT_COUNT = 50;
+    private static final int PROBE_TIMEOUT_MS = 500;
+    private static final int PEER_CACHE_SAVE_INTERVAL_MS = 60000;
+    private static final int GOSSIP_INTERVAL_MS = 30000;
+    private static final long GOSSIP_MAX_AGE_MS = 60000; // Peer bên kia không thấy lâu hơn → không nhận
+
     private MainController mainController;
     private String currentUser;
     private int myTcpPort;
     private int myFilePort;
     private int myDiscoveryPort;
 
-    private ServerSocket serverSocket;
+    private ChatTransport chatTransport;
+    private DiscoveryService discoveryService;
+    private DiscoveryScheduler discoveryScheduler;
+    private DiscoveryHub discoveryHub;
+    private PeerCache peerCache;
     private ServerSocket discoveryServer;
     private ServerSocket fileServer;
 
@@ -25,11 +53,49 @@ public class NetworkManager {
     private ConcurrentHashMap<String, PeerInfo> discoveredPeers;
     private ConcurrentHashMap<String, ChatGroup> chatGroups;
 
+    // Kết nối đang dial (single-flight), backoff khi lỗi, frame chờ kết nối xong
+    private final ConcurrentHashMap<String, CompletableFuture<PeerConnection>> pendingConnects = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConnectBackoff> connectBackoffs = new ConcurrentHashMap<>();
+    private final Map<String, List<Frame>> framesAwaitingConnect = new HashMap<>();
+    private final GroupFanout groupFanout = new GroupFanout(this);
+    private final LocalAddressService.Listener addressListener = this::onLocalAddressChanged;
+
+    // Bảng peer có version: mỗi lần thêm / đổi địa chỉ / xóa peer tăng version → PEER_LIST chỉ gửi phần thay đổi
+    private final AtomicLong peerTableVersion = new AtomicLong();
+    private final ConcurrentHashMap<String, Long> peerEntryVersions = new ConcurrentHashMap<>();
+    // Peer đã xóa: username → [version, thời điểm xóa] - gossip đi như 1 entry để peer khác cũng xóa
+    private final ConcurrentHashMap<String, long[]> peerTombstones = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> peerListVersions = new ConcurrentHashMap<>(); // Version đã nhận của từng peer
+    // Timer dùng chung cho heartbeat và các việc hẹn giờ của discovery
+    private final ScheduledExecutorService networkTimer = Executors.newSingleThreadScheduledExecutor(
+            r -> TaskExecutor.getInstance().newDedicatedThread("net-timer", r));
+
+    // Message id của tin nhắn / file nhóm đã xử lý - chế độ chuyển tiếp có thể nhận trùng
+    private final Set<Long> seenGroupFrames = Collections.synchronizedSet(Collections.newSetFromMap(
+            new LinkedHashMap<Long, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > SEEN_GROUP_FRAMES;
+                }
+            }));
+
     public NetworkManager(MainController mainController) {
         this.mainController = mainController;
         this.peerConnections = new ConcurrentHashMap<>();
         this.discoveredPeers = new ConcurrentHashMap<>();
         this.chatGroups = new ConcurrentHashMap<>();
+        this.chatTransport = new ChatTransport();
+        this.chatTransport.setListener(new ChatTransport.Listener() {
+            @Override
+            public void onFrame(PeerConnection connection, Frame frame) {
+                handleChatFrame(connection, frame);
+            }
+
+            @Override
+            public void onClosed(PeerConnection connection) {
+                handleConnectionClosed(connection);
+            }
+        });
     }
 
     public void initialize(String currentUser, int tcpPort, int filePort) {
@@ -39,35 +105,39 @@ public class NetworkManager {
         // Discovery port khác range với TẤT CẢ các port khác để tránh xung đột
         // TCP: 8888-9887, File: 8890-9889, Voice: 9xxx, Video: 9xxx, VideoAudio: 10xxx
         // Discovery: 11000-11049 (CHỈ 50 PORTS - NHANH HƠN)
-        this.myDiscoveryPort = 11000 + Math.abs(currentUser.hashCode() % 50);
+        // Discovery hub (chung cho cả máy): 11050, UDP discovery: 11100
+        this.myDiscoveryPort = DISCOVERY_BASE_PORT + Math.abs(currentUser.hashCode() % DISCOVERY_PORT_COUNT);
+        this.peerCache = new PeerCache(currentUser);
+        this.discoveryScheduler = new DiscoveryScheduler(this, networkTimer);
+        this.discoveryHub = new DiscoveryHub(this);
     }
 
     public void startServer() {
         startChatServer();
+        warmStartFromCache();
         startFileServer();
         startDiscoveryServer();
+        LocalAddressService addressService = LocalAddressService.getInstance();
+        addressService.addListener(addressListener);
+        addressService.startMonitoring();
+        discoveryHub.start(addressService.getLocalIp());
+        startUdpDiscovery();
         announcePresence();
         startHeartbeatChecker();
+        discoveryScheduler.start(addressService.getLocalIp());
     }
 
     private void startChatServer() {
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(myTcpPort);
-                System.out.println("✓ Chat server started on port: " + myTcpPort);
-
-                while (!Thread.currentThread().isInterrupted()) {
-                    Socket clientSocket = serverSocket.accept();
-                    handleNewConnection(clientSocket);
-                }
-            } catch (IOException e) {
-                System.out.println("Chat server stopped");
-            }
-        }).start();
+        try {
+            chatTransport.start(myTcpPort);
+            System.out.println("✓ Chat server started on port: " + myTcpPort);
+        } catch (IOException e) {
+            System.out.println("Chat server stopped: " + e.getMessage());
+        }
     }
 
     private void startFileServer() {
-        new Thread(() -> {
+        TaskExecutor.getInstance().startDedicated("file-server", () -> {
             try {
                 fileServer = new ServerSocket(myFilePort);
                 System.out.println("✓ File server started on port: " + myFilePort);
@@ -79,11 +149,11 @@ public class NetworkManager {
             } catch (IOException e) {
                 System.out.println("File server stopped");
             }
-        }).start();
+        });
     }
 
     private void startDiscoveryServer() {
-        new Thread(() -> {
+        TaskExecutor.getInstance().startDedicated("discovery-server", () -> {
             try {
                 discoveryServer = new ServerSocket(myDiscoveryPort);
                 System.out.println("✓ Discovery server started on port: " + myDiscoveryPort);
@@ -95,49 +165,153 @@ public class NetworkManager {
             } catch (IOException e) {
                 System.out.println("Discovery server stopped: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
-    private void handleNewConnection(Socket socket) {
-        new Thread(() -> {
-            try {
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream(), "UTF-8"));
-                PrintWriter writer = new PrintWriter(new OutputStreamWriter(
-                        socket.getOutputStream(), "UTF-8"), true);
+    /**
+     * Dial song song các peer trong cache lần trước (chat port + HELLO xác nhận đúng username).
+     * Peer trả lời → vào danh sách ngay, không chờ UDP discovery / quét subnet.
+     */
+    private void warmStartFromCache() {
+        Map<String, PeerInfo> cached = peerCache.load();
+        networkTimer.scheduleWithFixedDelay(() -> peerCache.save(discoveredPeers),
+                PEER_CACHE_SAVE_INTERVAL_MS, PEER_CACHE_SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (cached.isEmpty()) {
+            return;
+        }
 
-                String hello = reader.readLine();
-                if (hello != null && hello.startsWith("HELLO:")) {
-                    String peerName = hello.split(":")[1];
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<PeerConnection>> probes = new ArrayList<>();
+        for (Map.Entry<String, PeerInfo> entry : cached.entrySet()) {
+            String username = entry.getKey();
+            PeerInfo peer = entry.getValue();
+            if (username.equals(currentUser)) {
+                continue;
+            }
+            probes.add(connectToPeerAsync(username, peer).whenComplete((connection, error) -> {
+                if (error != null) {
+                    discoveryScheduler.onPeerDeparted(username, peer, false); // Vòng discovery sau thử lại
+                } else if (putPeer(username, peer)) {
+                    System.out.println("⚡ Cached peer online: " + username + " at " + peer.ip);
+                }
+            }));
+        }
 
-                    PeerConnection connection = new PeerConnection(socket, peerName, reader, writer);
-                    peerConnections.put(peerName, connection);
+        CompletableFuture.allOf(probes.toArray(CompletableFuture<?>[]::new)).whenComplete((v, error) -> {
+            long online = probes.stream().filter(p -> !p.isCompletedExceptionally()).count();
+            System.out.println("⚡ Warm start: " + online + "/" + probes.size() + " cached peers online in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        });
+    }
 
-                    writer.println("HELLO:" + currentUser);
+    private void startUdpDiscovery() {
+        discoveryService = new DiscoveryService(currentUser, () -> "ANNOUNCE:" + myPeerFields(),
+                this::handleDiscoveryDatagram);
+        try {
+            discoveryService.start(LocalAddressService.getInstance().getLocalIp());
+        } catch (IOException e) {
+            System.err.println("✗ UDP discovery unavailable: " + e.getMessage());
+            discoveryService = null;
+        }
+    }
 
-                    System.out.println("🤝 Established connection with: " + peerName);
+    /**
+     * [user, tcp port, file port, voice port, video port, video audio port, discovery port]
+     * nối bằng ':' - dùng chung cho ANNOUNCE / PEER
+     */
+    String myPeerFields() {
+        return currentUser + ":" + myTcpPort + ":" + myFilePort +
+                ":" + mainController.getCallManager().getVoiceCallManager().getVoicePort() +
+                ":" + mainController.getCallManager().getVideoCallManager().getVideoPort() +
+                ":" + mainController.getCallManager().getVideoCallManager().getAudioPort() +
+                ":" + myDiscoveryPort;
+    }
 
-                    String message;
-                    while ((message = reader.readLine()) != null) {
-                        handlePeerMessage(peerName, message);
-                    }
+    private void handleDiscoveryDatagram(String senderIp, String message) {
+        String[] parts = message.split(":");
+        try {
+            if (message.startsWith("ANNOUNCE:") && parts.length >= 8) {
+                String peerName = parts[1];
+                if (!discoveredPeers.containsKey(peerName)) {
+                    System.out.println("📡 UDP discovered peer: " + peerName + " at " + senderIp);
+                }
+                addPeer(peerName, senderIp, Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                        Integer.parseInt(parts[4]), Integer.parseInt(parts[5]),
+                        Integer.parseInt(parts[6]), Integer.parseInt(parts[7]));
+            } else if (message.startsWith("BYE:") && parts.length >= 2) {
+                PeerConnection connection = peerConnections.get(parts[1]);
+                if (connection != null) {
+                    connection.close();
+                }
+                removePeer(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Invalid discovery datagram from " + senderIp + ": " + message);
+        }
+    }
 
-                    peerConnections.remove(peerName);
-                    System.out.println("❌ Connection closed: " + peerName);
-                    
-                    // Kiểm tra xem peer còn online không trước khi xóa khỏi danh sách
-                    if (!peerConnections.containsKey(peerName)) {
-                        checkPeerOffline(peerName);
+    private void handleChatFrame(PeerConnection connection, Frame frame) {
+        // Frame đầu tiên của kết nối phải là HELLO
+        if (!connection.handshake.isDone()) {
+            if (frame.type == Frame.HELLO && frame.getString(0) != null) {
+                String peerName = frame.getString(0);
+                if (connection.peerName == null) {
+                    // Kết nối đến từ peer khác → trả lời HELLO
+                    connection.peerName = peerName;
+                    connection.send(Frame.of(Frame.HELLO, currentUser));
+                    connectBackoffs.remove(peerName);
+                    if (registerConnection(peerName, connection) == connection) {
+                        System.out.println("🤝 Established connection with: " + peerName);
                     }
                 }
-            } catch (IOException e) {
-                // Connection error
+                connection.handshake.complete(peerName);
+            } else {
+                connection.close();
             }
-        }).start();
+            return;
+        }
+
+        PeerInfo peer = discoveredPeers.get(connection.peerName);
+        if (peer != null) {
+            peer.recordSeen();
+        }
+        switch (frame.type) {
+            case Frame.PING:
+                connection.send(Frame.of(Frame.PONG, frame.getLong(0)));
+                return;
+            case Frame.PONG:
+                if (peer != null) {
+                    peer.recordPong(frame.getLong(0));
+                }
+                return;
+            case Frame.PEER_LIST_REQUEST:
+                connection.send(peerListFrame(frame.getLong(0)));
+                return;
+            case Frame.PEER_LIST:
+                handlePeerList(connection.peerName, frame);
+                return;
+            default:
+                handlePeerMessage(connection.peerName, frame);
+        }
+    }
+
+    private void handleConnectionClosed(PeerConnection connection) {
+        connection.handshake.cancel(false);
+        String peerName = connection.peerName;
+        if (peerName == null) {
+            return;
+        }
+
+        // Chỉ xóa nếu map vẫn đang trỏ tới đúng kết nối này
+        if (!peerConnections.remove(peerName, connection)) {
+            return; // Kết nối trùng đã bị thay thế - không phải peer offline
+        }
+        // Peer còn online hay không do heartbeat quyết định (dial lại ở lượt sau)
+        System.out.println("❌ Connection closed: " + peerName);
     }
 
     private void handleDiscoveryConnection(Socket socket) {
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("discovery-conn", () -> {
             try {
                 BufferedReader reader = new BufferedReader(
                         new InputStreamReader(socket.getInputStream()));
@@ -145,35 +319,7 @@ public class NetworkManager {
 
                 String message = reader.readLine();
                 if (message != null && message.startsWith("ANNOUNCE:")) {
-                    String[] parts = message.split(":");
-                    if (parts.length >= 8) {
-                        String peerName = parts[1];
-                        int peerPort = Integer.parseInt(parts[2]);
-                        int peerFilePort = Integer.parseInt(parts[3]);
-                        int peerVoicePort = Integer.parseInt(parts[4]);
-                        int peerVideoPort = Integer.parseInt(parts[5]);
-                        int peerVideoAudioPort = Integer.parseInt(parts[6]);
-                        int peerDiscoveryPort = Integer.parseInt(parts[7]);
-                        String peerIp = socket.getInetAddress().getHostAddress();
-
-                        if (!peerName.equals(currentUser)) {
-                            writer.println("PEER:" + currentUser + ":" + myTcpPort + ":" + myFilePort +
-                                    ":" + mainController.getCallManager().getVoiceCallManager().getVoicePort() +
-                                    ":" + mainController.getCallManager().getVideoCallManager().getVideoPort() +
-                                    ":" + mainController.getCallManager().getVideoCallManager().getAudioPort() +
-                                    ":" + myDiscoveryPort);
-                            
-                            // TRƯỚC khi thêm peer mới, gửi thông tin các peer hiện có cho peer mới
-                            sendExistingPeersToNewPeer(peerName, peerIp, peerDiscoveryPort);
-                            
-                            // Thêm peer mới vào danh sách
-                            addPeer(peerName, peerIp, peerPort, peerFilePort, peerVoicePort, peerVideoPort, peerVideoAudioPort, peerDiscoveryPort);
-                            System.out.println("✓ Discovered peer: " + peerName + " at " + peerIp + ":" + peerPort);
-                            
-                            // SAU khi thêm, thông báo cho tất cả peer hiện có về peer mới
-                            notifyExistingPeersAboutNewPeer(peerName, peerIp, peerPort, peerFilePort, peerVoicePort, peerVideoPort, peerVideoAudioPort, peerDiscoveryPort);
-                        }
-                    }
+                    answerAnnounce(message, socket.getInetAddress().getHostAddress(), writer);
                 } else if (message != null && message.startsWith("PEER_NOTIFY:")) {
                     // Nhận thông báo về peer mới từ peer khác
                     System.out.println("📬 [" + currentUser + "] Received PEER_NOTIFY: " + message);
@@ -189,7 +335,9 @@ public class NetworkManager {
                         int peerDiscoveryPort = Integer.parseInt(parts[8]);
 
                         if (!peerName.equals(currentUser)) {
-                            addPeer(peerName, peerIp, peerPort, peerFilePort, peerVoicePort, peerVideoPort, peerVideoAudioPort, peerDiscoveryPort);
+                            // Tin gián tiếp → chỉ thêm peer chưa biết, không ghi đè địa chỉ đang có
+                            putPeer(peerName, new PeerInfo(peerIp, peerPort, peerFilePort, peerVoicePort,
+                                    peerVideoPort, peerVideoAudioPort, peerDiscoveryPort));
                             System.out.println("✅ [" + currentUser + "] Added peer from notification: " + peerName + " at " + peerIp + ":" + peerPort);
                         } else {
                             System.out.println("⚠️ [" + currentUser + "] Ignored self notification");
@@ -203,11 +351,45 @@ public class NetworkManager {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Trả lời ANNOUNCE (discovery server riêng hoặc DiscoveryHub): gửi PEER của mình và
+     * TOÀN BỘ danh sách peer mình biết trong cùng kết nối (1 dòng) - các peer khác sẽ
+     * biết peer mới qua anti-entropy (PEER_LIST trên kênh chat). Trả về entry PEER_LIST
+     * của peer vừa announce (null nếu sai định dạng / chính mình).
+     */
+    String answerAnnounce(String message, String peerIp, PrintWriter writer) {
+        String[] parts = message.split(":");
+        if (parts.length < 8 || parts[1].equals(currentUser)) {
+            return null;
+        }
+        try {
+            String peerName = parts[1];
+            int peerPort = Integer.parseInt(parts[2]);
+            int peerFilePort = Integer.parseInt(parts[3]);
+            int peerVoicePort = Integer.parseInt(parts[4]);
+            int peerVideoPort = Integer.parseInt(parts[5]);
+            int peerVideoAudioPort = Integer.parseInt(parts[6]);
+            int peerDiscoveryPort = Integer.parseInt(parts[7]);
+
+            writer.println("PEER:" + myPeerFields());
+            writer.println("PEER_LIST:" + String.join(";", peerListEntries(0)));
+
+            // Thêm peer mới vào danh sách
+            addPeer(peerName, peerIp, peerPort, peerFilePort, peerVoicePort, peerVideoPort, peerVideoAudioPort, peerDiscoveryPort);
+            System.out.println("✓ Discovered peer: " + peerName + " at " + peerIp + ":" + peerPort);
+            return peerName + "," + peerIp + "," + peerPort + "," + peerFilePort + "," + peerVoicePort + "," +
+                    peerVideoPort + "," + peerVideoAudioPort + "," + peerDiscoveryPort + ",0";
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Invalid ANNOUNCE from " + peerIp + ": " + message);
+            return null;
+        }
     }
 
     private void handleFileTransfer(Socket socket) {
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("file-transfer", () -> {
             try {
                 DataInputStream dis = new DataInputStream(socket.getInputStream());
                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
@@ -245,436 +427,427 @@ public class NetworkManager {
             } catch (IOException e) {
                 System.err.println("✗ Error in file transfer: " + e.getMessage());
             }
-        }).start();
+        });
+    }
+
+    /**
+     * IP máy mình đổi (roam WiFi, DHCP cấp lại...): cập nhật các thành phần discovery
+     * rồi announce lại để peer biết địa chỉ mới (và tìm peer trên mạng mới)
+     */
+    private void onLocalAddressChanged(String oldIp, String newIp) {
+        if (discoveryService != null) {
+            discoveryService.updateLocalIp(newIp);
+        }
+        discoveryHub.setLocalIp(newIp);
+        discoveryScheduler.setLocalIp(newIp);
+        announcePresence();
     }
 
+    /**
+     * Tìm peer: hỏi qua UDP (multicast + broadcast) - cả subnet trả lời trong vài trăm ms.
+     * Chỉ khi không ai trả lời (mạng chặn UDP multicast/broadcast) mới quét subnet bằng TCP.
+     */
     public void announcePresence() {
-        new Thread(() -> {
-            ExecutorService executor = Executors.newFixedThreadPool(50); // Giới hạn 50 thread đồng thời
-            try {
-                // Lấy IP thực của WiFi/Ethernet, không phải WSL
-                String myIp = getRealLocalIp();
-                String subnet = myIp.substring(0, myIp.lastIndexOf('.'));
-
-                System.out.println("🔍 My IP: " + myIp);
-                System.out.println("🔍 My Discovery Port: " + myDiscoveryPort);
-                System.out.println("🔍 Scanning network: " + subnet + ".x on discovery ports 11000-11049 (50 ports)");
-
-                // ƯU TIÊN scan localhost trước (cùng máy)
-                System.out.println("🔍 Priority: Scanning localhost first...");
-                // Scan các port discovery từ 11000-11049 (CHỈ 50 PORTS)
-                for (int offset = 0; offset < 50; offset++) {
-                    int port = 11000 + offset;
-                    if (port == myDiscoveryPort) {
-                        continue; // Bỏ qua port của chính mình
-                    }
-                    
-                    final int scanPort = port;
-                    executor.submit(() -> {
-                        try {
-                            Socket socket = new Socket();
-                            socket.connect(new InetSocketAddress(myIp, scanPort), 200);
-
-                            System.out.println("🔗 Connected to localhost:" + scanPort);
-
-                            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                            writer.println("ANNOUNCE:" + currentUser + ":" + myTcpPort + ":" + myFilePort +
-                                    ":" + mainController.getCallManager().getVoiceCallManager().getVoicePort() +
-                                    ":" + mainController.getCallManager().getVideoCallManager().getVideoPort() +
-                                    ":" + mainController.getCallManager().getVideoCallManager().getAudioPort() +
-                                    ":" + myDiscoveryPort);
-
-                            BufferedReader reader = new BufferedReader(
-                                    new InputStreamReader(socket.getInputStream()));
-                            String response = reader.readLine();
-
-                            System.out.println("📥 Response from port " + scanPort + ": " + response);
-
-                            if (response != null && response.startsWith("PEER:")) {
-                                String[] parts = response.split(":");
-                                System.out.println("✅ Valid PEER response, parts: " + parts.length);
-                                if (parts.length >= 8) {
-                                    String peerName = parts[1];
-                                    int peerPort = Integer.parseInt(parts[2]);
-                                    int peerFilePort = Integer.parseInt(parts[3]);
-                                    int peerVoicePort = Integer.parseInt(parts[4]);
-                                    int peerVideoPort = Integer.parseInt(parts[5]);
-                                    int peerVideoAudioPort = Integer.parseInt(parts[6]);
-                                    int peerDiscoveryPort = Integer.parseInt(parts[7]);
-
-                                    System.out.println("👤 Found peer: " + peerName + " (current: " + currentUser + ")");
-                                    
-                                    if (!peerName.equals(currentUser)) {
-                                        addPeer(peerName, myIp, peerPort, peerFilePort, peerVoicePort, peerVideoPort, peerVideoAudioPort, peerDiscoveryPort);
-                                        System.out.println("✅ Successfully added peer: " + peerName);
-                                    } else {
-                                        System.out.println("⏭️ Skipped self: " + peerName);
-                                    }
-                                }
-                            }
+        if (discoveryService == null) {
+            scanSubnet();
+            return;
+        }
+        discoveryService.announce();
+        discoveryService.query();
+        networkTimer.schedule(() -> {
+            if (discoveredPeers.isEmpty()) {
+                System.out.println("⚠️ No UDP discovery replies after " + UDP_DISCOVERY_WAIT_MS + "ms, falling back to subnet scan");
+                scanSubnet();
+            }
+        }, UDP_DISCOVERY_WAIT_MS, TimeUnit.MILLISECONDS);
+    }
 
-                            socket.close();
-                        } catch (IOException e) {
-                            // Port not open - this is normal, don't log
-                        }
-                    });
-                }
-                
-                // SAU ĐÓ scan các IP khác trong subnet (các máy khác)
-                System.out.println("🔍 Finding active hosts in subnet...");
-                
-                // BƯỚC 1: Tìm các IP đang hoạt động (NHANH - chỉ mất vài giây)
-                java.util.List<String> activeHosts = new java.util.ArrayList<>();
-                java.util.concurrent.CountDownLatch pingLatch = new java.util.concurrent.CountDownLatch(254);
-                
-                long pingStartTime = System.currentTimeMillis();
-                
-                for (int i = 1; i < 255; i++) {
-                    final String targetIp = subnet + "." + i;
-                    if (targetIp.equals(myIp)) {
-                        pingLatch.countDown(); // Bỏ qua localhost
-                        continue;
-                    }
-                    
-                    executor.submit(() -> {
-                        try {
-                            InetAddress addr = InetAddress.getByName(targetIp);
-                            if (addr.isReachable(300)) { // Tăng timeout lên 300ms
-                                synchronized(activeHosts) {
-                                    activeHosts.add(targetIp);
-                                }
-                                System.out.println("✓ Host alive (ping): " + targetIp);
-                            } else {
-                                // Nếu ping thất bại, thử TCP connect đến port 445 (SMB - thường mở trên Windows)
-                                try {
-                                    Socket testSocket = new Socket();
-                                    testSocket.connect(new InetSocketAddress(targetIp, 445), 200);
-                                    testSocket.close();
-                                    synchronized(activeHosts) {
-                                        activeHosts.add(targetIp);
-                                    }
-                                    System.out.println("✓ Host alive (TCP 445): " + targetIp);
-                                } catch (IOException e) {
-                                    // Thử port 135 (RPC - cũng thường mở trên Windows)
-                                    try {
-                                        Socket testSocket2 = new Socket();
-                                        testSocket2.connect(new InetSocketAddress(targetIp, 135), 200);
-                                        testSocket2.close();
-                                        synchronized(activeHosts) {
-                                            activeHosts.add(targetIp);
-                                        }
-                                        System.out.println("✓ Host alive (TCP 135): " + targetIp);
-                                    } catch (IOException e2) {
-                                        // Host thực sự không hoạt động
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            // Host không hoạt động
-                        } finally {
-                            pingLatch.countDown();
-                        }
-                    });
+    /**
+     * Quét subnet bằng PortProber (1 thread, connect không chặn, kết quả về dần).
+     * Mỗi host chỉ 1 probe tới port DiscoveryHub nên không cần dò liveness trước:
+     * 1. Ứng viên chắc chắn đang bật - bảng ARP của kernel + IP peer đã thấy gần đây
+     *    (danh sách hiện tại, peer cache) - quét trước, cùng với máy mình
+     * 2. Phần còn lại của subnet quét ngay sau đó
+     * Port nào mở là bắt tay ANNOUNCE/PEER ngay, không chờ hết lượt quét.
+     */
+    private void scanSubnet() {
+        TaskExecutor.getInstance().execute("subnet-scan", () -> {
+            String myIp = LocalAddressService.getInstance().getLocalIp();
+            String subnet = myIp.substring(0, myIp.lastIndexOf('.'));
+            PortProber prober = PortProber.getInstance();
+            long startTime = System.currentTimeMillis();
+
+            System.out.println("🔍 My IP: " + myIp);
+            System.out.println("🔍 My Discovery Port: " + myDiscoveryPort);
+            System.out.println("🔍 Scanning network: " + subnet + ".x on discovery hub port " + DiscoveryHub.HUB_PORT);
+
+            // BƯỚC 1: Máy mình (cùng máy) + ứng viên từ ARP / peer đã biết
+            Set<String> candidates = discoveryCandidates(subnet);
+            int seededHosts = candidates.size();
+            candidates.add(myIp);
+            CompletableFuture<PortProber.Job> seeded = prober.probe(
+                    discoveryTargets(new ArrayList<>(candidates), myIp), PROBE_TIMEOUT_MS, this::onDiscoveryProbe)
+                    .completion();
+            System.out.println("🔍 Seeded " + seededHosts + " candidate host(s) from ARP table / known peers");
+
+            // BƯỚC 2: Phần còn lại của subnet
+            List<String> remaining = new ArrayList<>();
+            for (int i = 1; i < 255; i++) {
+                String targetIp = subnet + "." + i;
+                if (!candidates.contains(targetIp)) {
+                    remaining.add(targetIp);
                 }
-                
-                // Đợi ping xong HOẶC timeout 8 giây
-                boolean pingFinished = pingLatch.await(8, TimeUnit.SECONDS);
-                long pingDuration = System.currentTimeMillis() - pingStartTime;
-                System.out.println("🔍 Ping completed in " + pingDuration + "ms: " + pingFinished + ", Found " + activeHosts.size() + " active hosts");
-                System.out.println("🔍 Active hosts: " + activeHosts);
-                
-                // BƯỚC 2: CHỈ scan discovery port trên các IP ĐANG HOẠT ĐỘNG
-                long scanStartTime = System.currentTimeMillis();
-                
-                // QUAN TRỌNG: Nếu ít active hosts (<5), thêm scan một số IP phổ biến
-                // Vì một số máy Windows chặn ICMP ping nhưng vẫn mở ports
-                if (activeHosts.size() < 5) {
-                    System.out.println("⚠️ Only " + activeHosts.size() + " hosts found via ping. Adding common IPs as fallback...");
-                    // Thêm các IP phổ biến trong dải 192.168.1.x
-                    for (int i = 50; i < 100; i++) { // Scan .50-.99 (thường là DHCP range)
-                        String commonIp = subnet + "." + i;
-                        if (!commonIp.equals(myIp) && !activeHosts.contains(commonIp)) {
-                            activeHosts.add(commonIp);
-                        }
-                    }
-                    System.out.println("🔍 Extended scan list to " + activeHosts.size() + " IPs");
-                }
-                
-                System.out.println("🔍 Starting discovery port scan (50 ports per host) on " + activeHosts.size() + " hosts...");
-                
-                for (String activeIp : activeHosts) {
-                    System.out.println("🔍 Scanning " + activeIp + " for discovery ports 11000-11049 (50 ports)...");
-                    for (int offset = 0; offset < 50; offset++) {
-                        final int scanPort = 11000 + offset;
-                        final String targetIp = activeIp;
-                        
-                        executor.submit(() -> {
-                            try {
-                                Socket socket = new Socket();
-                                socket.connect(new InetSocketAddress(targetIp, scanPort), 200);
-
-                                System.out.println("🔗 Connected to " + targetIp + ":" + scanPort);
-
-                                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                                writer.println("ANNOUNCE:" + currentUser + ":" + myTcpPort + ":" + myFilePort +
-                                        ":" + mainController.getCallManager().getVoiceCallManager().getVoicePort() +
-                                        ":" + mainController.getCallManager().getVideoCallManager().getVideoPort() +
-                                        ":" + mainController.getCallManager().getVideoCallManager().getAudioPort() +
-                                        ":" + myDiscoveryPort);
-
-                                BufferedReader reader = new BufferedReader(
-                                        new InputStreamReader(socket.getInputStream()));
-                                String response = reader.readLine();
-
-                                System.out.println("📥 Response from " + targetIp + ":" + scanPort + " = " + response);
-
-                                if (response != null && response.startsWith("PEER:")) {
-                                    String[] parts = response.split(":");
-                                    if (parts.length >= 8) {
-                                        String peerName = parts[1];
-                                        int peerPort = Integer.parseInt(parts[2]);
-                                        int peerFilePort = Integer.parseInt(parts[3]);
-                                        int peerVoicePort = Integer.parseInt(parts[4]);
-                                        int peerVideoPort = Integer.parseInt(parts[5]);
-                                        int peerVideoAudioPort = Integer.parseInt(parts[6]);
-                                        int peerDiscoveryPort = Integer.parseInt(parts[7]);
-
-                                        System.out.println("👤 Found peer on other machine: " + peerName + " at " + targetIp);
-
-                                        if (!peerName.equals(currentUser)) {
-                                            addPeer(peerName, targetIp, peerPort, peerFilePort, peerVoicePort, peerVideoPort, peerVideoAudioPort, peerDiscoveryPort);
-                                            System.out.println("✅ Successfully added remote peer: " + peerName + " (" + targetIp + ")");
-                                        } else {
-                                            System.out.println("⏭️ Skipped self: " + peerName);
-                                        }
-                                    }
-                                }
+            }
+            CompletableFuture<PortProber.Job> swept = prober.probe(
+                    discoveryTargets(remaining, myIp), PROBE_TIMEOUT_MS, this::onDiscoveryProbe)
+                    .completion();
+
+            seeded.thenCombine(swept, (seededScan, sweptScan) -> {
+                System.out.println("✅ Network scan completed: seeded " + seededScan + ", swept " + sweptScan);
+                System.out.println("⏱️ Total time: " + (System.currentTimeMillis() - startTime) + "ms");
+                return null;
+            });
+        });
+    }
 
-                                socket.close();
-                            } catch (IOException e) {
-                                // Port not open or connection refused
-                            }
-                        });
-                    }
-                }
-                
-                executor.shutdown();
-                boolean finished = executor.awaitTermination(60, TimeUnit.SECONDS); // Giảm xuống 60s vì ít port hơn
-                long totalDuration = System.currentTimeMillis() - pingStartTime;
-                long scanDuration = System.currentTimeMillis() - scanStartTime;
-                System.out.println("✅ Network scan completed (finished=" + finished + ")");
-                System.out.println("⏱️ Total time: " + totalDuration + "ms (Ping: " + pingDuration + "ms, Scan: " + scanDuration + "ms)");
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                executor.shutdownNow();
+    /**
+     * Host gần như chắc chắn đang bật trong subnet: bảng ARP của kernel
+     * và IP của các peer đã thấy (đang online / trong peer cache)
+     */
+    private Set<String> discoveryCandidates(String subnet) {
+        Set<String> candidates = new LinkedHashSet<>(NeighborTable.hostsInSubnet(subnet));
+        for (PeerInfo peer : discoveredPeers.values()) {
+            candidates.add(peer.ip);
+        }
+        candidates.addAll(peerCache.knownIps());
+        candidates.removeIf(ip -> !ip.startsWith(subnet + "."));
+        return candidates;
+    }
+
+    /**
+     * Mỗi host chỉ cần 1 probe: DiscoveryHub trên máy đó trả lời cho mọi user
+     */
+    List<InetSocketAddress> discoveryTargets(List<String> hosts, String myIp) {
+        List<InetSocketAddress> targets = new ArrayList<>(hosts.size());
+        for (String host : hosts) {
+            if (!host.equals(myIp) || !discoveryHub.isHub()) { // Bỏ qua hub của chính mình
+                targets.add(new InetSocketAddress(host, DiscoveryHub.HUB_PORT));
             }
-        }).start();
+        }
+        return targets;
     }
 
-    private String getRealLocalIp() {
-        try {
-            System.out.println("🔍 Detecting network interfaces...");
-            // Thử tìm IP không phải loopback và không phải WSL
-            java.util.Enumeration<java.net.NetworkInterface> interfaces = java.net.NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                java.net.NetworkInterface iface = interfaces.nextElement();
-                
-                System.out.println("  📡 Interface: " + iface.getDisplayName() + " (up=" + iface.isUp() + ", loopback=" + iface.isLoopback() + ")");
-                
-                // Bỏ qua interface đã tắt và loopback
-                if (iface.isLoopback() || !iface.isUp()) {
-                    continue;
-                }
-                
-                String ifaceName = iface.getDisplayName().toLowerCase();
-                // Ưu tiên WiFi và Ethernet, bỏ qua WSL
-                if (ifaceName.contains("wsl") || ifaceName.contains("virtual") || 
-                    ifaceName.contains("vmware") || ifaceName.contains("vbox")) {
-                    System.out.println("  ⏭️  Skipping virtual interface: " + iface.getDisplayName());
-                    continue;
-                }
-                
-                java.util.Enumeration<java.net.InetAddress> addresses = iface.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    java.net.InetAddress addr = addresses.nextElement();
-                    System.out.println("    🔸 Address: " + addr.getHostAddress() + " (IPv4=" + (addr instanceof java.net.Inet4Address) + ")");
-                    
-                    // Chỉ lấy IPv4, không phải loopback
-                    if (addr instanceof java.net.Inet4Address && !addr.isLoopbackAddress()) {
-                        String ip = addr.getHostAddress();
-                        // Ưu tiên dải 192.168.x.x (WiFi thường dùng)
-                        if (ip.startsWith("192.168.") || ip.startsWith("10.") || ip.startsWith("172.")) {
-                            System.out.println("✅ Selected IP: " + ip + " on " + iface.getDisplayName());
-                            return ip;
-                        }
+    void onDiscoveryProbe(InetSocketAddress address, PortProber.Result result) {
+        if (result == PortProber.Result.OPEN) {
+            String ip = address.getAddress().getHostAddress();
+            TaskExecutor.getInstance().execute("discovery-handshake", () -> announceTo(ip, address.getPort()));
+        }
+    }
+
+    /**
+     * Bắt tay với discovery server của peer: gửi ANNOUNCE, nhận PEER (peer đó)
+     * và PEER_LIST (các peer nó biết)
+     */
+    private void announceTo(String ip, int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ip, port), PROBE_TIMEOUT_MS);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            writer.println("ANNOUNCE:" + myPeerFields());
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            String response = reader.readLine();
+
+            System.out.println("📥 Response from " + ip + ":" + port + " = " + response);
+
+            if (response != null && response.startsWith("PEER:")) {
+                String[] parts = response.split(":");
+                if (parts.length >= 8) {
+                    String peerName = parts[1];
+                    if (!peerName.equals(currentUser)) {
+                        addPeer(peerName, ip, Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                                Integer.parseInt(parts[4]), Integer.parseInt(parts[5]),
+                                Integer.parseInt(parts[6]), Integer.parseInt(parts[7]));
+                        System.out.println("✅ Successfully added peer: " + peerName + " (" + ip + ")");
+                    } else {
+                        System.out.println("⏭️ Skipped self: " + peerName);
                     }
                 }
+                // Dòng thứ 2: danh sách peer bên kia đang biết (PEER_LIST)
+                mergePeerListLine(reader.readLine());
             }
-            
-            System.out.println("⚠️ No suitable IP found, using fallback...");
-        } catch (Exception e) {
-            System.err.println("❌ Error detecting IP: ");
-            e.printStackTrace();
-        }
-        
-        // Fallback về localhost nếu không tìm thấy
-        try {
-            String fallbackIp = InetAddress.getLocalHost().getHostAddress();
-            System.out.println("🔄 Fallback IP: " + fallbackIp);
-            return fallbackIp;
-        } catch (Exception e) {
-            System.out.println("🔄 Ultimate fallback: 127.0.0.1");
-            return "127.0.0.1";
+        } catch (IOException | NumberFormatException e) {
+            // Không phải discovery server / peer vừa thoát
         }
     }
 
+    /**
+     * Peer tự announce (UDP, ANNOUNCE / PEER qua TCP): thêm nếu chưa có,
+     * đã có mà đổi IP / port thì cập nhật (cùng 1 chỗ kiểm tra cho mọi đường discovery)
+     */
     private void addPeer(String username, String ip, int port, int filePort,
                          int voicePort, int videoPort, int videoAudioPort, int discoveryPort) {
-        if (!discoveredPeers.containsKey(username)) {
-            PeerInfo peer = new PeerInfo(ip, port, filePort, voicePort, videoPort, videoAudioPort, discoveryPort);
-            discoveredPeers.put(username, peer);
+        PeerInfo announced = new PeerInfo(ip, port, filePort, voicePort, videoPort, videoAudioPort, discoveryPort);
+        PeerInfo known = discoveredPeers.get(username);
+        if (known == null) {
+            putPeer(username, announced);
+        } else if (!known.sameEndpoints(announced)) {
+            updatePeer(username, known, announced);
+        }
+    }
 
-            mainController.getChatManager().refreshContactList();
-            System.out.println("➕ Added peer: " + username);
+    /**
+     * Thêm peer (nếu chưa có) và đánh version mới trong bảng peer để gửi đi ở lần PEER_LIST sau
+     */
+    private boolean putPeer(String username, PeerInfo peer) {
+        if (discoveredPeers.putIfAbsent(username, peer) != null) {
+            return false;
         }
+        peerEntryVersions.put(username, peerTableVersion.incrementAndGet());
+        peerTombstones.remove(username);
+        discoveryScheduler.onPeerAdded(username);
+        mainController.getChatManager().refreshContactList();
+        System.out.println("➕ Added peer: " + username);
+        return true;
     }
 
-    private void removePeer(String username) {
-        if (discoveredPeers.containsKey(username)) {
-            discoveredPeers.remove(username);
-            mainController.getChatManager().refreshContactList();
-            System.out.println("➖ Removed peer (offline): " + username);
+    /**
+     * Peer đổi IP / port: thay entry bằng địa chỉ mới, đánh version mới để gossip lan đi.
+     * Kết nối mình dial tới địa chỉ cũ thì đóng luôn, heartbeat sẽ dial lại địa chỉ mới.
+     */
+    private void updatePeer(String username, PeerInfo known, PeerInfo updated) {
+        if (!discoveredPeers.replace(username, known, updated)) {
+            return;
+        }
+        peerEntryVersions.put(username, peerTableVersion.incrementAndGet());
+        if (!known.ip.equals(updated.ip) || known.port != updated.port) {
+            PeerConnection connection = peerConnections.get(username);
+            if (connection != null && connection.outbound) {
+                connection.close();
+            }
+        }
+        if (known.ip.equals(updated.ip)) {
+            System.out.println("🔧 Peer " + username + " changed ports: " + updated);
+        } else {
+            System.out.println("🌐 Peer " + username + " moved: " + known.ip + " → " + updated.ip);
+        }
+    }
+
+    /**
+     * Các peer có version > since, mỗi peer 1 chuỗi:
+     * username,ip,port,filePort,voicePort,videoPort,videoAudioPort,discoveryPort,msSinceLastSeen
+     * Peer đã xóa gửi dạng tombstone: username,-,msSinceRemoved (bản cũ bỏ qua vì thiếu field)
+     */
+    List<String> peerListEntries(long since) {
+        List<String> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PeerInfo> entry : discoveredPeers.entrySet()) {
+            Long version = peerEntryVersions.get(entry.getKey());
+            if (version == null || version <= since) {
+                continue;
+            }
+            PeerInfo peer = entry.getValue();
+            entries.add(entry.getKey() + "," + peer.ip + "," + peer.port + "," + peer.filePort + "," +
+                    peer.voicePort + "," + peer.videoPort + "," + peer.videoAudioPort + "," +
+                    peer.discoveryPort + "," + (now - peer.getLastSeen()));
+        }
+        for (Map.Entry<String, long[]> entry : peerTombstones.entrySet()) {
+            long[] tombstone = entry.getValue();
+            if (tombstone[0] > since) {
+                entries.add(entry.getKey() + ",-," + (now - tombstone[1]));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * PEER_LIST: [version bảng peer của bên gửi, entry...] - chỉ chứa peer mới hơn since.
+     * since lớn hơn version hiện tại (bên kia nhớ version của lần chạy trước) → gửi toàn bộ.
+     */
+    private Frame peerListFrame(long since) {
+        long version = peerTableVersion.get();
+        List<String> entries = peerListEntries(since > version ? 0 : since);
+        Object[] fields = new Object[1 + entries.size()];
+        fields[0] = version;
+        for (int i = 0; i < entries.size(); i++) {
+            fields[i + 1] = entries.get(i);
         }
+        return Frame.of(Frame.PEER_LIST, fields);
     }
 
-    private void checkPeerOffline(String username) {
-        // Kiểm tra xem peer có còn online không bằng cách thử kết nối lại
+    private void handlePeerList(String from, Frame frame) {
+        peerListVersions.put(from, frame.getLong(0));
+        for (int i = 1; i < frame.fieldCount(); i++) {
+            mergePeerEntry(frame.getString(i));
+        }
+    }
+
+    void mergePeerListLine(String line) {
+        if (line == null || !line.startsWith("PEER_LIST:")) {
+            return;
+        }
+        for (String entry : line.substring("PEER_LIST:".length()).split(";")) {
+            mergePeerEntry(entry);
+        }
+    }
+
+    private void mergePeerEntry(String entry) {
+        String[] parts = entry.split(",");
+        if (parts[0].equals(currentUser)) {
+            return;
+        }
+        try {
+            if (parts.length >= 3 && parts[1].equals("-")) {
+                mergeTombstone(parts[0], System.currentTimeMillis() - Long.parseLong(parts[2]));
+                return;
+            }
+            if (parts.length < 9) {
+                return;
+            }
+            long msSinceSeen = Long.parseLong(parts[8]);
+            if (msSinceSeen > GOSSIP_MAX_AGE_MS) {
+                return; // Bên kia cũng lâu rồi không thấy peer này
+            }
+            long seenAt = System.currentTimeMillis() - msSinceSeen;
+            long[] tombstone = peerTombstones.get(parts[0]);
+            if (tombstone != null && tombstone[1] >= seenAt) {
+                return; // Mình đã xóa peer này sau lần cuối bên kia thấy nó → không hồi sinh
+            }
+            PeerInfo gossiped = new PeerInfo(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                    Integer.parseInt(parts[4]), Integer.parseInt(parts[5]),
+                    Integer.parseInt(parts[6]), Integer.parseInt(parts[7]));
+            gossiped.restoreHeartbeat(seenAt, -1);
+            PeerInfo known = discoveredPeers.get(parts[0]);
+            if (known == null) {
+                putPeer(parts[0], gossiped);
+            } else if (!known.sameEndpoints(gossiped) && seenAt > known.getLastSeen()
+                    && getLiveConnection(parts[0]) == null) {
+                // Bên kia thấy peer ở địa chỉ mới gần đây hơn mình
+                updatePeer(parts[0], known, gossiped);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("⚠️ Invalid peer list entry: " + entry);
+        }
+    }
+
+    /**
+     * Tombstone từ peer khác: xóa nếu mình không thấy peer đó kể từ lúc bên kia xóa
+     * và cũng không còn kết nối sống tới nó
+     */
+    private void mergeTombstone(String username, long removedAt) {
         PeerInfo peer = discoveredPeers.get(username);
-        if (peer == null) {
-            return; // Đã bị xóa rồi
+        if (peer == null || peer.getLastSeen() >= removedAt || getLiveConnection(username) != null) {
+            return;
         }
+        System.out.println("🪦 Peer " + username + " reported offline by gossip");
+        removePeer(username);
+    }
 
-        new Thread(() -> {
-            try {
-                // Thử kết nối đến discovery port để kiểm tra peer còn online không
-                Socket testSocket = new Socket();
-                testSocket.connect(new InetSocketAddress(peer.ip, peer.discoveryPort), 1000);
-                testSocket.close();
-                
-                // Nếu kết nối được, peer vẫn online, không làm gì
-                System.out.println("✓ Peer " + username + " still online");
-            } catch (IOException e) {
-                // Không kết nối được, peer đã offline
-                System.out.println("❌ Peer " + username + " is offline, removing from list");
-                removePeer(username);
+    /**
+     * Anti-entropy: mỗi lượt hỏi 1 peer ngẫu nhiên những gì thay đổi từ version
+     * lần trước mình nhận của nó → bảng peer hội tụ với O(N) message mỗi lượt
+     */
+    private void gossipPeerList() {
+        // Tombstone cũ hơn GOSSIP_MAX_AGE_MS không cần giữ: entry cũ như vậy đã bị bỏ qua khi merge
+        long expired = System.currentTimeMillis() - GOSSIP_MAX_AGE_MS;
+        peerTombstones.values().removeIf(tombstone -> tombstone[1] < expired);
+
+        List<PeerConnection> live = new ArrayList<>();
+        for (PeerConnection connection : peerConnections.values()) {
+            if (connection.isAlive()) {
+                live.add(connection);
             }
-        }).start();
+        }
+        if (live.isEmpty()) {
+            return;
+        }
+        PeerConnection target = live.get(ThreadLocalRandom.current().nextInt(live.size()));
+        requestPeerList(target);
+    }
+
+    private void requestPeerList(PeerConnection connection) {
+        long since = peerListVersions.getOrDefault(connection.peerName, 0L);
+        connection.send(Frame.of(Frame.PEER_LIST_REQUEST, since));
+    }
+
+    /**
+     * Dial lại peer đã biết nhưng đang vắng (DiscoveryScheduler) - HELLO đúng tên thì thêm lại
+     */
+    CompletableFuture<PeerConnection> revalidatePeer(String username, PeerInfo peer) {
+        return connectToPeerAsync(username, peer).thenApply(connection -> {
+            putPeer(username, peer);
+            return connection;
+        });
     }
 
+    private void removePeer(String username) {
+        PeerInfo peer = discoveredPeers.remove(username);
+        if (peer != null) {
+            peerEntryVersions.remove(username);
+            peerTombstones.put(username, new long[]{peerTableVersion.incrementAndGet(), System.currentTimeMillis()});
+            discoveryScheduler.onPeerDeparted(username, peer, true);
+            mainController.getChatManager().refreshContactList();
+            System.out.println("➖ Removed peer (offline): " + username);
+        }
+    }
+
+    /**
+     * Heartbeat trên chính kết nối chat: 1 timer duy nhất, mỗi HEARTBEAT_INTERVAL_MS
+     * - Peer có kết nối: gửi PING (kèm nanoTime), PONG trả về → RTT / jitter / last-seen
+     * - Peer chưa có kết nối: dial (single-flight + backoff), kết nối giữ lại cho lần sau
+     * - Lỡ MAX_MISSED_PONGS lần liên tiếp → coi là offline, xóa khỏi danh sách
+     */
     private void startHeartbeatChecker() {
-        // Kiểm tra định kỳ các peer còn online không (mỗi 10 giây)
-        new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    Thread.sleep(10000); // 10 giây
-                    
-                    // Kiểm tra các peer không có connection active
-                    for (String username : new java.util.ArrayList<>(discoveredPeers.keySet())) {
-                        // Nếu không có connection active, kiểm tra peer còn online không
-                        if (!peerConnections.containsKey(username) || 
-                            (peerConnections.get(username) != null && !peerConnections.get(username).isAlive())) {
-                            checkPeerOffline(username);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    break;
-                } catch (Exception e) {
-                    System.err.println("❌ Error in heartbeat checker: " + e.getMessage());
-                }
+        networkTimer.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeatTick();
+            } catch (Exception e) {
+                System.err.println("❌ Error in heartbeat checker: " + e.getMessage());
             }
-        }).start();
-        
+        }, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        networkTimer.scheduleWithFixedDelay(this::gossipPeerList,
+                GOSSIP_INTERVAL_MS, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
         System.out.println("💓 Heartbeat checker started");
     }
 
-    private void sendExistingPeersToNewPeer(String newPeerName, String newPeerIp, int newPeerDiscoveryPort) {
-        // Gửi thông tin về TẤT CẢ các peer hiện có cho peer mới
-        System.out.println("🔄 [" + currentUser + "] Sending existing peers to new peer: " + newPeerName);
-        System.out.println("🔄 Current peers in list: " + discoveredPeers.keySet());
-        
-        for (String existingPeerName : discoveredPeers.keySet()) {
-            if (!existingPeerName.equals(newPeerName)) {
-                PeerInfo existingPeer = discoveredPeers.get(existingPeerName);
-                
-                new Thread(() -> {
-                    try {
-                        Socket socket = new Socket();
-                        socket.connect(new InetSocketAddress(newPeerIp, newPeerDiscoveryPort), 2000);
-                        
-                        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                        String notifyMsg = "PEER_NOTIFY:" + existingPeerName + ":" + existingPeer.ip + ":" + 
-                                      existingPeer.port + ":" + existingPeer.filePort + ":" + 
-                                      existingPeer.voicePort + ":" + existingPeer.videoPort + ":" + 
-                                      existingPeer.videoAudioPort + ":" + existingPeer.discoveryPort;
-                        writer.println(notifyMsg);
-                        
-                        socket.close();
-                        System.out.println("✅ [" + currentUser + "] Sent " + existingPeerName + " info to " + newPeerName);
-                    } catch (IOException e) {
-                        System.out.println("❌ [" + currentUser + "] Failed to send " + existingPeerName + " to " + newPeerName + ": " + e.getMessage());
-                    }
-                }).start();
-            }
-        }
-    }
-    
-    private void notifyExistingPeersAboutNewPeer(String newPeerName, String newPeerIp, int newPeerPort, 
-                                                  int newPeerFilePort, int newPeerVoicePort, 
-                                                  int newPeerVideoPort, int newPeerVideoAudioPort, int newPeerDiscoveryPort) {
-        // Thông báo cho TẤT CẢ các peer hiện có về peer mới (KHÔNG bao gồm peer mới)
-        System.out.println("🔄 [" + currentUser + "] Notifying existing peers about new peer: " + newPeerName);
-        System.out.println("🔄 Current peers in list: " + discoveredPeers.keySet());
-        
-        for (String existingPeerName : discoveredPeers.keySet()) {
-            if (!existingPeerName.equals(newPeerName)) {
-                PeerInfo existingPeer = discoveredPeers.get(existingPeerName);
-                
-                new Thread(() -> {
-                    try {
-                        Socket socket = new Socket();
-                        socket.connect(new InetSocketAddress(existingPeer.ip, existingPeer.discoveryPort), 2000);
-                        
-                        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                        String notifyMsg = "PEER_NOTIFY:" + newPeerName + ":" + newPeerIp + ":" + 
-                                      newPeerPort + ":" + newPeerFilePort + ":" + 
-                                      newPeerVoicePort + ":" + newPeerVideoPort + ":" + 
-                                      newPeerVideoAudioPort + ":" + newPeerDiscoveryPort;
-                        writer.println(notifyMsg);
-                        
-                        socket.close();
-                        System.out.println("✅ [" + currentUser + "] Notified " + existingPeerName + " about " + newPeerName);
-                    } catch (IOException e) {
-                        System.out.println("❌ [" + currentUser + "] Failed to notify " + existingPeerName + " about " + newPeerName + ": " + e.getMessage());
+    private void heartbeatTick() {
+        for (Map.Entry<String, PeerInfo> entry : discoveredPeers.entrySet()) {
+            String username = entry.getKey();
+            PeerInfo peer = entry.getValue();
+            PeerConnection connection = getLiveConnection(username);
+            if (connection != null) {
+                long now = System.nanoTime();
+                if (peer.recordPingSent(now) >= MAX_MISSED_PONGS) {
+                    System.out.println("❌ Peer " + username + " missed " + MAX_MISSED_PONGS + " pongs, removing from list");
+                    connection.close();
+                    removePeer(username);
+                } else {
+                    connection.send(Frame.of(Frame.PING, now));
+                }
+            } else {
+                connectToPeerAsync(username).whenComplete((c, error) -> {
+                    if (error != null && peer.recordMissedPong() >= MAX_MISSED_PONGS) {
+                        System.out.println("❌ Peer " + username + " is offline, removing from list");
+                        removePeer(username);
                     }
-                }).start();
+                });
             }
         }
     }
 
-    public void handlePeerMessage(String from, String message) {
-        System.out.println("📩 From " + from + ": " + message);
+    public void handlePeerMessage(String from, Frame frame) {
+        System.out.println("📩 From " + from + ": " + frame);
 
-        String[] parts = message.split(":", 3);
-        String type = parts[0];
-        
-        // Xử lý các message không có dấu : (như TYPING, STOP_TYPING)
-        if (parts.length == 1) {
-            if (type.equals("TYPING")) {
+        switch (frame.type) {
+            case Frame.TYPING:
                 System.out.println("📝 Received TYPING from: " + from);
                 System.out.println("📝 Current chat target: " + mainController.getChatManager().getCurrentChatTarget());
                 System.out.println("📝 Is group chat: " + mainController.getChatManager().isGroupChat());
-                
+
                 if (mainController.getChatManager().getCurrentChatTarget() != null &&
                     mainController.getChatManager().getCurrentChatTarget().equals(from) &&
                     !mainController.getChatManager().isGroupChat()) {
@@ -683,8 +856,9 @@ public class NetworkManager {
                 } else {
                     System.out.println("⚠️ Not showing typing indicator - conditions not met");
                 }
-                return;
-            } else if (type.equals("STOP_TYPING")) {
+                break;
+
+            case Frame.STOP_TYPING:
                 System.out.println("🛑 Received STOP_TYPING from: " + from);
                 if (mainController.getChatManager().getCurrentChatTarget() != null &&
                     mainController.getChatManager().getCurrentChatTarget().equals(from) &&
@@ -692,121 +866,55 @@ public class NetworkManager {
                     System.out.println("✅ Hiding typing indicator for: " + from);
                     mainController.getChatManager().hideTypingIndicator(from);
                 }
-                return;
+                break;
+
+            case Frame.MESSAGE: {
+                String content = frame.getString(0);
+                mainController.getChatManager().displayMessage(from, content, false);
+                saveChatHistory(from, content, false);
+                break;
             }
-        }
-        
-        if (parts.length < 2) return;
-
-        if (type.equals("MESSAGE") && parts.length >= 3) {
-            String content = parts[2];
-            mainController.getChatManager().displayMessage(from, content, false);
-            saveChatHistory(from, content, false);
-
-        } else if (type.equals("FILE") && parts.length >= 3) {
-            handleIncomingFile(from, parts[2]);
-
-        } else if (type.equals("GROUP_MESSAGE") && parts.length >= 3) {
-            String groupName = parts[1];
-            String content = parts[2];
-            String[] messageParts = content.split(":", 2);
-            if (messageParts.length >= 2) {
-                String sender = messageParts[0].trim();
-                String actualMessage = messageParts[1].trim();
+
+            case Frame.FILE:
+                // [tên file, kích thước, IP người gửi, tên file lưu trữ]
+                handleIncomingFile(from, frame.getString(0), frame.getLong(1), frame.getString(2), frame.getString(3));
+                break;
+
+            case Frame.GROUP_MESSAGE: {
+                // [tên nhóm, người gửi, nội dung, (số nhánh chuyển tiếp)]
+                String groupName = frame.getString(0);
+                String sender = frame.getString(1);
+                String actualMessage = frame.getString(2);
                 boolean isSentByMe = sender.equals(currentUser);
+                if (!acceptGroupFrame(groupName, sender, frame)) {
+                    break;
+                }
 
                 if (mainController.getChatManager().getCurrentChatTarget() != null &&
                         mainController.getChatManager().getCurrentChatTarget().equals(groupName) &&
                         mainController.getChatManager().isGroupChat()) {
                     mainController.getChatManager().displayMessage(sender, actualMessage, isSentByMe);
                 }
+                saveChatHistory(groupName + "_group", sender + ": " + actualMessage, false);
+                break;
             }
-            saveChatHistory(groupName + "_group", content, false);
-
-        } else if (type.equals("GROUP_SYNC") && parts.length >= 3) {
-            // XỬ LÝ ĐỒNG BỘ NHÓM
-            String groupName = parts[1];
-            String restData = parts[2];
-            String[] groupData = restData.split(":", 2);
-
-            if (groupData.length >= 2) {
-                String creator = groupData[0];
-                String membersList = groupData[1];
-
-                // Tạo hoặc cập nhật nhóm
-                ChatGroup group = chatGroups.get(groupName);
-                java.util.Set<String> oldMembers = new java.util.HashSet<>();
-                if (group != null) {
-                    oldMembers.addAll(group.members);
-                } else {
-                    group = new ChatGroup(groupName, creator);
-                    chatGroups.put(groupName, group);
-                }
-
-                // Cập nhật danh sách thành viên
-                group.members.clear();
-                String[] members = membersList.split(",");
-                for (String member : members) {
-                    group.addMember(member.trim());
-                }
-
-                // Phát hiện thành viên đã rời nhóm
-                final ChatGroup finalGroup = group; // Make effectively final
-                java.util.Set<String> leftMembers = new java.util.HashSet<>(oldMembers);
-                leftMembers.removeAll(finalGroup.members);
-                
-                // Gửi thông báo vào chat nếu có thành viên rời
-                for (String leftMember : leftMembers) {
-                    if (!leftMember.equals(currentUser)) {
-                        String notification = "⚠️ " + leftMember + " đã rời nhóm";
-                        mainController.getChatManager().displayMessage("System", notification, false);
-                        saveChatHistory(groupName + "_group", notification, false);
-                        System.out.println("📢 " + leftMember + " left group " + groupName);
-                    }
-                }
-
-                // Phát hiện thành viên mới
-                java.util.Set<String> newMembers = new java.util.HashSet<>(finalGroup.members);
-                newMembers.removeAll(oldMembers);
-                for (String newMember : newMembers) {
-                    if (!newMember.equals(currentUser)) {
-                        String notification = "✅ " + newMember + " đã tham gia nhóm";
-                        mainController.getChatManager().displayMessage("System", notification, false);
-                        saveChatHistory(groupName + "_group", notification, false);
-                        System.out.println("📢 " + newMember + " joined group " + groupName);
-                    }
-                }
-
-                // Lưu nhóm vào file
-                saveGroup(finalGroup);
 
-                // Cập nhật giao diện
-                mainController.getChatManager().refreshContactList();
-                
-                // Cập nhật title nếu đang chat với nhóm này
-                if (mainController.getChatManager().getCurrentChatTarget() != null &&
-                    mainController.getChatManager().getCurrentChatTarget().equals(groupName)) {
-                    final int memberCount = finalGroup.members.size();
-                    javafx.application.Platform.runLater(() -> {
-                        mainController.getChatManager().updateGroupTitle(groupName, memberCount);
-                    });
+            case Frame.GROUP_SYNC:
+                handleGroupSync(frame);
+                break;
+
+            case Frame.GROUP_FILE: {
+                // [tên nhóm, người gửi, tên file, kích thước, IP người gửi, tên file lưu trữ, (số nhánh chuyển tiếp)]
+                String groupName = frame.getString(0);
+                String sender = frame.getString(1);
+                String fileName = frame.getString(2);
+                long fileSize = frame.getLong(3);
+                String senderIp = frame.getString(4);
+                String uniqueFileName = frame.getString(5);
+                if (!acceptGroupFrame(groupName, sender, frame)) {
+                    break;
                 }
 
-                System.out.println("✓ Received group sync: " + groupName + " with " + group.members.size() + " members");
-            }
-
-        } else if (type.equals("GROUP_FILE") && parts.length >= 3) {
-            String groupName = parts[1];
-            String fileData = parts[2];
-            String[] fileInfo = fileData.split("\\|");
-
-            if (fileInfo.length >= 5) {
-                String sender = fileInfo[0];
-                String fileName = fileInfo[1];
-                long fileSize = Long.parseLong(fileInfo[2]);
-                String senderIp = fileInfo[3];
-                String uniqueFileName = fileInfo[4];
-
                 PeerInfo senderPeer = discoveredPeers.get(sender);
                 if (senderPeer != null) {
                     downloadFileFromPeer(senderIp, senderPeer.filePort, uniqueFileName, fileName, () -> {
@@ -817,69 +925,141 @@ public class NetworkManager {
                         }
                     });
                 }
-                saveChatHistory(groupName + "_group", "[FILE:" + fileName + "]", false);
+                saveChatHistory(groupName + "_group", sender + ": " +
+                        SharedFileIndex.historyMessage(fileName, uniqueFileName), false);
+                break;
             }
 
-        } else if (type.equals("CALL_ACCEPTED")) {
-            mainController.getCallManager().handleCallAccepted(from);
+            case Frame.CALL_ACCEPTED:
+                mainController.getCallManager().handleCallAccepted(from);
+                break;
 
-        } else if (type.equals("CALL_REJECTED")) {
-            mainController.getCallManager().handleCallRejected(from);
+            case Frame.CALL_REJECTED:
+                mainController.getCallManager().handleCallRejected(from);
+                break;
 
-        } else if (type.equals("VIDEO_CALL_ACCEPTED")) {
-            mainController.getCallManager().handleVideoCallAccepted(from);
+            case Frame.VIDEO_CALL_ACCEPTED:
+                mainController.getCallManager().handleVideoCallAccepted(from);
+                break;
 
-        } else if (type.equals("VIDEO_CALL_REJECTED")) {
-            mainController.getCallManager().handleVideoCallRejected(from);
+            case Frame.VIDEO_CALL_REJECTED:
+                mainController.getCallManager().handleVideoCallRejected(from);
+                break;
 
-
-        } else if (type.equals("GROUP_TYPING") && parts.length >= 3) {
-            // Hiển thị typing indicator cho nhóm
-            String groupName = parts[1];
-            String typingUser = parts[2];
-            if (mainController.getChatManager().getCurrentChatTarget() != null &&
-                mainController.getChatManager().getCurrentChatTarget().equals(groupName) &&
-                mainController.getChatManager().isGroupChat() &&
-                !typingUser.equals(currentUser)) {
-                mainController.getChatManager().showTypingIndicator(typingUser);
+            case Frame.GROUP_TYPING: {
+                // Hiển thị typing indicator cho nhóm
+                String groupName = frame.getString(0);
+                String typingUser = frame.getString(1);
+                if (mainController.getChatManager().getCurrentChatTarget() != null &&
+                    mainController.getChatManager().getCurrentChatTarget().equals(groupName) &&
+                    mainController.getChatManager().isGroupChat() &&
+                    !typingUser.equals(currentUser)) {
+                    mainController.getChatManager().showTypingIndicator(typingUser);
+                }
+                break;
             }
 
-        } else if (type.equals("GROUP_STOP_TYPING") && parts.length >= 3) {
-            // Ẩn typing indicator cho nhóm
-            String groupName = parts[1];
-            String typingUser = parts[2];
-            if (mainController.getChatManager().getCurrentChatTarget() != null &&
-                mainController.getChatManager().getCurrentChatTarget().equals(groupName) &&
-                mainController.getChatManager().isGroupChat()) {
-                mainController.getChatManager().hideTypingIndicator(typingUser);
+            case Frame.GROUP_STOP_TYPING: {
+                // Ẩn typing indicator cho nhóm
+                String groupName = frame.getString(0);
+                String typingUser = frame.getString(1);
+                if (mainController.getChatManager().getCurrentChatTarget() != null &&
+                    mainController.getChatManager().getCurrentChatTarget().equals(groupName) &&
+                    mainController.getChatManager().isGroupChat()) {
+                    mainController.getChatManager().hideTypingIndicator(typingUser);
+                }
+                break;
             }
+
+            default:
+                System.out.println("⚠️ Unknown frame type from " + from + ": " + Frame.typeName(frame.type));
         }
     }
 
-    private void handleIncomingFile(String from, String fileInfo) {
-        String[] fileData = fileInfo.split("\\|");
-        if (fileData.length >= 4) {
-            String fileName = fileData[0];
-            long fileSize = Long.parseLong(fileData[1]);
-            String senderIp = fileData[2];
-            String uniqueFileName = fileData[3];
+    private void handleGroupSync(Frame frame) {
+        // XỬ LÝ ĐỒNG BỘ NHÓM: [tên nhóm, người tạo, chế độ chuyển tiếp (0/1), thành viên...]
+        String groupName = frame.getString(0);
+        String creator = frame.getString(1);
 
-            PeerInfo senderPeer = discoveredPeers.get(from);
-            if (senderPeer != null) {
-                downloadFileFromPeer(senderIp, senderPeer.filePort, uniqueFileName, fileName, () -> {
-                    if (mainController.getChatManager().getCurrentChatTarget() != null &&
-                            mainController.getChatManager().getCurrentChatTarget().equals(from) &&
-                            !mainController.getChatManager().isGroupChat()) {
-                        mainController.getChatManager().displayFileMessage(from, fileName, fileSize, uniqueFileName, false);
-                    }
-                });
+        // Tạo hoặc cập nhật nhóm
+        ChatGroup group = chatGroups.get(groupName);
+        java.util.Set<String> oldMembers = new java.util.HashSet<>();
+        if (group != null) {
+            oldMembers.addAll(group.members);
+        } else {
+            group = new ChatGroup(groupName, creator);
+            chatGroups.put(groupName, group);
+        }
+
+        // Cập nhật danh sách thành viên (cây chuyển tiếp được tính lại theo danh sách mới)
+        List<String> syncedMembers = new ArrayList<>();
+        for (int i = 3; i < frame.fieldCount(); i++) {
+            syncedMembers.add(frame.getString(i));
+        }
+        group.setMembers(syncedMembers);
+        group.relayDelivery = frame.getLong(2) != 0;
+
+        // Phát hiện thành viên đã rời nhóm
+        final ChatGroup finalGroup = group; // Make effectively final
+        java.util.Set<String> leftMembers = new java.util.HashSet<>(oldMembers);
+        leftMembers.removeAll(finalGroup.members);
+        
+        // Gửi thông báo vào chat nếu có thành viên rời
+        for (String leftMember : leftMembers) {
+            if (!leftMember.equals(currentUser)) {
+                String notification = "⚠️ " + leftMember + " đã rời nhóm";
+                mainController.getChatManager().displayMessage("System", notification, false);
+                saveChatHistory(groupName + "_group", notification, false);
+                System.out.println("📢 " + leftMember + " left group " + groupName);
+            }
+        }
+
+        // Phát hiện thành viên mới
+        java.util.Set<String> newMembers = new java.util.HashSet<>(finalGroup.members);
+        newMembers.removeAll(oldMembers);
+        for (String newMember : newMembers) {
+            if (!newMember.equals(currentUser)) {
+                String notification = "✅ " + newMember + " đã tham gia nhóm";
+                mainController.getChatManager().displayMessage("System", notification, false);
+                saveChatHistory(groupName + "_group", notification, false);
+                System.out.println("📢 " + newMember + " joined group " + groupName);
             }
-            saveChatHistory(from, "[FILE:" + fileName + "]", false);
         }
+
+        // Lưu nhóm vào file
+        saveGroup(finalGroup);
+
+        // Cập nhật giao diện
+        mainController.getChatManager().refreshContactList();
+        
+        // Cập nhật title nếu đang chat với nhóm này
+        if (mainController.getChatManager().getCurrentChatTarget() != null &&
+            mainController.getChatManager().getCurrentChatTarget().equals(groupName)) {
+            final int memberCount = finalGroup.members.size();
+            javafx.application.Platform.runLater(() -> {
+                mainController.getChatManager().updateGroupTitle(groupName, memberCount);
+            });
+        }
+
+        System.out.println("✓ Received group sync: " + groupName + " with " + group.members.size() + " members");
+    }
+
+    private void handleIncomingFile(String from, String fileName, long fileSize, String senderIp, String uniqueFileName) {
+        PeerInfo senderPeer = discoveredPeers.get(from);
+        if (senderPeer != null) {
+            downloadFileFromPeer(senderIp, senderPeer.filePort, uniqueFileName, fileName, () -> {
+                if (mainController.getChatManager().getCurrentChatTarget() != null &&
+                        mainController.getChatManager().getCurrentChatTarget().equals(from) &&
+                        !mainController.getChatManager().isGroupChat()) {
+                    mainController.getChatManager().displayFileMessage(from, fileName, fileSize, uniqueFileName, false);
+                }
+            });
+        }
+        saveChatHistory(from, SharedFileIndex.historyMessage(fileName, uniqueFileName), false);
     }
 
     private void downloadFileFromPeer(String senderIp, int senderFilePort, String uniqueFileName, String displayName, Runnable onComplete) {
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("file-download", () -> {
             System.out.println("📥 [FILE] Starting download:");
             System.out.println("  - Sender IP: " + senderIp);
             System.out.println("  - Sender Port: " + senderFilePort);
@@ -890,6 +1070,7 @@ public class NetworkManager {
                 File existingFile = new File("shared_files/" + uniqueFileName);
                 if (existingFile.exists()) {
                     System.out.println("✓ File already exists: " + uniqueFileName);
+                    SharedFileIndex.getInstance().record(uniqueFileName, displayName);
                     if (onComplete != null) {
                         onComplete.run();
                     }
@@ -931,6 +1112,7 @@ public class NetworkManager {
 
                     fos.close();
                     socket.close();
+                    SharedFileIndex.getInstance().record(uniqueFileName, displayName);
 
                     System.out.println("✓ Downloaded file: " + displayName + " (server name: " + fileName + ", " + totalBytesRead + " bytes)");
 
@@ -958,148 +1140,335 @@ public class NetworkManager {
                 e.printStackTrace();
                 mainController.getChatManager().showAlert("Lỗi", "Lỗi tải file: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
     public void ensureConnection(String username) {
         if (!peerConnections.containsKey(username)) {
-            connectToPeer(username);
+            connectToPeerAsync(username);
         }
     }
 
-    public PeerConnection connectToPeer(String username) {
+    /**
+     * Kết nối tới peer KHÔNG chặn thread gọi.
+     * - Nhiều nơi gọi cùng lúc cho 1 username → dùng chung 1 lần dial (single-flight)
+     * - Peer lỗi liên tục → chờ backoff tăng dần (1s, 2s, 4s... tối đa 60s) mới dial lại
+     */
+    public CompletableFuture<PeerConnection> connectToPeerAsync(String username) {
         PeerConnection existing = peerConnections.get(username);
         if (existing != null && existing.isAlive()) {
-            return existing;
+            return CompletableFuture.completedFuture(existing);
         }
 
         PeerInfo peer = discoveredPeers.get(username);
-        if (peer == null) return null;
+        if (peer == null) {
+            return CompletableFuture.failedFuture(new IOException("Unknown peer: " + username));
+        }
+        return connectToPeerAsync(username, peer);
+    }
 
-        try {
-            Socket socket = new Socket(peer.ip, peer.port);
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
-            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
-                    socket.getOutputStream(), "UTF-8"), true);
+    /**
+     * Dial tới địa chỉ trong peer (có thể chưa nằm trong discoveredPeers - vd. peer từ cache).
+     * HELLO trả về phải đúng username, nếu không coi như dial thất bại.
+     */
+    private CompletableFuture<PeerConnection> connectToPeerAsync(String username, PeerInfo peer) {
+        PeerConnection existing = peerConnections.get(username);
+        if (existing != null && existing.isAlive()) {
+            return CompletableFuture.completedFuture(existing);
+        }
 
-            writer.println("HELLO:" + currentUser);
+        ConnectBackoff backoff = connectBackoffs.get(username);
+        if (backoff != null && backoff.isWaiting()) {
+            return CompletableFuture.failedFuture(new IOException("Backing off " + username));
+        }
 
-            String response = reader.readLine();
-            if (response != null && response.startsWith("HELLO:")) {
-                PeerConnection connection = new PeerConnection(socket, username, reader, writer);
-                peerConnections.put(username, connection);
+        CompletableFuture<PeerConnection> promise = new CompletableFuture<>();
+        CompletableFuture<PeerConnection> inProgress = pendingConnects.putIfAbsent(username, promise);
+        if (inProgress != null) {
+            return inProgress;
+        }
 
-                new Thread(() -> {
-                    try {
-                        String message;
-                        while ((message = reader.readLine()) != null) {
-                            handlePeerMessage(username, message);
-                        }
-                    } catch (IOException e) {
-                        // Connection closed
-                    } finally {
-                        peerConnections.remove(username);
-                        
-                        // Kiểm tra nếu không còn connection nào với peer này, xóa khỏi danh sách
-                        // Chỉ xóa nếu không có connection active và không thể reconnect
-                        if (!peerConnections.containsKey(username)) {
-                            // Thử kiểm tra xem peer còn online không bằng cách ping
-                            checkPeerOffline(username);
+        chatTransport.connectAsync(peer.ip, peer.port, CONNECT_TIMEOUT_MS)
+                .thenCompose(connection -> {
+                    connection.peerName = username;
+                    connection.send(Frame.of(Frame.HELLO, currentUser));
+                    return connection.handshake
+                            .orTimeout(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .handle((name, error) -> {
+                                if (error != null || !username.equals(name)) {
+                                    connection.close();
+                                    throw new CompletionException(error != null ? error
+                                            : new IOException("Expected " + username + " but " + name + " answered"));
+                                }
+                                return connection;
+                            });
+                })
+                .whenComplete((connection, error) -> {
+                    pendingConnects.remove(username, promise);
+                    PeerConnection current = peerConnections.get(username);
+                    if (error != null && current != null && current.isAlive()) {
+                        // Dial thua trong lúc peer cũng kết nối tới mình → dùng kết nối kia
+                        connectBackoffs.remove(username);
+                        promise.complete(current);
+                    } else if (error != null) {
+                        ConnectBackoff failed = connectBackoffs.computeIfAbsent(username, k -> new ConnectBackoff());
+                        long delay = failed.recordFailure();
+                        System.err.println("✗ Failed to connect to: " + username + " (retry in " + delay + "ms)");
+                        failPendingFrames(username);
+                        promise.completeExceptionally(error);
+                    } else {
+                        connectBackoffs.remove(username);
+                        PeerConnection winner = registerConnection(username, connection);
+                        if (winner == connection) {
+                            System.out.println("✓ Connected to: " + username);
                         }
+                        promise.complete(winner);
                     }
-                }).start();
+                });
+
+        return promise;
+    }
+
+    /**
+     * Gửi frame tới peer: có kết nối thì gửi ngay, chưa có thì xếp hàng chờ
+     * kết nối xong (giữ đúng thứ tự) - không bao giờ chặn thread gọi.
+     */
+    private void sendToPeer(String username, Frame frame) {
+        if (!queueUntilConnected(username, frame)) {
+            return;
+        }
+        connectToPeerAsync(username).exceptionally(error -> {
+            failPendingFrames(username);
+            return null;
+        });
+    }
+
+    /**
+     * Có kết nối đang sống thì gửi ngay và trả về false; chưa có thì xếp frame
+     * vào hàng chờ (registerConnection sẽ gửi) và trả về true - nơi gọi tự dial.
+     */
+    boolean queueUntilConnected(String username, Frame frame) {
+        PeerConnection connection = peerConnections.get(username);
+        if (connection != null && connection.isAlive()) {
+            connection.send(frame);
+            return false;
+        }
 
-                System.out.println("✓ Connected to: " + username);
-                return connection;
+        synchronized (framesAwaitingConnect) {
+            connection = peerConnections.get(username);
+            if (connection != null && connection.isAlive()) {
+                connection.send(frame);
+                return false;
             }
-        } catch (IOException e) {
-            System.err.println("✗ Failed to connect to: " + username);
+            framesAwaitingConnect.computeIfAbsent(username, k -> new ArrayList<>()).add(frame);
         }
+        return true;
+    }
 
-        return null;
+    PeerConnection getLiveConnection(String username) {
+        PeerConnection connection = peerConnections.get(username);
+        return connection != null && connection.isAlive() ? connection : null;
     }
 
-    public void sendDirectMessage(String target, String message) {
-        PeerConnection connection = peerConnections.get(target);
-        if (connection == null || !connection.isAlive()) {
-            connection = connectToPeer(target);
+    String getCurrentUser() {
+        return currentUser;
+    }
+
+    /**
+     * Đăng ký kết nối đã bắt tay xong. Mỗi cặp peer chỉ giữ 1 kết nối:
+     * nếu 2 bên cùng dial nhau, giữ kết nối do peer có username NHỎ HƠN mở ra
+     * (2 bên đều áp dụng cùng quy tắc nên sẽ chọn cùng 1 kết nối), đóng kết nối kia.
+     * Trả về kết nối được giữ lại.
+     */
+    private PeerConnection registerConnection(String username, PeerConnection connection) {
+        PeerConnection winner;
+        PeerConnection loser;
+        List<Frame> queued;
+        synchronized (framesAwaitingConnect) {
+            PeerConnection existing = peerConnections.get(username);
+            if (existing == null || existing == connection || !existing.isAlive()
+                    || keepNewConnection(username, connection, existing)) {
+                winner = connection;
+                loser = existing != connection ? existing : null;
+                peerConnections.put(username, connection);
+            } else {
+                winner = existing;
+                loser = connection;
+            }
+            queued = framesAwaitingConnect.remove(username);
+        }
+
+        if (loser != null) {
+            // Frame chưa kịp gửi trên kết nối thua → chuyển sang kết nối được giữ
+            List<Frame> leftovers = loser.drainQueuedFrames();
+            if (loser.isAlive()) {
+                System.out.println("🔀 Duplicate connection with " + username + " - closing the " +
+                        (loser.outbound ? "outgoing" : "incoming") + " one");
+            }
+            // Không close() ngay: batch đang ghi dở sẽ bị cắt giữa frame và phía kia có thể
+            // bỏ dữ liệu còn trong buffer đọc → ghi nốt, gửi FIN, đọc tới khi phía kia đóng
+            loser.closeGracefully();
+            for (Frame frame : leftovers) {
+                if (frame.type != Frame.HELLO) {
+                    winner.send(frame);
+                }
+            }
+        }
+        if (queued != null) {
+            for (Frame frame : queued) {
+                winner.send(frame);
+            }
+        }
+        if (winner == connection) {
+            requestPeerList(connection); // Kết nối mới → đồng bộ bảng peer 1 lần
+        }
+        return winner;
+    }
+
+    private boolean keepNewConnection(String username, PeerConnection candidate, PeerConnection existing) {
+        if (candidate.outbound == existing.outbound) {
+            // Cùng 1 phía mở (peer kết nối lại) → kết nối mới thay kết nối cũ
+            return true;
+        }
+        String lowerUser = currentUser.compareTo(username) < 0 ? currentUser : username;
+        String candidateInitiator = candidate.outbound ? currentUser : username;
+        return candidateInitiator.equals(lowerUser);
+    }
+
+    void failPendingFrames(String username) {
+        List<Frame> dropped;
+        synchronized (framesAwaitingConnect) {
+            dropped = framesAwaitingConnect.remove(username);
+        }
+        if (dropped != null) {
+            System.err.println("❌ Dropped " + dropped.size() + " frame(s) - no connection to: " + username);
+        }
+    }
+
+    /**
+     * Thời gian chờ tăng gấp đôi sau mỗi lần kết nối thất bại
+     */
+    private static class ConnectBackoff {
+        private static final long BASE_DELAY_MS = 1000;
+        private static final long MAX_DELAY_MS = 60000;
+
+        private int failures = 0;
+        private long nextAttemptAt = 0;
+
+        synchronized long recordFailure() {
+            failures++;
+            long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(failures - 1, 16));
+            nextAttemptAt = System.currentTimeMillis() + delay;
+            return delay;
         }
 
-        if (connection != null) {
-            connection.send("MESSAGE:" + currentUser + ":" + message);
+        synchronized boolean isWaiting() {
+            return System.currentTimeMillis() < nextAttemptAt;
         }
     }
 
+    public void sendDirectMessage(String target, String message) {
+        sendToPeer(target, Frame.of(Frame.MESSAGE, message));
+    }
+
     public void sendGroupMessage(String groupName, String message) {
         ChatGroup group = chatGroups.get(groupName);
         if (group != null) {
-            String fullMessage = currentUser + ": " + message;
-            for (String member : group.members) {
-                if (!member.equals(currentUser)) {
-                    PeerConnection connection = peerConnections.get(member);
-                    if (connection == null || !connection.isAlive()) {
-                        connection = connectToPeer(member);
-                    }
-                    if (connection != null) {
-                        connection.send("GROUP_MESSAGE:" + groupName + ":" + fullMessage);
-                    }
+            Frame frame = group.usesRelay()
+                    ? Frame.of(Frame.GROUP_MESSAGE, groupName, currentUser, message, (long) ChatGroup.RELAY_FANOUT)
+                    : Frame.of(Frame.GROUP_MESSAGE, groupName, currentUser, message);
+            sendGroupFrame(group, frame);
+        }
+    }
+
+    /**
+     * Gửi tin nhắn / file nhóm: trực tiếp tới mọi thành viên, hoặc theo cây
+     * chuyển tiếp nếu frame mang số nhánh (nhóm bật relayDelivery)
+     */
+    private void sendGroupFrame(ChatGroup group, Frame frame) {
+        seenGroupFrames.add(frame.messageId); // Không hiển thị lại nếu frame vòng về mình
+        int fanout = relayFanoutOf(frame);
+        if (fanout > 0) {
+            relayGroupFrame(group, currentUser, currentUser, frame, fanout);
+        } else {
+            groupFanout.send(group.name, group.members, frame, true);
+        }
+    }
+
+    /**
+     * Gửi frame cho các node con của node trong cây gốc root. Node con không
+     * nhận được (offline, hàng đợi đầy) → gửi thẳng cho cây con của nó.
+     */
+    private void relayGroupFrame(ChatGroup group, String root, String node, Frame frame, int fanout) {
+        List<String> children = group.relayChildren(root, node, fanout);
+        if (children.isEmpty()) {
+            return;
+        }
+        groupFanout.send(group.name, children, frame, true).thenAccept(result -> {
+            for (Map.Entry<String, GroupFanout.Status> entry : result.statuses.entrySet()) {
+                if (entry.getValue() == GroupFanout.Status.FAILED || entry.getValue() == GroupFanout.Status.DROPPED) {
+                    relayGroupFrame(group, root, entry.getKey(), frame, fanout);
                 }
             }
+        });
+    }
+
+    /**
+     * Nhận tin nhắn / file nhóm: false nếu đã xử lý rồi (nhận trùng qua cây chuyển tiếp).
+     * Frame có số nhánh → chuyển tiếp nguyên frame (giữ message id) cho các node con của mình.
+     */
+    private boolean acceptGroupFrame(String groupName, String sender, Frame frame) {
+        if (!seenGroupFrames.add(frame.messageId)) {
+            return false;
+        }
+        int fanout = relayFanoutOf(frame);
+        ChatGroup group = chatGroups.get(groupName);
+        if (fanout > 0 && group != null) {
+            relayGroupFrame(group, sender, currentUser, frame, fanout);
         }
+        return true;
     }
 
-    public void sendTyping(String target) {
-        System.out.println("📤 Sending TYPING to: " + target);
-        PeerConnection connection = peerConnections.get(target);
-        if (connection == null || !connection.isAlive()) {
-            connection = connectToPeer(target);
+    private static int relayFanoutOf(Frame frame) {
+        // Field cuối (tùy chọn) của GROUP_MESSAGE / GROUP_FILE
+        int index = frame.type == Frame.GROUP_MESSAGE ? 3 : 6;
+        if (frame.fieldCount() <= index) {
+            return 0;
         }
-        if (connection != null) {
-            connection.send("TYPING");
-            System.out.println("✅ TYPING signal sent to: " + target);
-        } else {
-            System.err.println("❌ Failed to send TYPING - no connection to: " + target);
+        long fanout = frame.getLong(index);
+        if (fanout < 1 || fanout > ChatGroup.MAX_RELAY_FANOUT) {
+            // Số nhánh lạ (peer lỗi / cố ý) → chỉ nhận, không chuyển tiếp
+            System.err.println("⚠️ Ignoring relay fanout " + fanout + " in " + Frame.typeName(frame.type));
+            return 0;
         }
+        return (int) fanout;
+    }
+
+    public void sendTyping(String target) {
+        System.out.println("📤 Sending TYPING to: " + target);
+        sendToPeer(target, Frame.of(Frame.TYPING));
     }
 
     public void sendStopTyping(String target) {
         PeerConnection connection = peerConnections.get(target);
         if (connection != null && connection.isAlive()) {
-            connection.send("STOP_TYPING");
+            connection.send(Frame.of(Frame.STOP_TYPING));
         }
     }
 
     public void sendGroupTyping(String groupName) {
         ChatGroup group = chatGroups.get(groupName);
         if (group != null) {
-            String typingMessage = "GROUP_TYPING:" + groupName + ":" + currentUser;
-            for (String member : group.members) {
-                if (!member.equals(currentUser)) {
-                    PeerConnection connection = peerConnections.get(member);
-                    if (connection == null || !connection.isAlive()) {
-                        connection = connectToPeer(member);
-                    }
-                    if (connection != null) {
-                        connection.send(typingMessage);
-                    }
-                }
-            }
+            Frame typingMessage = Frame.of(Frame.GROUP_TYPING, groupName, currentUser);
+            groupFanout.send(groupName, group.members, typingMessage, true);
         }
     }
 
     public void sendGroupStopTyping(String groupName) {
         ChatGroup group = chatGroups.get(groupName);
         if (group != null) {
-            String stopTypingMessage = "GROUP_STOP_TYPING:" + groupName + ":" + currentUser;
-            for (String member : group.members) {
-                if (!member.equals(currentUser)) {
-                    PeerConnection connection = peerConnections.get(member);
-                    if (connection != null && connection.isAlive()) {
-                        connection.send(stopTypingMessage);
-                    }
-                }
-            }
+            Frame stopTypingMessage = Frame.of(Frame.GROUP_STOP_TYPING, groupName, currentUser);
+            groupFanout.send(groupName, group.members, stopTypingMessage, false);
         }
     }
 
@@ -1109,11 +1478,12 @@ public class NetworkManager {
             return;
         }
 
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("file-send", () -> {
             try {
                 String uniqueFileName = System.currentTimeMillis() + "_" + selectedFile.getName();
                 Path destPath = Paths.get("shared_files/" + uniqueFileName);
                 Files.copy(selectedFile.toPath(), destPath, StandardCopyOption.REPLACE_EXISTING);
+                SharedFileIndex.getInstance().record(uniqueFileName, selectedFile.getName());
 
                 long fileSize = selectedFile.length();
                 String fileName = selectedFile.getName();
@@ -1126,34 +1496,27 @@ public class NetworkManager {
                     sendDirectFile(fileName, fileSize, uniqueFileName, target);
                 }
 
-                saveChatHistory(target + (isGroup ? "_group" : ""), "[FILE:" + fileName + "]", true);
+                saveChatHistory(target + (isGroup ? "_group" : ""),
+                        SharedFileIndex.historyMessage(fileName, uniqueFileName), true);
                 System.out.println("✓ File saved and sent: " + uniqueFileName);
 
             } catch (IOException e) {
                 e.printStackTrace();
                 mainController.getChatManager().showAlert("Lỗi", "Không thể gửi file!");
             }
-        }).start();
+        });
     }
 
     private void sendDirectFile(String fileName, long fileSize, String uniqueFileName, String target) {
         try {
-            // Sử dụng getRealLocalIp() thay vì getLocalHost() để tránh lấy 127.0.0.1
-            String myIp = getRealLocalIp();
+            // IP LAN đã cache (không dùng getLocalHost() để tránh lấy 127.0.0.1)
+            String myIp = LocalAddressService.getInstance().getLocalIp();
             System.out.println("📤 [FILE] Sending file metadata:");
             System.out.println("  - My IP: " + myIp);
             System.out.println("  - My File Port: " + myFilePort);
             System.out.println("  - File: " + fileName + " (" + fileSize + " bytes)");
 
-            PeerConnection connection = peerConnections.get(target);
-            if (connection == null || !connection.isAlive()) {
-                connection = connectToPeer(target);
-            }
-
-            if (connection != null) {
-                String message = "FILE::" + fileName + "|" + fileSize + "|" + myIp + "|" + uniqueFileName;
-                connection.send(message);
-            }
+            sendToPeer(target, Frame.of(Frame.FILE, fileName, fileSize, myIp, uniqueFileName));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -1163,26 +1526,18 @@ public class NetworkManager {
         ChatGroup group = chatGroups.get(groupName);
         if (group != null) {
             try {
-                // Sử dụng getRealLocalIp() thay vì getLocalHost() để tránh lấy 127.0.0.1
-                String myIp = getRealLocalIp();
+                // IP LAN đã cache (không dùng getLocalHost() để tránh lấy 127.0.0.1)
+                String myIp = LocalAddressService.getInstance().getLocalIp();
                 System.out.println("📤 [FILE] Sending group file metadata:");
                 System.out.println("  - My IP: " + myIp);
                 System.out.println("  - My File Port: " + myFilePort);
                 System.out.println("  - File: " + fileName + " (" + fileSize + " bytes)");
 
-                for (String member : group.members) {
-                    if (!member.equals(currentUser)) {
-                        PeerConnection connection = peerConnections.get(member);
-                        if (connection == null || !connection.isAlive()) {
-                            connection = connectToPeer(member);
-                        }
-                        if (connection != null) {
-                            String message = "GROUP_FILE:" + groupName + ":" +
-                                    currentUser + "|" + fileName + "|" + fileSize + "|" + myIp + "|" + uniqueFileName;
-                            connection.send(message);
-                        }
-                    }
-                }
+                Frame frame = group.usesRelay()
+                        ? Frame.of(Frame.GROUP_FILE, groupName, currentUser, fileName, fileSize, myIp, uniqueFileName,
+                                (long) ChatGroup.RELAY_FANOUT)
+                        : Frame.of(Frame.GROUP_FILE, groupName, currentUser, fileName, fileSize, myIp, uniqueFileName);
+                sendGroupFrame(group, frame);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -1190,13 +1545,15 @@ public class NetworkManager {
     }
 
     public void saveGroup(ChatGroup group) {
-        for (String member : group.members) {
+        Set<String> members = group.members; // 1 bản chụp cho mọi file
+        for (String member : members) {
             String filename = "groups/" + member + "_group_" + group.name + ".txt";
             try (BufferedWriter writer = new BufferedWriter(
                     new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"))) {
                 writer.write(group.name + "\n");
                 writer.write(group.creator + "\n");
-                writer.write(String.join(",", group.members) + "\n");
+                writer.write(String.join(",", members) + "\n");
+                writer.write((group.relayDelivery ? "relay" : "direct") + "\n");
                 System.out.println("💾 Saved group for: " + member);
             } catch (IOException e) {
                 e.printStackTrace();
@@ -1205,21 +1562,24 @@ public class NetworkManager {
     }
 
     public void syncGroupToMembers(ChatGroup group) {
-        String membersList = String.join(",", group.members);
-        String syncMessage = "GROUP_SYNC:" + group.name + ":" + group.creator + ":" + membersList;
-
-        for (String member : group.members) {
-            if (!member.equals(currentUser)) {
-                PeerConnection connection = peerConnections.get(member);
-                if (connection == null || !connection.isAlive()) {
-                    connection = connectToPeer(member);
-                }
-                if (connection != null) {
-                    connection.send(syncMessage);
-                    System.out.println("📤 Synced group " + group.name + " to " + member);
-                }
-            }
+        Frame syncMessage = groupSyncFrame(group);
+
+        groupFanout.send(group.name, group.members, syncMessage, true)
+                .thenAccept(result -> System.out.println("📤 Synced group " + group.name + ": " + result));
+    }
+
+    private Frame groupSyncFrame(ChatGroup group) {
+        // [tên nhóm, người tạo, chế độ chuyển tiếp (0/1), thành viên 1, thành viên 2, ...]
+        Set<String> members = group.members; // Kích thước và nội dung từ cùng 1 bản chụp
+        Object[] fields = new Object[3 + members.size()];
+        fields[0] = group.name;
+        fields[1] = group.creator;
+        fields[2] = group.relayDelivery ? 1L : 0L;
+        int i = 3;
+        for (String member : members) {
+            fields[i++] = member;
         }
+        return Frame.of(Frame.GROUP_SYNC, fields);
     }
 
     public void addMembersToGroup(String groupName, List<String> newMembers) {
@@ -1346,17 +1706,14 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Ghi lịch sử qua ChatHistoryStore (hàng đợi + group commit) - không chặn thread nhận
+     */
     private void saveChatHistory(String target, String message, boolean isSent) {
-        String filename = "chat_history/" + currentUser + "_" + target + ".txt";
-        try (FileWriter writer = new FileWriter(filename, true)) {
-            String timestamp = java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            String sender = isSent ? currentUser : (target.contains("_group") ? message.split(":")[0] : target);
-            String actualMessage = isSent ? message : (target.contains("_group") && message.contains(":") ?
-                    message.substring(message.indexOf(":") + 1).trim() : message);
-            writer.write(String.format("[%s] %s: %s\n", timestamp, sender, actualMessage));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        String sender = isSent ? currentUser : (target.contains("_group") ? message.split(":")[0] : target);
+        String actualMessage = isSent ? message : (target.contains("_group") && message.contains(":") ?
+                message.substring(message.indexOf(":") + 1).trim() : message);
+        mainController.getHistoryStore().append(target, sender, actualMessage);
     }
 
     public void shutdown() {
@@ -1365,9 +1722,18 @@ public class NetworkManager {
                 connection.close();
             }
 
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            discoveryScheduler.stop();
+            networkTimer.shutdownNow();
+            if (peerCache != null) {
+                peerCache.save(discoveredPeers);
+            }
+            if (discoveryService != null) {
+                discoveryService.shutdown();
             }
+            discoveryHub.shutdown();
+            LocalAddressService.getInstance().removeListener(addressListener);
+            LocalAddressService.getInstance().stopMonitoring(); // Dừng thread dò interface (login lại sẽ bật lại)
+            chatTransport.shutdown();
             if (discoveryServer != null && !discoveryServer.isClosed()) {
                 discoveryServer.close();
             }
@@ -17,6 +17,7 @@ public class P2PChatApp extends Application {
         new File("chat_history/").mkdirs();
         new File("groups/").mkdirs();
         new File("shared_files/").mkdirs();
+        new File("peers/").mkdirs();
 
         mainController = new MainController(primaryStage);
         mainController.showLoginScreen();
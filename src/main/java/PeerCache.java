@@ -0,0 +1,117 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Peer Cache - Lưu các peer đã biết xuống đĩa để lần mở app sau
+ * kết nối lại ngay, không phải chờ quét mạng.
+ *
+ * File peers/<user>_peers.txt, mỗi dòng 1 peer:
+ *   username,ip,port,filePort,voicePort,videoPort,videoAudioPort,discoveryPort,lastSeen,rttMs
+ * Peer không thấy lại sau MAX_AGE_MS bị bỏ khỏi cache.
+ */
+public class PeerCache {
+    private static final long MAX_AGE_MS = 14L * 24 * 60 * 60 * 1000; // 14 ngày
+
+    private final File file;
+    private final Map<String, PeerInfo> entries = new HashMap<>();
+
+    public PeerCache(String currentUser) {
+        this.file = new File("peers/" + currentUser + "_peers.txt");
+    }
+
+    /**
+     * Đọc cache từ đĩa, trả về bản sao các peer còn hạn
+     */
+    public synchronized Map<String, PeerInfo> load() {
+        entries.clear();
+        if (!file.exists()) {
+            return new HashMap<>();
+        }
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length < 10) {
+                    continue;
+                }
+                try {
+                    PeerInfo peer = new PeerInfo(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                            Integer.parseInt(parts[4]), Integer.parseInt(parts[5]),
+                            Integer.parseInt(parts[6]), Integer.parseInt(parts[7]));
+                    long lastSeen = Long.parseLong(parts[8]);
+                    if (now - lastSeen > MAX_AGE_MS) {
+                        continue;
+                    }
+                    peer.restoreHeartbeat(lastSeen, Double.parseDouble(parts[9]));
+                    entries.put(parts[0], peer);
+                } catch (NumberFormatException e) {
+                    // Dòng hỏng - bỏ qua
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Cannot read peer cache: " + e.getMessage());
+        }
+        System.out.println("💾 Loaded " + entries.size() + " cached peer(s)");
+        return new HashMap<>(entries);
+    }
+
+    /**
+     * Gộp các peer hiện tại vào cache rồi ghi ra đĩa (ghi file tạm rồi đổi tên,
+     * app bị tắt giữa chừng cũng không làm hỏng cache cũ)
+     */
+    public synchronized void save(Map<String, PeerInfo> currentPeers) {
+        entries.putAll(currentPeers);
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(peer -> now - peer.getLastSeen() > MAX_AGE_MS);
+
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, PeerInfo> entry : entries.entrySet()) {
+                PeerInfo peer = entry.getValue();
+                writer.write(entry.getKey() + "," + peer.ip + "," + peer.port + "," + peer.filePort + "," +
+                        peer.voicePort + "," + peer.videoPort + "," + peer.videoAudioPort + "," +
+                        peer.discoveryPort + "," + peer.getLastSeen() + "," + peer.getRttMs() + "\n");
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Cannot write peer cache: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("✗ Cannot replace peer cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * IP của mọi peer trong cache (kể cả peer hiện không online)
+     */
+    public synchronized Set<String> knownIps() {
+        Set<String> ips = new HashSet<>();
+        for (PeerInfo peer : entries.values()) {
+            ips.add(peer.ip);
+        }
+        return ips;
+    }
+}
@@ -1,37 +1,164 @@
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PeerConnection {
-    public Socket socket;
-    public String peerName;
-    public BufferedReader reader;
-    public PrintWriter writer;
-
-    public PeerConnection(Socket socket, String peerName,
-                          BufferedReader reader, PrintWriter writer) {
-        this.socket = socket;
+    // Hàng đợi gửi chia theo mức ưu tiên (lane nhỏ hơn = gửi trước)
+    static final int LANE_CONTROL = 0;   // HELLO, PING/PONG, GROUP_SYNC, CALL_ACCEPTED, VIDEO_CALL_REJECTED...
+    static final int LANE_NORMAL = 1;    // MESSAGE, FILE, GROUP_MESSAGE, GROUP_FILE
+    static final int LANE_EPHEMERAL = 2; // TYPING, STOP_TYPING... (đầy thì bỏ frame cũ nhất)
+    static final int LANE_BULK = 3;      // PEER_LIST_REQUEST, PEER_LIST
+    private static final int[] LANE_CAPACITY = {256, 2048, 4, 256};
+
+    public SocketChannel channel;
+    public volatile String peerName;
+    public volatile boolean outbound = false; // true nếu mình là bên chủ động kết nối
+
+    // HELLO từ phía bên kia (dùng cho kết nối chủ động mở ra)
+    public final CompletableFuture<String> handshake = new CompletableFuture<>();
+
+    private final ChatTransport transport;
+
+    private final List<ArrayDeque<Frame>> lanes = new ArrayList<>(LANE_CAPACITY.length);
+    private int queuedFrames = 0;
+    private long droppedFrames = 0;
+
+    // Trạng thái do ChatTransport quản lý (chỉ thread I/O đụng vào)
+    SelectionKey key;
+    volatile boolean closed = false;
+    volatile boolean closing = false; // Đang đóng êm: không nhận frame mới, ghi nốt rồi mới gửi FIN
+    boolean outputShutdown = false;   // Đã gửi FIN
+    boolean inputShutdown = false;    // Đã nhận FIN từ phía bên kia
+    long closeDeadline = 0;           // Hạn đóng êm (System.nanoTime) - quá hạn thì đóng hẳn
+    ByteBuffer pending;    // Nửa frame chưa nhận đủ (null nếu không có)
+    ByteBuffer[] inFlight; // Batch đang ghi dở (null nếu không có)
+    CompletableFuture<PeerConnection> connectFuture; // Chỉ có với kết nối chủ động mở ra
+    final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    public PeerConnection(ChatTransport transport, SocketChannel channel, String peerName) {
+        this.transport = transport;
+        this.channel = channel;
         this.peerName = peerName;
-        this.reader = reader;
-        this.writer = writer;
+        for (int i = 0; i < LANE_CAPACITY.length; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
     }
 
-    public void send(String message) {
-        if (writer != null) {
-            writer.println(message);
+    /**
+     * Đưa frame vào hàng đợi gửi - KHÔNG chặn thread gọi (kể cả FX thread).
+     * Trả về false nếu hàng đợi đã đầy.
+     */
+    public boolean send(Frame frame) {
+        if (closed || closing) {
+            return false;
+        }
+        if (!enqueue(frame)) {
+            System.err.println("⚠️ Outbound queue full for " + peerName + ", dropped " + Frame.typeName(frame.type));
+            return false;
         }
+        transport.scheduleWrite(this);
+        return true;
+    }
+
+    private static int laneOf(byte type) {
+        switch (type) {
+            case Frame.HELLO:
+            case Frame.GROUP_SYNC: // Thành viên nhóm phải tới trước GROUP_MESSAGE của nhóm đó
+            case Frame.PING:
+            case Frame.PONG:
+            case Frame.CALL_ACCEPTED:
+            case Frame.CALL_REJECTED:
+            case Frame.VIDEO_CALL_ACCEPTED:
+            case Frame.VIDEO_CALL_REJECTED:
+                return LANE_CONTROL;
+            case Frame.TYPING:
+            case Frame.STOP_TYPING:
+            case Frame.GROUP_TYPING:
+            case Frame.GROUP_STOP_TYPING:
+                return LANE_EPHEMERAL;
+            case Frame.PEER_LIST_REQUEST:
+            case Frame.PEER_LIST:
+                return LANE_BULK;
+            default:
+                return LANE_NORMAL;
+        }
+    }
+
+    private synchronized boolean enqueue(Frame frame) {
+        int lane = laneOf(frame.type);
+        ArrayDeque<Frame> queue = lanes.get(lane);
+        if (queue.size() >= LANE_CAPACITY[lane]) {
+            if (lane != LANE_EPHEMERAL) {
+                return false;
+            }
+            // Trạng thái gõ phím chỉ cần frame mới nhất
+            queue.pollFirst();
+            queuedFrames--;
+            droppedFrames++;
+        }
+        queue.addLast(frame);
+        queuedFrames++;
+        return true;
+    }
+
+    /**
+     * Lấy frame tiếp theo theo thứ tự ưu tiên (null nếu hàng đợi trống)
+     */
+    synchronized Frame pollNext() {
+        for (ArrayDeque<Frame> queue : lanes) {
+            Frame frame = queue.pollFirst();
+            if (frame != null) {
+                queuedFrames--;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lấy ra toàn bộ frame chưa gửi (dùng khi chuyển sang kết nối khác)
+     */
+    synchronized List<Frame> drainQueuedFrames() {
+        List<Frame> frames = new ArrayList<>(queuedFrames);
+        for (ArrayDeque<Frame> queue : lanes) {
+            frames.addAll(queue);
+            queue.clear();
+        }
+        queuedFrames = 0;
+        return frames;
+    }
+
+    public synchronized boolean hasQueuedFrames() {
+        return queuedFrames > 0;
+    }
+
+    public synchronized int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
     }
 
     public boolean isAlive() {
-        return socket != null && socket.isConnected() && !socket.isClosed();
+        return !closed && !closing && channel != null && channel.isOpen() && channel.isConnected();
     }
 
     public void close() {
-        try {
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        transport.close(this);
+    }
+
+    /**
+     * Đóng êm: ghi nốt batch đang dở (không cắt ngang frame) rồi shutdownOutput,
+     * vẫn đọc tiếp tới khi phía bên kia đóng → frame 2 bên đã gửi đều tới nơi.
+     */
+    public void closeGracefully() {
+        closing = true;
+        transport.closeGracefully(this);
     }
-}
\ No newline at end of file
+}
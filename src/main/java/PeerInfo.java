@@ -7,6 +7,13 @@ public class PeerInfo {
     public int videoAudioPort;
     public int discoveryPort;
 
+    // Heartbeat (ping/pong trên kết nối chat)
+    private long lastSeen = System.currentTimeMillis();
+    private double rttMs = -1;
+    private double jitterMs = 0;
+    private long pingSentAt = 0; // nanoTime của PING chưa có PONG (0 = không có)
+    private int missedPongs = 0;
+
     public PeerInfo(String ip, int port, int filePort) {
         this.ip = ip;
         this.port = port;
@@ -71,6 +78,80 @@ public class PeerInfo {
         this.discoveryPort = discoveryPort;
     }
 
+    /**
+     * Cùng IP và cùng mọi port → không cần cập nhật bảng peer
+     */
+    public boolean sameEndpoints(PeerInfo other) {
+        return ip.equals(other.ip) && port == other.port && filePort == other.filePort &&
+                voicePort == other.voicePort && videoPort == other.videoPort &&
+                videoAudioPort == other.videoAudioPort && discoveryPort == other.discoveryPort;
+    }
+
+    /**
+     * Nhận được frame bất kỳ từ peer → peer vẫn sống
+     */
+    public synchronized void recordSeen() {
+        lastSeen = System.currentTimeMillis();
+        pingSentAt = 0;
+        missedPongs = 0;
+    }
+
+    /**
+     * Ghi nhận PING vừa gửi. Trả về số PONG đã lỡ liên tiếp
+     * (PING trước đó chưa được trả lời tính là 1 lần lỡ).
+     */
+    public synchronized int recordPingSent(long sentAtNanos) {
+        if (pingSentAt != 0) {
+            missedPongs++;
+        }
+        pingSentAt = sentAtNanos;
+        return missedPongs;
+    }
+
+    /**
+     * Không gửi được PING (không kết nối được) - tính là 1 lần lỡ
+     */
+    public synchronized int recordMissedPong() {
+        pingSentAt = 0;
+        return ++missedPongs;
+    }
+
+    /**
+     * PONG trả về: cập nhật RTT và jitter (trung bình trượt như RFC 3550)
+     */
+    public synchronized void recordPong(long sentAtNanos) {
+        double rtt = (System.nanoTime() - sentAtNanos) / 1_000_000.0;
+        if (rttMs >= 0) {
+            jitterMs += (Math.abs(rtt - rttMs) - jitterMs) / 16;
+        }
+        rttMs = rtt;
+        recordSeen();
+    }
+
+    /**
+     * Khôi phục last-seen / RTT đọc từ PeerCache
+     */
+    synchronized void restoreHeartbeat(long lastSeen, double rttMs) {
+        this.lastSeen = lastSeen;
+        this.rttMs = rttMs;
+    }
+
+    public synchronized long getLastSeen() {
+        return lastSeen;
+    }
+
+    public synchronized double getRttMs() {
+        return rttMs;
+    }
+
+    public synchronized double getJitterMs() {
+        return jitterMs;
+    }
+
+    public synchronized int getMissedPongs() {
+        return missedPongs;
+    }
+
     @Override
     public String toString() {
         return "PeerInfo{" +
@@ -81,6 +162,8 @@ public class PeerInfo {
                 ", videoPort=" + videoPort +
                 ", videoAudioPort=" + videoAudioPort +
                 ", discoveryPort=" + discoveryPort +
+                ", rtt=" + String.format("%.1f", getRttMs()) + "ms" +
+                ", jitter=" + String.format("%.1f", getJitterMs()) + "ms" +
                 '}';
     }
 }
\ No newline at end of file
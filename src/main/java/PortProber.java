@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Port Prober - Quét hàng nghìn endpoint TCP từ 1 thread
+ *
+ * - Connect không chặn (SocketChannel + OP_CONNECT trên 1 Selector)
+ * - Giới hạn: số probe đang bay, số connect mới mỗi giây, số probe đồng thời mỗi host
+ * - Kết quả trả về NGAY khi từng endpoint trả lời (Listener), không chờ cả lượt quét
+ *
+ * Listener chạy trên thread của prober → chỉ nên làm việc ngắn
+ * (việc nặng như bắt tay ANNOUNCE thì đẩy sang TaskExecutor).
+ */
+public class PortProber {
+    private static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    private static final int DEFAULT_CONNECTS_PER_SECOND = 2000;
+    private static final int DEFAULT_PER_HOST_LIMIT = 32;
+
+    public enum Result {
+        OPEN,     // Kết nối được → có dịch vụ đang nghe
+        REFUSED,  // Host trả RST → host đang sống nhưng port đóng
+        TIMEOUT,  // Không trả lời (host tắt / firewall)
+        ERROR     // Lỗi cục bộ (hết file descriptor, địa chỉ không hợp lệ...)
+    }
+
+    public interface Listener {
+        void onResult(InetSocketAddress address, Result result);
+    }
+
+    /**
+     * 1 lượt quét: danh sách endpoint + listener + future hoàn thành khi quét xong
+     */
+    public static class Job {
+        private final ArrayDeque<HostTargets> hosts = new ArrayDeque<>();
+        private final int timeoutMs;
+        private final Listener listener;
+        private final CompletableFuture<Job> completion = new CompletableFuture<>();
+        private final int total;
+        private volatile boolean cancelled = false;
+        private final long startedAt = System.currentTimeMillis();
+
+        // Chỉ thread prober cập nhật
+        private int inFlight = 0;
+        private volatile int open = 0;
+        private volatile int refused = 0;
+        private volatile int timedOut = 0;
+        private volatile int errors = 0;
+
+        Job(List<InetSocketAddress> targets, int timeoutMs, Listener listener) {
+            // Gom theo host, lấy xoay vòng giữa các host để giới hạn per-host không làm nghẽn cả lượt
+            Map<InetAddress, HostTargets> byHost = new LinkedHashMap<>();
+            for (InetSocketAddress target : targets) {
+                byHost.computeIfAbsent(target.getAddress(), HostTargets::new).ports.add(target);
+            }
+            this.hosts.addAll(byHost.values());
+            this.total = targets.size();
+            this.timeoutMs = timeoutMs;
+            this.listener = listener;
+        }
+
+        public CompletableFuture<Job> completion() { return completion; }
+        public void cancel() { cancelled = true; }
+        public boolean isCancelled() { return cancelled; }
+        public int getTotal() { return total; }
+        public int getOpen() { return open; }
+        public int getRefused() { return refused; }
+        public int getTimedOut() { return timedOut; }
+        public int getErrors() { return errors; }
+
+        public long getElapsedMs() {
+            return System.currentTimeMillis() - startedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "ProbeJob{total=" + total + ", open=" + open + ", refused=" + refused +
+                    ", timeout=" + timedOut + ", errors=" + errors + ", elapsed=" + getElapsedMs() + "ms" +
+                    (cancelled ? ", cancelled" : "") + '}';
+        }
+    }
+
+    private static class HostTargets {
+        final InetAddress host;
+        final ArrayDeque<InetSocketAddress> ports = new ArrayDeque<>();
+
+        HostTargets(InetAddress host) {
+            this.host = host;
+        }
+    }
+
+    private static class Probe {
+        final Job job;
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        final long deadline;
+        boolean finished = false;
+
+        Probe(Job job, InetSocketAddress address, SocketChannel channel, long deadline) {
+            this.job = job;
+            this.address = address;
+            this.channel = channel;
+            this.deadline = deadline;
+        }
+    }
+
+    private static PortProber instance;
+
+    private final int maxInFlight;
+    private final int connectsPerSecond;
+    private final int perHostLimit;
+
+    private final ConcurrentLinkedQueue<Job> newJobs = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private Thread thread;
+
+    // Chỉ thread prober truy cập
+    private final List<Job> activeJobs = new ArrayList<>();
+    private final PriorityQueue<Probe> deadlines = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+    private final Map<InetAddress, Integer> hostInFlight = new HashMap<>();
+    private int inFlight = 0;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private int nextJob = 0;
+    private boolean launchBlocked = false; // Còn target nhưng host nào cũng đủ probe đồng thời
+
+    public static synchronized PortProber getInstance() {
+        if (instance == null) {
+            instance = new PortProber(DEFAULT_MAX_IN_FLIGHT, DEFAULT_CONNECTS_PER_SECOND, DEFAULT_PER_HOST_LIMIT);
+        }
+        return instance;
+    }
+
+    public PortProber(int maxInFlight, int connectsPerSecond, int perHostLimit) {
+        this.maxInFlight = maxInFlight;
+        this.connectsPerSecond = connectsPerSecond;
+        this.perHostLimit = perHostLimit;
+        this.tokens = burstSize();
+    }
+
+    /**
+     * Bắt đầu quét - không chặn. Kết quả từng endpoint đi qua listener,
+     * job.completion() hoàn thành khi mọi endpoint đã có kết quả (hoặc bị cancel).
+     */
+    public Job probe(List<InetSocketAddress> targets, int timeoutMs, Listener listener) {
+        Job job = new Job(targets, timeoutMs, listener);
+        if (targets.isEmpty()) {
+            job.completion.complete(job);
+            return job;
+        }
+        try {
+            ensureStarted();
+        } catch (IOException e) {
+            job.completion.completeExceptionally(e);
+            return job;
+        }
+        newJobs.add(job);
+        selector.wakeup();
+        return job;
+    }
+
+    private synchronized void ensureStarted() throws IOException {
+        if (thread == null) {
+            selector = Selector.open();
+            thread = TaskExecutor.getInstance().startDedicated("port-prober", this::runLoop);
+        }
+    }
+
+    private double burstSize() {
+        return Math.max(1, connectsPerSecond / 10.0);
+    }
+
+    private void runLoop() {
+        try {
+            while (true) {
+                Job job;
+                while ((job = newJobs.poll()) != null) {
+                    activeJobs.add(job);
+                }
+
+                launchProbes();
+
+                long waitMs = nextWaitMs();
+                if (waitMs < 0) {
+                    selector.select(); // Không có việc gì - ngủ tới khi có job mới
+                } else if (waitMs == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(waitMs);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Probe probe = (Probe) key.attachment();
+                    try {
+                        finish(probe, probe.channel.finishConnect() ? Result.OPEN : null);
+                    } catch (ConnectException e) {
+                        finish(probe, Result.REFUSED);
+                    } catch (NoRouteToHostException | SocketTimeoutException e) {
+                        finish(probe, Result.TIMEOUT); // Host không tới được - như không trả lời
+                    } catch (IOException | RuntimeException e) {
+                        finish(probe, Result.ERROR);
+                    }
+                }
+
+                expireProbes();
+                completeJobs();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Port prober stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mở connect mới trong giới hạn: in-flight, token bucket (connect/giây), per-host
+     */
+    private void launchProbes() {
+        refillTokens();
+        launchBlocked = false;
+        int skipped = 0;
+        while (inFlight < maxInFlight && tokens >= 1 && !activeJobs.isEmpty() && skipped < activeJobs.size()) {
+            nextJob = nextJob % activeJobs.size();
+            Job job = activeJobs.get(nextJob++);
+            InetSocketAddress target = job.cancelled ? null : takeTarget(job);
+            if (target == null) {
+                skipped++;
+                launchBlocked = skipped >= activeJobs.size();
+                continue;
+            }
+            skipped = 0;
+            tokens--;
+            startProbe(job, target);
+        }
+    }
+
+    private InetSocketAddress takeTarget(Job job) {
+        for (int i = 0; i < job.hosts.size(); i++) {
+            HostTargets host = job.hosts.pollFirst();
+            if (hostInFlight.getOrDefault(host.host, 0) < perHostLimit) {
+                InetSocketAddress target = host.ports.pollFirst();
+                if (!host.ports.isEmpty()) {
+                    job.hosts.addLast(host);
+                }
+                return target;
+            }
+            job.hosts.addLast(host);
+        }
+        return null;
+    }
+
+    private void startProbe(Job job, InetSocketAddress target) {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            report(job, target, Result.ERROR);
+            return;
+        }
+
+        Probe probe = new Probe(job, target, channel, System.currentTimeMillis() + job.timeoutMs);
+        job.inFlight++;
+        inFlight++;
+        hostInFlight.merge(target.getAddress(), 1, Integer::sum);
+        try {
+            if (channel.connect(target)) {
+                finish(probe, Result.OPEN);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, probe);
+                deadlines.add(probe);
+            }
+        } catch (ConnectException e) {
+            finish(probe, Result.REFUSED);
+        } catch (IOException | RuntimeException e) {
+            finish(probe, Result.ERROR);
+        }
+    }
+
+    private void finish(Probe probe, Result result) {
+        if (result == null || probe.finished) {
+            return; // finishConnect chưa xong (hiếm) - chờ lần select sau
+        }
+        probe.finished = true;
+        closeQuietly(probe.channel);
+        probe.job.inFlight--;
+        inFlight--;
+        releaseHost(probe.address.getAddress());
+        report(probe.job, probe.address, result);
+    }
+
+    private void report(Job job, InetSocketAddress address, Result result) {
+        switch (result) {
+            case OPEN: job.open++; break;
+            case REFUSED: job.refused++; break;
+            case TIMEOUT: job.timedOut++; break;
+            default: job.errors++;
+        }
+        if (job.cancelled) {
+            return;
+        }
+        try {
+            job.listener.onResult(address, result);
+        } catch (RuntimeException e) {
+            System.err.println("❌ Probe listener failed: " + e);
+        }
+    }
+
+    private void releaseHost(InetAddress host) {
+        hostInFlight.computeIfPresent(host, (h, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private void expireProbes() {
+        long now = System.currentTimeMillis();
+        Probe probe;
+        while ((probe = deadlines.peek()) != null && (probe.finished || probe.deadline <= now || probe.job.cancelled)) {
+            deadlines.poll();
+            finish(probe, Result.TIMEOUT);
+        }
+    }
+
+    private void completeJobs() {
+        Iterator<Job> it = activeJobs.iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            if (job.cancelled) {
+                // Đóng các probe còn bay của job bị hủy
+                for (Probe probe : new ArrayList<>(deadlines)) {
+                    if (probe.job == job && !probe.finished) {
+                        deadlines.remove(probe);
+                        finish(probe, Result.TIMEOUT);
+                    }
+                }
+            }
+            if (job.inFlight == 0 && (job.cancelled || job.hosts.isEmpty())) {
+                it.remove();
+                job.completion.complete(job);
+            }
+        }
+    }
+
+    /**
+     * Thời gian select tối đa: tới deadline gần nhất / lúc có token mới;
+     * -1 nếu không còn gì để làm
+     */
+    private long nextWaitMs() {
+        long wait = -1;
+        Probe next = deadlines.peek();
+        if (next != null) {
+            wait = Math.max(1, next.deadline - System.currentTimeMillis());
+        }
+        boolean hasPending = false;
+        for (Job job : activeJobs) {
+            if (!job.cancelled && !job.hosts.isEmpty()) {
+                hasPending = true;
+                break;
+            }
+        }
+        if (hasPending && inFlight < maxInFlight && !launchBlocked) {
+            long refillMs = tokens >= 1 ? 0 : Math.max(1, (long) Math.ceil(1000.0 / connectsPerSecond));
+            wait = wait < 0 ? refillMs : Math.min(wait, refillMs);
+        }
+        if (wait < 0 && !activeJobs.isEmpty()) {
+            wait = 0; // Job đã xong hết probe - để completeJobs() chạy
+        }
+        return wait;
+    }
+
+    private void refillTokens() {
+        long now = System.nanoTime();
+        tokens = Math.min(burstSize(), tokens + (now - lastRefill) / 1e9 * connectsPerSecond);
+        lastRefill = now;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent Message Cache - N tin nhắn mới nhất (đã parse) của từng conversation trong RAM
+ *
+ * - Mỗi conversation 1 ring buffer chứa đoạn đuôi liên tục của lịch sử: [first, first + size)
+ *   theo thứ tự trong conversation (0 = cũ nhất), tối đa RING_CAPACITY record
+ * - Thread writer của ChatHistoryStore đẩy mọi record vừa ghi vào (tin gửi lẫn tin nhận),
+ *   trang đuôi đọc từ đĩa cũng được nạp vào → mở lại chat vừa xem không chạm đĩa
+ * - Tổng dung lượng ước tính vượt maxBytes → bỏ cả ring của conversation lâu không dùng nhất (LRU)
+ */
+public class RecentMessageCache {
+    private static final int RING_CAPACITY = 200;
+    private static final int RECORD_OVERHEAD_BYTES = 96;
+
+    private static class Ring {
+        final ArrayDeque<ChatHistoryStore.Record> records = new ArrayDeque<>();
+        int first;  // Thứ tự trong conversation của record đầu ring
+        long bytes;
+
+        int end() {
+            return first + records.size();
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes = 0;
+
+    // Metrics
+    private long hits = 0;
+    private long misses = 0;
+
+    public RecentMessageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Record vừa ghi, ordinal = thứ tự của nó trong conversation.
+     * Không nối tiếp được ring hiện có (bị hụt) → bắt đầu ring mới từ record này.
+     */
+    public synchronized void append(String conversation, int ordinal, ChatHistoryStore.Record record) {
+        Ring ring = rings.get(conversation);
+        if (ring == null || ring.end() != ordinal) {
+            if (ring != null) {
+                totalBytes -= ring.bytes;
+            }
+            ring = new Ring();
+            ring.first = ordinal;
+            rings.put(conversation, ring);
+        }
+        ring.records.addLast(record);
+        ring.bytes += sizeOf(record);
+        totalBytes += sizeOf(record);
+        while (ring.records.size() > RING_CAPACITY) {
+            long removed = sizeOf(ring.records.pollFirst());
+            ring.bytes -= removed;
+            totalBytes -= removed;
+            ring.first++;
+        }
+        evict(conversation);
+    }
+
+    /**
+     * Record thứ [from, to) nếu ring chứa đủ cả đoạn, ngược lại null
+     */
+    public synchronized List<ChatHistoryStore.Record> get(String conversation, int from, int to) {
+        Ring ring = rings.get(conversation);
+        if (ring == null || from < ring.first || to > ring.end()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<ChatHistoryStore.Record> result = new ArrayList<>(to - from);
+        Iterator<ChatHistoryStore.Record> it = ring.records.iterator();
+        for (int i = ring.first; i < to && it.hasNext(); i++) {
+            ChatHistoryStore.Record record = it.next();
+            if (i >= from) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Nạp trang [from, from + records.size()) vừa đọc từ đĩa.
+     * Chỉ nhận nếu nối liền ngay trước ring hiện có, hoặc (chưa có ring) trang này là đuôi: kết thúc tại count.
+     */
+    public synchronized void fill(String conversation, int from, List<ChatHistoryStore.Record> records, int count) {
+        int to = from + records.size();
+        Ring ring = rings.get(conversation);
+        if (ring == null) {
+            if (to != count || records.isEmpty()) {
+                return;
+            }
+            ring = new Ring();
+            ring.first = to;
+            rings.put(conversation, ring);
+        } else if (from >= ring.first || to < ring.first) {
+            return; // Đã có sẵn / không liền với ring
+        }
+        // Thêm ngược lên đầu ring cho tới khi đủ sức chứa
+        for (int i = ring.first - from - 1; i >= 0 && ring.records.size() < RING_CAPACITY; i--) {
+            ChatHistoryStore.Record record = records.get(i);
+            ring.records.addFirst(record);
+            ring.bytes += sizeOf(record);
+            totalBytes += sizeOf(record);
+            ring.first--;
+        }
+        evict(conversation);
+    }
+
+    public synchronized void clear() {
+        rings.clear();
+        totalBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "RecentCache{conversations=" + rings.size() + ", bytes=" + totalBytes +
+                ", hitRate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%}";
+    }
+
+    /**
+     * Bỏ ring lâu không dùng nhất cho tới khi về dưới maxBytes (giữ lại conversation vừa dùng)
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Ring>> it = rings.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Ring> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            totalBytes -= eldest.getValue().bytes;
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(ChatHistoryStore.Record record) {
+        return RECORD_OVERHEAD_BYTES + 2L * (record.conversation.length() + record.sender.length() +
+                record.message.length());
+    }
+}
@@ -1,10 +1,10 @@
 import java.io.IOException;
 import java.net.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Session Lock Manager - Ngăn chặn đăng nhập trùng lặp trên LAN
@@ -109,7 +109,7 @@ public class SessionLockManager {
      */
     private boolean checkLANSessionFree(String username) {
         try {
-            String myIp = getRealLocalIp();
+            String myIp = LocalAddressService.getInstance().getLocalIp();
             String subnet = myIp.substring(0, myIp.lastIndexOf('.'));
             
             // Discovery port theo logic của NetworkManager (CHỈ 50 PORTS)
@@ -120,54 +120,43 @@ public class SessionLockManager {
             System.out.println("  - My IP: " + myIp);
             System.out.println("  - Scanning subnet: " + subnet + ".x");
             
-            // TỐI ƯU: Quét song song nhiều IP cùng lúc
-            ExecutorService executor = Executors.newFixedThreadPool(50);
-            AtomicBoolean foundActiveSession = new AtomicBoolean(false);
-            
             // 1. Ưu tiên: Scan localhost TRƯỚC (nhanh nhất)
             if (!myIp.equals("127.0.0.1")) {
                 if (tryConnectToDiscoveryPort(myIp, discoveryPort, 200)) {
                     System.out.println("🔒 [LAN] Found active session on localhost:" + discoveryPort);
-                    executor.shutdownNow();
                     return false;
                 }
             }
             
-            // 2. Scan các IP khác trong subnet (song song)
+            // 2. Scan các IP khác trong subnet - PortProber (connect không chặn, 1 thread)
+            List<InetSocketAddress> targets = new ArrayList<>();
             for (int i = 1; i < 255; i++) {
-                final String targetIp = subnet + "." + i;
-                
-                // Bỏ qua chính mình
-                if (targetIp.equals(myIp)) {
-                    continue;
+                String targetIp = subnet + "." + i;
+                if (!targetIp.equals(myIp)) { // Bỏ qua chính mình
+                    targets.add(new InetSocketAddress(targetIp, discoveryPort));
                 }
-                
-                executor.submit(() -> {
-                    if (foundActiveSession.get()) {
-                        return; // Đã tìm thấy, skip
-                    }
-                    
-                    if (tryConnectToDiscoveryPort(targetIp, discoveryPort, 200)) {
-                        foundActiveSession.set(true);
-                        System.out.println("🔒 [LAN] Found active session at " + targetIp + ":" + discoveryPort);
-                    }
-                });
             }
             
-            // Đợi scan xong hoặc timeout
-            executor.shutdown();
-            boolean finished = executor.awaitTermination(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            CompletableFuture<Void> foundActiveSession = new CompletableFuture<>();
+            PortProber.Job job = PortProber.getInstance().probe(targets, 200, (address, result) -> {
+                if (result == PortProber.Result.OPEN && foundActiveSession.complete(null)) {
+                    System.out.println("🔒 [LAN] Found active session at " + address.getAddress().getHostAddress() + ":" + discoveryPort);
+                }
+            });
             
-            if (!finished) {
+            // Đợi scan xong, tìm thấy phiên (dừng sớm) hoặc timeout
+            try {
+                CompletableFuture.anyOf(job.completion(), foundActiveSession).get(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
                 System.out.println("⏱️ [LAN] Scan timeout after " + SCAN_TIMEOUT_MS + "ms");
-                executor.shutdownNow();
             }
+            job.cancel();
             
-            if (foundActiveSession.get()) {
+            if (foundActiveSession.isDone()) {
                 System.out.println("❌ [LAN] Active session detected - login DENIED");
                 return false;
             } else {
-                System.out.println("✅ [LAN] No active session found - login ALLOWED");
+                System.out.println("✅ [LAN] No active session found - login ALLOWED (" + job + ")");
                 return true;
             }
             
@@ -210,51 +199,6 @@ public class SessionLockManager {
         lockedPort = -1;
     }
     
-    /**
-     * Lấy IP thực của máy (ưu tiên WiFi/Ethernet, bỏ qua WSL/Virtual)
-     */
-    private String getRealLocalIp() {
-        try {
-            java.util.Enumeration<NetworkInterface> interfaces = 
-                NetworkInterface.getNetworkInterfaces();
-                
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface iface = interfaces.nextElement();
-                
-                if (iface.isLoopback() || !iface.isUp()) {
-                    continue;
-                }
-                
-                String ifaceName = iface.getDisplayName().toLowerCase();
-                if (ifaceName.contains("wsl") || ifaceName.contains("virtual") || 
-                    ifaceName.contains("vmware") || ifaceName.contains("vbox")) {
-                    continue;
-                }
-                
-                java.util.Enumeration<InetAddress> addresses = iface.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
-                    
-                    if (addr instanceof Inet4Address && !addr.isLoopbackAddress()) {
-                        String ip = addr.getHostAddress();
-                        if (ip.startsWith("192.168.") || ip.startsWith("10.") || 
-                            ip.startsWith("172.16.") || ip.startsWith("172.31.")) {
-                            return ip;
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("⚠️ Error detecting IP: " + e.getMessage());
-        }
-        
-        try {
-            return InetAddress.getLocalHost().getHostAddress();
-        } catch (Exception e) {
-            return "127.0.0.1";
-        }
-    }
-    
     /**
      * Kiểm tra xem user có đang giữ lock không
      */
@@ -0,0 +1,333 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.imageio.ImageIO;
+
+/**
+ * Shared File Index - Chỉ mục các file trong shared_files/, thay cho listFiles mỗi lần hiện tin nhắn file
+ *
+ * - Tên lưu trữ (<millis>_<tên>, cũng là id của file trong FILE / GROUP_FILE) → kích thước, SHA-256,
+ *   mime, ảnh thu nhỏ (.thumbs/) ; tên hiển thị → các file cùng tên
+ * - sendFile / downloadFileFromPeer ghi nhận file ngay khi lưu xong, nối 1 dòng vào shared_files/.index
+ * - Lịch sử lưu "[FILE:tên|tên lưu trữ]" → tra thẳng find(); bản cũ chỉ có "[FILE:tên]" thì chọn
+ *   file cùng tên có thời điểm gần thời điểm tin nhắn nhất
+ * - Chưa có .index (bản cũ nâng cấp lên) → duyệt thư mục đúng 1 lần để dựng (không tính hash file cũ)
+ */
+public class SharedFileIndex {
+    private static final String SHARED_DIR = "shared_files/";
+    private static final int THUMBNAIL_SIZE = 350; // = khung preview ảnh trong khung chat
+
+    private static SharedFileIndex instance;
+
+    public static class Entry {
+        public final String storedName;
+        public final String displayName;
+        public final long size;
+        public final String sha256;    // "" nếu chưa tính (file có từ trước khi có index)
+        public final String mime;
+        public final String thumbnail; // Đường dẫn ảnh thu nhỏ, null nếu không phải ảnh
+        public final long addedAt;
+
+        Entry(String storedName, String displayName, long size, String sha256, String mime,
+              String thumbnail, long addedAt) {
+            this.storedName = storedName;
+            this.displayName = displayName;
+            this.size = size;
+            this.sha256 = sha256;
+            this.mime = mime;
+            this.thumbnail = thumbnail;
+            this.addedAt = addedAt;
+        }
+
+        public File file() {
+            return new File(SHARED_DIR + storedName);
+        }
+    }
+
+    private final File indexFile = new File(SHARED_DIR + ".index");
+    private final Map<String, Entry> byStoredName = new ConcurrentHashMap<>();
+    private final Map<String, List<Entry>> byDisplayName = new ConcurrentHashMap<>();
+
+    private SharedFileIndex() {
+        new File(SHARED_DIR).mkdirs();
+        if (indexFile.exists()) {
+            load();
+        } else {
+            rebuild();
+        }
+    }
+
+    public static synchronized SharedFileIndex getInstance() {
+        if (instance == null) {
+            instance = new SharedFileIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Ghi nhận file vừa lưu vào shared_files/ (gọi ở thread nền: tính hash + tạo ảnh thu nhỏ)
+     */
+    public Entry record(String storedName, String displayName) {
+        Entry existing = byStoredName.get(storedName);
+        if (existing != null) {
+            return existing;
+        }
+        File file = new File(SHARED_DIR + storedName);
+        Entry entry = new Entry(storedName, displayName, file.length(), sha256(file), mimeOf(file),
+                createThumbnail(file, displayName), addedAtOf(storedName, file));
+        if (add(entry)) {
+            append(entry);
+        }
+        return entry;
+    }
+
+    public Entry find(String storedName) {
+        return byStoredName.get(storedName);
+    }
+
+    /**
+     * Nội dung tin nhắn file ghi vào lịch sử: "[FILE:tên|tên lưu trữ]"
+     */
+    public static String historyMessage(String displayName, String storedName) {
+        return "[FILE:" + displayName + "|" + storedName + "]";
+    }
+
+    /**
+     * Tin nhắn file trong lịch sử → {tên hiển thị, tên lưu trữ}. Bản cũ "[FILE:tên]" → {tên, null},
+     * không phải tin nhắn file → null
+     */
+    public static String[] parseHistoryMessage(String message) {
+        if (!message.startsWith("[FILE:") || !message.endsWith("]")) {
+            return null;
+        }
+        String body = message.substring(6, message.length() - 1);
+        // Tên lưu trữ = <millis>_<tên> nên tách đúng được cả khi tên hiển thị có '|'
+        for (int i = body.indexOf('|'); i >= 0; i = body.indexOf('|', i + 1)) {
+            String displayName = body.substring(0, i);
+            String storedName = body.substring(i + 1);
+            if (storedName.endsWith("_" + displayName)) {
+                return new String[] {displayName, storedName};
+            }
+        }
+        return new String[] {body, null};
+    }
+
+    /**
+     * File mang tên hiển thị này gần thời điểm timestamp nhất (và vẫn còn trên đĩa), null nếu không có
+     */
+    public Entry findByDisplayName(String displayName, long timestamp) {
+        List<Entry> candidates = byDisplayName.get(displayName);
+        if (candidates == null) {
+            return null;
+        }
+        Entry best = null;
+        for (Entry entry : candidates) {
+            if (best == null || Math.abs(entry.addedAt - timestamp) < Math.abs(best.addedAt - timestamp)) {
+                best = entry;
+            }
+        }
+        return best != null && best.file().exists() ? best : null;
+    }
+
+    /**
+     * Ảnh dùng cho preview trong khung chat: ảnh thu nhỏ nếu có, không thì chính file
+     */
+    public File previewOf(String storedName) {
+        Entry entry = byStoredName.get(storedName);
+        if (entry != null && entry.thumbnail != null) {
+            File thumbnail = new File(entry.thumbnail);
+            if (thumbnail.exists()) {
+                return thumbnail;
+            }
+        }
+        return new File(SHARED_DIR + storedName);
+    }
+
+    private boolean add(Entry entry) {
+        if (byStoredName.putIfAbsent(entry.storedName, entry) != null) {
+            return false;
+        }
+        byDisplayName.computeIfAbsent(entry.displayName, k -> new CopyOnWriteArrayList<>()).add(entry);
+        return true;
+    }
+
+    // ==================== Lưu / nạp ====================
+
+    /**
+     * .index: mỗi file 1 dòng storedName \t displayName \t size \t sha256 \t mime \t thumbnail \t addedAt
+     */
+    private synchronized void append(Entry entry) {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8)) {
+            out.write(lineOf(entry));
+        } catch (IOException e) {
+            System.err.println("✗ Cannot update shared file index: " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                if (f.length < 7) {
+                    continue; // Dòng ghi dở
+                }
+                try {
+                    add(new Entry(f[0], f[1], Long.parseLong(f[2]), f[3], f[4],
+                            f[5].isEmpty() ? null : f[5], Long.parseLong(f[6])));
+                } catch (NumberFormatException e) {
+                    // Bỏ dòng hỏng
+                }
+            }
+            System.out.println("📁 Shared file index loaded: " + byStoredName.size() + " file(s)");
+        } catch (IOException e) {
+            System.err.println("✗ Cannot read shared file index: " + e.getMessage());
+        }
+    }
+
+    private synchronized void rebuild() {
+        File[] files = new File(SHARED_DIR).listFiles(File::isFile);
+        StringBuilder lines = new StringBuilder();
+        if (files != null) {
+            for (File file : files) {
+                String storedName = file.getName();
+                if (storedName.startsWith(".")) {
+                    continue;
+                }
+                Entry entry = new Entry(storedName, displayNameOf(storedName), file.length(), "",
+                        mimeOf(file), null, addedAtOf(storedName, file));
+                add(entry);
+                lines.append(lineOf(entry));
+            }
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(indexFile), StandardCharsets.UTF_8)) {
+            out.write(lines.toString());
+        } catch (IOException e) {
+            System.err.println("✗ Cannot write shared file index: " + e.getMessage());
+        }
+        System.out.println("📁 Shared file index built: " + byStoredName.size() + " file(s)");
+    }
+
+    private static String lineOf(Entry entry) {
+        return clean(entry.storedName) + "\t" + clean(entry.displayName) + "\t" + entry.size + "\t" +
+                entry.sha256 + "\t" + entry.mime + "\t" + (entry.thumbnail == null ? "" : entry.thumbnail) +
+                "\t" + entry.addedAt + "\n";
+    }
+
+    private static String clean(String name) {
+        return name.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // ==================== Thông tin file ====================
+
+    /**
+     * "1700000000000_report.pdf" → "report.pdf"
+     */
+    private static String displayNameOf(String storedName) {
+        int underscore = storedName.indexOf('_');
+        if (underscore > 0 && storedName.substring(0, underscore).chars().allMatch(Character::isDigit)) {
+            return storedName.substring(underscore + 1);
+        }
+        return storedName;
+    }
+
+    /**
+     * Thời điểm gửi = tiền tố millis của tên lưu trữ (do người gửi đặt), không có thì lastModified
+     */
+    private static long addedAtOf(String storedName, File file) {
+        int underscore = storedName.indexOf('_');
+        if (underscore > 0) {
+            try {
+                return Long.parseLong(storedName.substring(0, underscore));
+            } catch (NumberFormatException e) {
+                // Không phải tên do sendFile đặt
+            }
+        }
+        return file.lastModified();
+    }
+
+    private static String sha256(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return "";
+        }
+    }
+
+    private static String mimeOf(File file) {
+        try {
+            String mime = Files.probeContentType(file.toPath());
+            if (mime != null) {
+                return mime;
+            }
+        } catch (IOException e) {
+            // Dùng mặc định
+        }
+        return "application/octet-stream";
+    }
+
+    /**
+     * Ảnh thu nhỏ (cạnh dài THUMBNAIL_SIZE) trong shared_files/.thumbs/ - chỉ cho ảnh lớn hơn khung preview
+     */
+    private static String createThumbnail(File file, String displayName) {
+        String lower = displayName.toLowerCase();
+        if (!(lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png") ||
+                lower.endsWith(".gif") || lower.endsWith(".bmp"))) {
+            return null;
+        }
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                return null;
+            }
+            int longest = Math.max(image.getWidth(), image.getHeight());
+            if (longest <= THUMBNAIL_SIZE) {
+                return null;
+            }
+            int width = Math.max(1, image.getWidth() * THUMBNAIL_SIZE / longest);
+            int height = Math.max(1, image.getHeight() * THUMBNAIL_SIZE / longest);
+            BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = thumbnail.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+
+            File thumbs = new File(SHARED_DIR + ".thumbs");
+            thumbs.mkdirs();
+            File out = new File(thumbs, file.getName() + ".png");
+            ImageIO.write(thumbnail, "png", out);
+            return out.getPath();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("⚠️ Cannot create thumbnail for " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task Executor - Nơi DUY NHẤT chạy các tác vụ nền ngắn hạn
+ *
+ * - Java 21+: mỗi task chạy trên 1 virtual thread (rẻ, không tốn OS thread)
+ * - Java 17: fallback về pool có giới hạn (tối đa MAX_POOL_THREADS thread)
+ * → Discovery storm / heartbeat không thể đẻ ra hàng nghìn OS thread
+ *
+ * Các vòng lặp sống lâu (server accept, stream audio/video) dùng startDedicated()
+ * để vẫn được đặt tên và đếm trong metrics.
+ */
+public class TaskExecutor {
+    private static final int MAX_POOL_THREADS = 64;
+    private static final int MAX_QUEUED_TASKS = 10000;
+
+    private static TaskExecutor instance;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    // Metrics
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicInteger peakActiveTasks = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicInteger dedicatedThreads = new AtomicInteger();
+
+    public static synchronized TaskExecutor getInstance() {
+        if (instance == null) {
+            instance = new TaskExecutor();
+        }
+        return instance;
+    }
+
+    private TaskExecutor() {
+        ExecutorService virtualExecutor = createVirtualThreadExecutor();
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.virtualThreads = true;
+            System.out.println("🧵 TaskExecutor: using virtual threads");
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            // core == max: ThreadPoolExecutor chỉ tạo thread vượt core khi hàng đợi ĐẦY, nên core < max
+            // nghĩa là thực tế chỉ có core thread. Thread rảnh vẫn tự thu hồi nhờ allowCoreThreadTimeOut.
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    MAX_POOL_THREADS, MAX_POOL_THREADS,
+                    30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(MAX_QUEUED_TASKS),
+                    r -> {
+                        Thread t = new Thread(r, "task-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    (r, e) -> {
+                        // Hàng đợi đầy → bỏ task, KHÔNG chạy trên thread gọi (có thể là FX thread)
+                        rejectedTasks.incrementAndGet();
+                        throw new RejectedExecutionException("Task queue full");
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.virtualThreads = false;
+            System.out.println("🧵 TaskExecutor: using bounded pool (up to " + MAX_POOL_THREADS +
+                    " threads, queue " + MAX_QUEUED_TASKS + ")");
+        }
+    }
+
+    /**
+     * Java 21: Executors.newThreadPerTaskExecutor(Thread.ofVirtual().factory())
+     * Gọi qua reflection vì project vẫn biên dịch với target 17
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "vtask-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Chạy 1 tác vụ ngắn, tên task được gắn vào tên thread khi đang chạy (dễ debug)
+     */
+    public void execute(String name, Runnable task) {
+        submit(name, task);
+    }
+
+    public Future<?> submit(String name, Runnable task) {
+        queuedTasks.incrementAndGet();
+        try {
+            return executor.submit(() -> {
+                queuedTasks.decrementAndGet();
+                int active = activeTasks.incrementAndGet();
+                peakActiveTasks.accumulateAndGet(active, Math::max);
+
+                Thread current = Thread.currentThread();
+                String originalName = current.getName();
+                current.setName(originalName + "[" + name + "]");
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    System.err.println("❌ Task '" + name + "' failed: " + t);
+                } finally {
+                    current.setName(originalName);
+                    activeTasks.decrementAndGet();
+                    completedTasks.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queuedTasks.decrementAndGet();
+            System.err.println("⚠️ Task '" + name + "' rejected: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Thread riêng cho vòng lặp sống lâu (accept loop, stream audio/video).
+     * Trả về Thread CHƯA start để nơi gọi còn giữ reference (interrupt/isAlive).
+     */
+    public Thread newDedicatedThread(String name, Runnable loop) {
+        Thread thread = new Thread(() -> {
+            dedicatedThreads.incrementAndGet();
+            try {
+                loop.run();
+            } finally {
+                dedicatedThreads.decrementAndGet();
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public Thread startDedicated(String name, Runnable loop) {
+        Thread thread = newDedicatedThread(name, loop);
+        thread.start();
+        return thread;
+    }
+
+    public boolean isUsingVirtualThreads() { return virtualThreads; }
+    public int getQueuedTasks() { return queuedTasks.get(); }
+    public int getActiveTasks() { return activeTasks.get(); }
+    public int getPeakActiveTasks() { return peakActiveTasks.get(); }
+    public long getCompletedTasks() { return completedTasks.get(); }
+    public long getRejectedTasks() { return rejectedTasks.get(); }
+    public int getDedicatedThreads() { return dedicatedThreads.get(); }
+
+    public int getPoolThreads() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getPoolSize();
+        }
+        return activeTasks.get(); // Virtual thread: 1 thread / task đang chạy
+    }
+
+    public String getMetrics() {
+        return "TaskExecutor{" +
+                "mode=" + (virtualThreads ? "virtual" : "pool") +
+                ", threads=" + getPoolThreads() +
+                ", dedicated=" + dedicatedThreads.get() +
+                ", active=" + activeTasks.get() +
+                ", peak=" + peakActiveTasks.get() +
+                ", queued=" + queuedTasks.get() +
+                ", completed=" + completedTasks.get() +
+                ", rejected=" + rejectedTasks.get() +
+                '}';
+    }
+
+    public void shutdown() {
+        System.out.println("🧵 " + getMetrics());
+        executor.shutdownNow();
+    }
+}
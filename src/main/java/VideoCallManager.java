@@ -84,7 +84,7 @@ public class VideoCallManager {
 
     public void startVideoServer() {
         // Server video
-        new Thread(() -> {
+        TaskExecutor.getInstance().startDedicated("video-server", () -> {
             try {
                 videoServer = new ServerSocket(myVideoPort);
                 System.out.println("📹 Video server started on port: " + myVideoPort);
@@ -99,10 +99,10 @@ public class VideoCallManager {
             } catch (IOException e) {
                 System.err.println("❌ Video server error: " + e.getMessage());
             }
-        }).start();
+        });
 
         // Server audio
-        new Thread(() -> {
+        TaskExecutor.getInstance().startDedicated("video-audio-server", () -> {
             try {
                 audioServer = new ServerSocket(myAudioPort);
                 System.out.println("🎤 Video audio server started on port: " + myAudioPort);
@@ -130,7 +130,7 @@ public class VideoCallManager {
             } catch (IOException e) {
                 System.err.println("❌ Audio server error: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
     public int getVideoPort() {
@@ -142,7 +142,7 @@ public class VideoCallManager {
     }
 
     private void handleIncomingVideoCall(Socket socket) {
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("incoming-video-call", () -> {
             try {
                 BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 String message = reader.readLine();
@@ -160,7 +160,7 @@ public class VideoCallManager {
             } catch (IOException e) {
                 System.err.println("❌ Error handling incoming video call: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
     public void acceptVideoCall() {
@@ -284,7 +284,7 @@ public class VideoCallManager {
     }
 
     public void connectAudioSocket(String peerIp, int peerAudioPort) {
-        new Thread(() -> {
+        TaskExecutor.getInstance().execute("video-audio-connect", () -> {
             try {
                 System.out.println("🔗 Receiver connecting to audio port: " + peerAudioPort);
                 audioSocket = new Socket(peerIp, peerAudioPort);
@@ -297,7 +297,7 @@ public class VideoCallManager {
             } catch (IOException e) {
                 System.err.println("❌ Failed to connect audio socket: " + e.getMessage());
             }
-        }).start();
+        });
     }
 
     public void setVideoViews(ImageView localView, ImageView remoteView) {
@@ -354,7 +354,7 @@ public class VideoCallManager {
         isVideoCallActive.set(true);
 
         // Thread gửi video
-        videoSendThread = new Thread(() -> {
+        videoSendThread = TaskExecutor.getInstance().newDedicatedThread("video-send", () -> {
             System.out.println("📤 Starting video sending thread");
             int frameCount = 0;
 
@@ -404,7 +404,7 @@ public class VideoCallManager {
         videoSendThread.start();
 
         // Thread nhận video
-        videoReceiveThread = new Thread(() -> {
+        videoReceiveThread = TaskExecutor.getInstance().newDedicatedThread("video-receive", () -> {
             System.out.println("📥 Starting video receiving thread");
             int frameCount = 0;
 
@@ -465,7 +465,7 @@ public class VideoCallManager {
         videoReceiveThread.start();
 
         // Thread hiển thị local video
-        new Thread(() -> {
+        TaskExecutor.getInstance().startDedicated("video-local-preview", () -> {
             System.out.println("📹 Starting local video display thread");
 
             try {
@@ -490,7 +490,7 @@ public class VideoCallManager {
             } finally {
                 System.out.println("📹 Local video display thread ended");
             }
-        }).start();
+        });
     }
 
     private void startAudioStreaming() {
@@ -583,7 +583,7 @@ public class VideoCallManager {
         System.out.println("🎤 Starting audio threads...");
         
         // Thread gửi audio
-        audioSendThread = new Thread(() -> {
+        audioSendThread = TaskExecutor.getInstance().newDedicatedThread("video-audio-send", () -> {
                 System.out.println("🎤 Audio sending thread started");
                 int bytesSent = 0;
                 try {
@@ -612,7 +612,7 @@ public class VideoCallManager {
             audioSendThread.start();
 
             // Thread nhận audio
-            audioReceiveThread = new Thread(() -> {
+            audioReceiveThread = TaskExecutor.getInstance().newDedicatedThread("video-audio-receive", () -> {
                 System.out.println("🎧 Audio receiving thread started");
                 int bytesReceived = 0;
                 try {
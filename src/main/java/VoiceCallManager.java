@@ -37,7 +37,7 @@ public class VoiceCallManager {
     }
 
     public void startVoiceServer() {
-        new Thread(() -> {
+        TaskExecutor.getInstance().startDedicated("voice-server", () -> {
             try {
                 voiceServer = new ServerSocket(myVoicePort);
                 System.out.println("🎤 Voice server started on port: " + myVoicePort);
@@ -51,7 +51,7 @@ public class VoiceCallManager {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
     }
 
     public int getVoicePort() {
@@ -205,7 +205,7 @@ public class VoiceCallManager {
         }
 
         // Send audio thread
-        sendThread = new Thread(() -> {
+        sendThread = TaskExecutor.getInstance().newDedicatedThread("voice-send", () -> {
             System.out.println("🎤 Voice sending thread started");
             int bytesSent = 0;
             int silentPackets = 0;
@@ -257,7 +257,7 @@ public class VoiceCallManager {
             // QUAN TRỌNG: Gọi cleanup khi thread kết thúc (nếu chưa cleanup)
             if (isCallActive.get() || microphone != null || speaker != null) {
                 System.out.println("🔄 [VOICE] Send thread spawning cleanup...");
-                new Thread(() -> {
+                TaskExecutor.getInstance().execute("voice-cleanup", () -> {
                     try {
                         Thread.sleep(200); // Đợi cả 2 threads exit
                         System.out.println("🔄 [VOICE] Cleanup thread calling endCall()...");
@@ -265,13 +265,13 @@ public class VoiceCallManager {
                     } catch (InterruptedException e) {
                         System.err.println("⚠️ [VOICE] Cleanup thread interrupted");
                     }
-                }, "VoiceCallCleanup").start();
+                });
             }
         });
         sendThread.start();
 
         // Receive audio thread
-        receiveThread = new Thread(() -> {
+        receiveThread = TaskExecutor.getInstance().newDedicatedThread("voice-receive", () -> {
             System.out.println("🎧 Voice receiving thread started");
             int bytesReceived = 0;
             try {
@@ -292,7 +292,7 @@ public class VoiceCallManager {
                         // KHÔNG set flag ở đây, để endCall() làm
                         // Gọi endCall() từ thread khác để tránh self-interrupt
                         System.out.println("🔄 [VOICE] Spawning cleanup thread...");
-                        new Thread(() -> {
+                        TaskExecutor.getInstance().execute("voice-cleanup", () -> {
                             try {
                                 Thread.sleep(100); // Đợi thread này exit
                                 System.out.println("🔄 [VOICE] Cleanup thread calling endCall()...");
@@ -300,7 +300,7 @@ public class VoiceCallManager {
                             } catch (InterruptedException e) {
                                 System.err.println("⚠️ [VOICE] Cleanup thread interrupted");
                             }
-                        }, "VoiceCallCleanup").start();
+                        });
                         break;
                     }
                 }
@@ -309,7 +309,7 @@ public class VoiceCallManager {
                     System.err.println("❌ Error receiving voice audio: " + e.getMessage());
                     // Gọi cleanup từ thread khác
                     System.out.println("🔄 [VOICE] Spawning cleanup thread (from exception)...");
-                    new Thread(() -> {
+                    TaskExecutor.getInstance().execute("voice-cleanup", () -> {
                         try {
                             Thread.sleep(100);
                             System.out.println("🔄 [VOICE] Cleanup thread calling endCall()...");
@@ -317,7 +317,7 @@ public class VoiceCallManager {
                         } catch (InterruptedException ie) {
                             System.err.println("⚠️ [VOICE] Cleanup thread interrupted");
                         }
-                    }, "VoiceCallCleanup").start();
+                    });
                 } else {
                     // Call đã stopped, chỉ set flag
                     isCallActive.set(false);
@@ -328,7 +328,7 @@ public class VoiceCallManager {
             // QUAN TRỌNG: Gọi cleanup khi thread kết thúc (nếu chưa cleanup)
             if (isCallActive.get() || microphone != null || speaker != null) {
                 System.out.println("🔄 [VOICE] Receive thread spawning cleanup...");
-                new Thread(() -> {
+                TaskExecutor.getInstance().execute("voice-cleanup", () -> {
                     try {
                         Thread.sleep(200); // Đợi cả 2 threads exit
                         System.out.println("🔄 [VOICE] Cleanup thread calling endCall()...");
@@ -336,7 +336,7 @@ public class VoiceCallManager {
                     } catch (InterruptedException e) {
                         System.err.println("⚠️ [VOICE] Cleanup thread interrupted");
                     }
-                }, "VoiceCallCleanup").start();
+                });
             }
         });
         receiveThread.start();